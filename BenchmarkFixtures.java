@@ -0,0 +1,202 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates synthetic events and user zips for the benchmarks, so that they can
+ * run without the dataset. The events have the same Json layout as the ones in
+ * the dataset; the mix of types roughly follows the totals of a real run
+ * (mostly commands, edits, activity and windows, some completions with many
+ * proposals, one user profile per zip).
+ */
+public class BenchmarkFixtures {
+
+	private static final String COMMAND = "KaVE.Commons.Model.Events.CommandEvent, KaVE.Commons";
+	private static final String ACTIVITY = "KaVE.Commons.Model.Events.ActivityEvent, KaVE.Commons";
+	private static final String WINDOW = "KaVE.Commons.Model.Events.VisualStudio.WindowEvent, KaVE.Commons";
+	private static final String DOCUMENT = "KaVE.Commons.Model.Events.VisualStudio.DocumentEvent, KaVE.Commons";
+	private static final String EDIT = "KaVE.Commons.Model.Events.VisualStudio.EditEvent, KaVE.Commons";
+	private static final String BUILD = "KaVE.Commons.Model.Events.VisualStudio.BuildEvent, KaVE.Commons";
+	private static final String COMPLETION = "KaVE.Commons.Model.Events.CompletionEvents.CompletionEvent, KaVE.Commons";
+	private static final String USER_PROFILE = "KaVE.Commons.Model.Events.UserProfiles.UserProfileEvent, KaVE.Commons";
+
+	private static final String[] COMMAND_IDS = { "Edit.Paste", "Edit.Copy", "Build.BuildSolution",
+			"{5EFC7975-14BC-11CF-9B2B-00AA00573819}:684:Edit.Undo", "TextControl.Enter", "File.SaveSelectedItems" };
+
+	/**
+	 * a small event, only the header and a command id
+	 */
+	public static String commandEvent(Random rnd, int i) {
+		StringBuilder sb = header(COMMAND, rnd, i);
+		sb.append(",\"CommandId\":\"").append(COMMAND_IDS[rnd.nextInt(COMMAND_IDS.length)]).append('"');
+		return footer(sb, rnd, true);
+	}
+
+	/**
+	 * a large event with an SST of the enclosing type and the given number of
+	 * proposals
+	 */
+	public static String completionEvent(Random rnd, int i, int numProposals) {
+		StringBuilder sb = header(COMPLETION, rnd, i);
+		String type = "N" + rnd.nextInt(100) + ".C" + rnd.nextInt(1000) + ", P" + rnd.nextInt(10);
+		sb.append(",\"Context2\":{\"$type\":\"KaVE.Commons.Model.Events.CompletionEvents.Context, KaVE.Commons\"");
+		sb.append(",\"TypeShape\":{\"$type\":\"KaVE.Commons.Model.TypeShapes.TypeShape, KaVE.Commons\"");
+		sb.append(",\"TypeHierarchy\":{\"$type\":\"KaVE.Commons.Model.TypeShapes.TypeHierarchy, KaVE.Commons\"");
+		sb.append(",\"Element\":\"0T:").append(type).append("\",\"Implements\":[]}");
+		sb.append(",\"MethodHierarchies\":[]}");
+		sb.append(",\"SST\":{\"$type\":\"KaVE.Commons.Model.SSTs.Impl.SST, KaVE.Commons\"");
+		sb.append(",\"EnclosingType\":\"0T:").append(type).append('"');
+		sb.append(",\"Fields\":[],\"Properties\":[],\"Methods\":[");
+		for (int m = 0; m < 3; m++) {
+			if (m > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"$type\":\"KaVE.Commons.Model.SSTs.Impl.Declarations.MethodDeclaration, KaVE.Commons\"");
+			sb.append(",\"Name\":\"0M:[p:void] [").append(type).append("].M").append(m).append("()\"");
+			sb.append(",\"IsEntryPoint\":true,\"Body\":[]}");
+		}
+		sb.append("],\"Events\":[],\"Delegates\":[]}}");
+		sb.append(",\"ProposalCollection\":[");
+		for (int p = 0; p < numProposals; p++) {
+			if (p > 0) {
+				sb.append(',');
+			}
+			proposal(sb, type, p);
+		}
+		sb.append("],\"Selections\":[");
+		int selections = Math.min(numProposals, 1 + rnd.nextInt(5));
+		for (int s = 0; s < selections; s++) {
+			if (s > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"$type\":\"KaVE.Commons.Model.Events.CompletionEvents.ProposalSelection, KaVE.Commons\"");
+			sb.append(",\"SelectedAfter\":\"00:00:0").append(s).append(".1234567\",\"Proposal\":");
+			proposal(sb, type, s);
+			sb.append('}');
+		}
+		sb.append("],\"TerminatedBy\":").append(rnd.nextInt(3));
+		sb.append(",\"TerminatedState\":").append(rnd.nextInt(3));
+		sb.append(",\"ProposalCount\":").append(numProposals);
+		return footer(sb, rnd, true);
+	}
+
+	private static void proposal(StringBuilder sb, String type, int p) {
+		sb.append("{\"$type\":\"KaVE.Commons.Model.Events.CompletionEvents.Proposal, KaVE.Commons\"");
+		sb.append(",\"Name\":\"0M:[p:string] [").append(type).append("].Proposal").append(p).append("([p:int] i)\"");
+		sb.append(",\"Relevance\":").append(p).append('}');
+	}
+
+	public static String userProfileEvent(Random rnd, int i, String profileId) {
+		StringBuilder sb = header(USER_PROFILE, rnd, i);
+		sb.append(",\"ProfileId\":\"").append(profileId).append("\",\"Education\":0,\"Position\":0");
+		return footer(sb, rnd, false);
+	}
+
+	/**
+	 * the events of one user: one user profile and a mix of the other types
+	 */
+	public static List<String> userEvents(long seed, int numEvents) {
+		Random rnd = new Random(seed);
+		List<String> events = new ArrayList<String>(numEvents);
+		events.add(userProfileEvent(rnd, 0, "profile-" + seed));
+		for (int i = 1; i < numEvents; i++) {
+			int pick = rnd.nextInt(100);
+			if (pick < 35) {
+				events.add(commandEvent(rnd, i));
+			} else if (pick < 55) {
+				events.add(footer(header(EDIT, rnd, i).append(",\"NumberOfChanges\":1,\"SizeOfChanges\":12"), rnd,
+						true));
+			} else if (pick < 70) {
+				events.add(footer(header(ACTIVITY, rnd, i), rnd, true));
+			} else if (pick < 80) {
+				events.add(footer(header(WINDOW, rnd, i).append(",\"Window\":\"0Win:vsWindowTypeToolWindow Output\"")
+						.append(",\"Action\":").append(rnd.nextInt(4)), rnd, false));
+			} else if (pick < 88) {
+				events.add(footer(header(DOCUMENT, rnd, i).append(",\"Document\":\"0Doc:CSharp \\\\P\\\\F.cs\"")
+						.append(",\"Action\":").append(rnd.nextInt(3)), rnd, false));
+			} else if (pick < 90) {
+				events.add(footer(header(BUILD, rnd, i).append(",\"Scope\":\"\",\"Action\":\"\",\"Targets\":[]"), rnd,
+						true));
+			} else {
+				events.add(completionEvent(rnd, i, 10 + rnd.nextInt(200)));
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Writes the events into a zip with one entry per event, like the zips of the
+	 * dataset.
+	 */
+	public static File writeUserZip(File eventsDir, String userZip, List<String> events) throws IOException {
+		File zip = new File(eventsDir, userZip);
+		zip.getParentFile().mkdirs();
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+			for (int i = 0; i < events.size(); i++) {
+				out.putNextEntry(new ZipEntry(i + ".json"));
+				out.write(events.get(i).getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+		return zip;
+	}
+
+	public static File createTempDir(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	public static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		f.delete();
+	}
+
+	private static StringBuilder header(String type, Random rnd, int i) {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"$type\":\"").append(type).append('"');
+		sb.append(",\"IDESessionUUID\":\"").append(new UUID(rnd.nextLong() & 0xff, i / 500)).append('"');
+		sb.append(",\"KaVEVersion\":\"0.1010-Default\"");
+		sb.append(String.format(",\"TriggeredAt\":\"2016-%02d-%02dT%02d:%02d:%02d.%07d+02:00\"", 1 + rnd.nextInt(12),
+				1 + rnd.nextInt(28), rnd.nextInt(24), rnd.nextInt(60), rnd.nextInt(60), rnd.nextInt(10000000)));
+		sb.append(",\"TriggeredBy\":").append(rnd.nextInt(4));
+		return sb;
+	}
+
+	private static String footer(StringBuilder sb, Random rnd, boolean withDuration) {
+		if (withDuration) {
+			sb.append(String.format(",\"Duration\":\"00:00:%02d.%07d\"", rnd.nextInt(60), rnd.nextInt(10000000)));
+		}
+		sb.append(",\"ActiveWindow\":\"0Win:vsWindowTypeDocument File.cs\"");
+		sb.append(",\"ActiveDocument\":\"0Doc:CSharp \\\\P\\\\File.cs\"}");
+		return sb.toString();
+	}
+}
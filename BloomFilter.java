@@ -0,0 +1,87 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of 64-bit fingerprints that may answer "contained" for fingerprints
+ * that were never added (with the rate {@link #getFalsePositiveRate(long)}),
+ * but never "not contained" for added ones. The bits are set atomically, so
+ * several threads can add at the same time.
+ */
+public class BloomFilter {
+
+	private final AtomicLongArray words;
+	private final long bits;
+	private final int hashes;
+
+	/**
+	 * @param maxBytes
+	 *            memory for the bits
+	 * @param expectedEntries
+	 *            the number of hashes is chosen for this many fingerprints
+	 */
+	public BloomFilter(long maxBytes, long expectedEntries) {
+		long words = Math.max(1, Math.min(maxBytes / 8, Integer.MAX_VALUE - 8));
+		this.words = new AtomicLongArray((int) words);
+		this.bits = words * 64;
+		long optimal = Math.round((double) bits / Math.max(1, expectedEntries) * Math.log(2));
+		this.hashes = (int) Math.max(1, Math.min(16, optimal));
+	}
+
+	public long getSizeInBytes() {
+		return bits / 8;
+	}
+
+	public int getHashes() {
+		return hashes;
+	}
+
+	public boolean mightContain(long fingerprint) {
+		long h1 = fingerprint;
+		long h2 = Hashing.mix(fingerprint) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+			if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void add(long fingerprint) {
+		long h1 = fingerprint;
+		long h2 = Hashing.mix(fingerprint) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+			int index = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long word = words.get(index);
+			while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+				word = words.get(index);
+			}
+		}
+	}
+
+	/**
+	 * the expected rate of false positives after the given number of
+	 * fingerprints were added
+	 */
+	public double getFalsePositiveRate(long entries) {
+		return Math.pow(1 - Math.exp(-(double) hashes * entries / bits), hashes);
+	}
+}
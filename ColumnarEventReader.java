@@ -0,0 +1,421 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import examples.ColumnarFormat.Column;
+import examples.ColumnarFormat.RowGroup;
+
+/**
+ * Reads a file written by {@link ColumnarEventWriter}. Only the footers are
+ * read when the file is opened; a scan reads only the chunks of the requested
+ * columns, and only of the row groups whose timestamps overlap the requested
+ * time range.
+ * 
+ * <pre>
+ * try (ColumnarEventReader r = ColumnarEventReader.open(file)) {
+ * 	r.scan(from, to, EnumSet.of(Column.TYPE, Column.DURATION), new RowVisitor() {
+ * 		public void visit(Row row) {
+ * 			... row.getType(), row.getDurationMillis() ...
+ * 		}
+ * 	});
+ * }
+ * </pre>
+ */
+public class ColumnarEventReader implements Closeable {
+
+	public interface RowVisitor {
+		void visit(Row row);
+	}
+
+	/**
+	 * The current row of a scan, reused for all rows. Columns that were not
+	 * requested are not set.
+	 */
+	public static class Row {
+		private final ColumnarEventReader reader;
+		int file;
+		int session;
+		int type;
+		int profile;
+		boolean hasTriggeredAt;
+		long triggeredAt;
+		int zoneOffset;
+		boolean hasDuration;
+		long duration;
+
+		Row(ColumnarEventReader reader) {
+			this.reader = reader;
+		}
+
+		public String getFile() {
+			return reader.lookup(Column.FILE, file);
+		}
+
+		public String getSession() {
+			return reader.lookup(Column.SESSION, session);
+		}
+
+		public String getType() {
+			return reader.lookup(Column.TYPE, type);
+		}
+
+		/**
+		 * the ProfileId, only set for UserProfileEvents
+		 */
+		public String getProfileId() {
+			return reader.lookup(Column.PROFILE, profile);
+		}
+
+		/**
+		 * the id of the type in the dictionary ({@link #getDictionary}), faster to
+		 * compare than the name
+		 */
+		public int getTypeId() {
+			return type - 1;
+		}
+
+		public boolean hasTriggeredAt() {
+			return hasTriggeredAt;
+		}
+
+		/**
+		 * @return epoch millis
+		 */
+		public long getTriggeredAtMillis() {
+			return triggeredAt;
+		}
+
+		/**
+		 * the timestamp in its original time zone (requires ZONE_OFFSET)
+		 */
+		public ZonedDateTime getTriggeredAt() {
+			if (!hasTriggeredAt) {
+				return null;
+			}
+			return Instant.ofEpochMilli(triggeredAt).atZone(ZoneOffset.ofTotalSeconds(zoneOffset));
+		}
+
+		public boolean hasDuration() {
+			return hasDuration;
+		}
+
+		public long getDurationMillis() {
+			return duration;
+		}
+	}
+
+	private static final int SEARCH_CHUNK = 1 << 20;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel in;
+	private final Map<Column, List<String>> dictionaries = new EnumMap<Column, List<String>>(Column.class);
+	private final List<RowGroup> rowGroups = new ArrayList<RowGroup>();
+	private long end;
+
+	private ColumnarEventReader(File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		this.in = raf.getChannel();
+	}
+
+	/**
+	 * Opens the file and reads its footers. If the file was cut off by a crash,
+	 * the rows up to the last complete footer are read.
+	 */
+	public static ColumnarEventReader open(File file) throws IOException {
+		ColumnarEventReader reader = new ColumnarEventReader(file);
+		try {
+			reader.readFooters();
+		} catch (IOException | RuntimeException e) {
+			reader.close();
+			throw e;
+		}
+		return reader;
+	}
+
+	private void readFooters() throws IOException {
+		long size = in.size();
+		if (size < ColumnarFormat.HEADER_SIZE) {
+			throw new IOException("not a columnar events file: " + file);
+		}
+		ByteBuffer head = read(0, ColumnarFormat.HEADER_SIZE);
+		if (!hasMagic(head)) {
+			throw new IOException("not a columnar events file: " + file);
+		}
+		int version = head.getInt();
+		if (version != ColumnarFormat.VERSION) {
+			throw new IOException("unsupported version " + version + " of " + file);
+		}
+		for (Column c : ColumnarFormat.DICTIONARY_COLUMNS) {
+			dictionaries.put(c, new ArrayList<String>());
+		}
+		end = findLastFooter(size);
+		if (end < 0) {
+			// no checkpoint was written
+			end = ColumnarFormat.HEADER_SIZE;
+			return;
+		}
+		List<ByteBuffer> footers = new ArrayList<ByteBuffer>();
+		for (long footerEnd = end; footerEnd >= 0;) {
+			ByteBuffer footer = readFooter(footerEnd);
+			if (footer == null) {
+				throw new IOException("broken chain of footers in " + file);
+			}
+			footers.add(footer);
+			footerEnd = footer.getLong();
+		}
+		Collections.reverse(footers);
+		for (ByteBuffer footer : footers) {
+			for (Column c : ColumnarFormat.DICTIONARY_COLUMNS) {
+				int n = ColumnarFormat.readVarInt(footer);
+				List<String> values = dictionaries.get(c);
+				for (int i = 0; i < n; i++) {
+					values.add(ColumnarFormat.readString(footer));
+				}
+			}
+			int groups = ColumnarFormat.readVarInt(footer);
+			for (int i = 0; i < groups; i++) {
+				rowGroups.add(RowGroup.readFrom(footer));
+			}
+		}
+	}
+
+	/*
+	 * The end of the last complete footer, -1 if there is none. Usually that is
+	 * the end of the file; after a crash, the file is searched backwards.
+	 */
+	private long findLastFooter(long size) throws IOException {
+		if (readFooter(size) != null) {
+			return size;
+		}
+		byte[] magic = ColumnarFormat.MAGIC;
+		long chunkEnd = size;
+		while (chunkEnd > ColumnarFormat.HEADER_SIZE) {
+			long chunkStart = Math.max(ColumnarFormat.HEADER_SIZE, chunkEnd - SEARCH_CHUNK);
+			ByteBuffer chunk = read(chunkStart, (int) (chunkEnd - chunkStart));
+			for (int i = chunk.limit() - magic.length; i >= 0; i--) {
+				if (startsWith(chunk, i, magic) && readFooter(chunkStart + i + magic.length) != null) {
+					return chunkStart + i + magic.length;
+				}
+			}
+			if (chunkStart == ColumnarFormat.HEADER_SIZE) {
+				break;
+			}
+			// a magic may cross the border of two chunks
+			chunkEnd = chunkStart + magic.length - 1;
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(ByteBuffer buf, int position, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (buf.get(position + i) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * The footer that ends at the position, without its trailer; null if there
+	 * is no complete footer.
+	 */
+	private ByteBuffer readFooter(long footerEnd) throws IOException {
+		long trailer = footerEnd - ColumnarFormat.TRAILER_SIZE;
+		if (trailer < ColumnarFormat.HEADER_SIZE + 8) {
+			return null;
+		}
+		ByteBuffer tail = read(trailer, ColumnarFormat.TRAILER_SIZE);
+		int crc = tail.getInt();
+		long footerOffset = tail.getLong();
+		if (!hasMagic(tail) || footerOffset < ColumnarFormat.HEADER_SIZE || footerOffset > trailer - 8) {
+			return null;
+		}
+		ByteBuffer footer = read(footerOffset, (int) (trailer - footerOffset));
+		CRC32 check = new CRC32();
+		check.update(footer.array(), 0, footer.limit());
+		if ((int) check.getValue() != crc) {
+			return null;
+		}
+		return footer;
+	}
+
+	private static boolean hasMagic(ByteBuffer buf) {
+		byte[] magic = new byte[ColumnarFormat.MAGIC.length];
+		buf.get(magic);
+		return Arrays.equals(magic, ColumnarFormat.MAGIC);
+	}
+
+	/**
+	 * the values of a dictionary column (FILE, SESSION, TYPE or PROFILE)
+	 */
+	public List<String> getDictionary(Column column) {
+		List<String> values = dictionaries.get(column);
+		if (values == null) {
+			throw new IllegalArgumentException(column + " is not a dictionary column");
+		}
+		return Collections.unmodifiableList(values);
+	}
+
+	public List<RowGroup> getRowGroups() {
+		return Collections.unmodifiableList(rowGroups);
+	}
+
+	public long getRowCount() {
+		long count = 0;
+		for (RowGroup g : rowGroups) {
+			count += g.rows;
+		}
+		return count;
+	}
+
+	/**
+	 * the end of the last complete footer, where the writer goes on
+	 */
+	long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Visits all rows.
+	 */
+	public void scan(Set<Column> columns, RowVisitor visitor) throws IOException {
+		scan(Long.MIN_VALUE, Long.MAX_VALUE, columns, visitor);
+	}
+
+	/**
+	 * Visits the rows with a timestamp (epoch millis) in [from, to]. Rows without
+	 * a timestamp are only visited if the range is not limited.
+	 */
+	public void scan(long from, long to, Set<Column> columns, RowVisitor visitor) throws IOException {
+		boolean allTimes = from == Long.MIN_VALUE && to == Long.MAX_VALUE;
+		EnumSet<Column> needed = EnumSet.copyOf(columns);
+		if (!allTimes) {
+			needed.add(Column.TRIGGERED_AT);
+		}
+		if (needed.contains(Column.ZONE_OFFSET)) {
+			needed.add(Column.TRIGGERED_AT);
+		}
+		Row row = new Row(this);
+		for (RowGroup group : rowGroups) {
+			if (!allTimes && !group.overlaps(from, to)) {
+				continue;
+			}
+			scan(group, needed, allTimes, from, to, row, visitor);
+		}
+	}
+
+	private void scan(RowGroup group, EnumSet<Column> needed, boolean allTimes, long from, long to, Row row,
+			RowVisitor visitor) throws IOException {
+		int rows = group.rows;
+		// only the chunks of the needed columns are read
+		Map<Column, ByteBuffer> data = new EnumMap<Column, ByteBuffer>(Column.class);
+		for (Column c : needed) {
+			data.put(c, read(group.getColumnOffset(c), group.getColumnLength(c)));
+		}
+		ByteBuffer files = data.get(Column.FILE);
+		ByteBuffer sessions = data.get(Column.SESSION);
+		ByteBuffer types = data.get(Column.TYPE);
+		ByteBuffer profiles = data.get(Column.PROFILE);
+		ByteBuffer times = data.get(Column.TRIGGERED_AT);
+		ByteBuffer offsets = data.get(Column.ZONE_OFFSET);
+		ByteBuffer durations = data.get(Column.DURATION);
+		byte[] timeBitmap = times == null ? null : bitmap(times, rows);
+		byte[] durationBitmap = durations == null ? null : bitmap(durations, rows);
+		long previous = 0;
+		for (int i = 0; i < rows; i++) {
+			if (files != null) {
+				row.file = ColumnarFormat.readVarInt(files);
+			}
+			if (sessions != null) {
+				row.session = ColumnarFormat.readVarInt(sessions);
+			}
+			if (types != null) {
+				row.type = ColumnarFormat.readVarInt(types);
+			}
+			if (profiles != null) {
+				row.profile = ColumnarFormat.readVarInt(profiles);
+			}
+			if (times != null) {
+				row.hasTriggeredAt = isSet(timeBitmap, i);
+				if (row.hasTriggeredAt) {
+					previous += ColumnarFormat.unzigzag(ColumnarFormat.readVarLong(times));
+					row.triggeredAt = previous;
+					if (offsets != null) {
+						row.zoneOffset = (int) ColumnarFormat.unzigzag(ColumnarFormat.readVarLong(offsets));
+					}
+				}
+			}
+			if (durations != null) {
+				row.hasDuration = isSet(durationBitmap, i);
+				row.duration = row.hasDuration ? ColumnarFormat.unzigzag(ColumnarFormat.readVarLong(durations)) : 0;
+			}
+			if (allTimes || (row.hasTriggeredAt && row.triggeredAt >= from && row.triggeredAt <= to)) {
+				visitor.visit(row);
+			}
+		}
+	}
+
+	private static byte[] bitmap(ByteBuffer column, int rows) {
+		byte[] bitmap = new byte[(rows + 7) / 8];
+		column.get(bitmap);
+		return bitmap;
+	}
+
+	private static boolean isSet(byte[] bitmap, int i) {
+		return (bitmap[i >> 3] & (1 << (i & 7))) != 0;
+	}
+
+	private String lookup(Column column, int id) {
+		return id == 0 ? null : dictionaries.get(column).get(id - 1);
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (in.read(buf, position + buf.position()) < 0) {
+				throw new IOException("unexpected end of " + file);
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+}
@@ -0,0 +1,376 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import cc.kave.commons.model.events.userprofiles.UserProfileEvent;
+import examples.ColumnarFormat.Buffer;
+import examples.ColumnarFormat.Column;
+import examples.ColumnarFormat.RowGroup;
+
+/**
+ * Writes the rows of events.csv in the columnar format described in
+ * {@link ColumnarFormat}. It is registered as a handler for all event types;
+ * each zip collects its rows in its {@link ZipContext} and hands them over in
+ * blocks, so the workers only synchronize once per block. The rows are written
+ * in row groups of a fixed size. At every checkpoint (and when the writer is
+ * closed) the pending rows are written as a row group, followed by a footer
+ * with the dictionary values and row groups added since the last checkpoint,
+ * and the file is synced. The rows up to the last checkpoint survive a crash.
+ * 
+ * When appending, the footers of the existing file are read and the new row
+ * groups are written after the last complete one.
+ */
+public class ColumnarEventWriter implements EventHandler, Closeable {
+
+	static final int ZIP_BLOCK_ROWS = 4096;
+
+	/**
+	 * rows of one zip that are not yet handed to the writer
+	 */
+	static final class ZipRows {
+		final String[] sessions = new String[ZIP_BLOCK_ROWS];
+		final String[] types = new String[ZIP_BLOCK_ROWS];
+		final String[] profiles = new String[ZIP_BLOCK_ROWS];
+		final ZonedDateTime[] triggeredAt = new ZonedDateTime[ZIP_BLOCK_ROWS];
+		final long[] durations = new long[ZIP_BLOCK_ROWS];
+		final boolean[] hasDuration = new boolean[ZIP_BLOCK_ROWS];
+		int size;
+	}
+
+	private static final class Dictionary {
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		final List<String> values = new ArrayList<String>();
+
+		int idOf(String s) {
+			if (s == null) {
+				return 0;
+			}
+			Integer id = ids.get(s);
+			if (id == null) {
+				id = values.size();
+				values.add(s);
+				ids.put(s, id);
+			}
+			return id + 1;
+		}
+	}
+
+	private final File file;
+	private final int rowGroupSize;
+	private final RandomAccessFile raf;
+	private final FileChannel out;
+	private final Map<Column, Dictionary> dictionaries = new HashMap<Column, Dictionary>();
+	private final List<RowGroup> rowGroups = new ArrayList<RowGroup>();
+
+	// what is already in a footer
+	private final Map<Column, Integer> writtenValues = new HashMap<Column, Integer>();
+	private int writtenGroups;
+	private long lastFooterEnd = -1;
+
+	// the current row group
+	private final int[] files;
+	private final int[] sessions;
+	private final int[] types;
+	private final int[] profiles;
+	private final long[] millis;
+	private final int[] offsets;
+	private final boolean[] hasTriggeredAt;
+	private final long[] durations;
+	private final boolean[] hasDuration;
+	private int rows;
+	private boolean closed;
+
+	public ColumnarEventWriter(File file, int rowGroupSize, boolean append) throws IOException {
+		this.file = file;
+		this.rowGroupSize = rowGroupSize;
+		for (Column c : ColumnarFormat.DICTIONARY_COLUMNS) {
+			dictionaries.put(c, new Dictionary());
+		}
+		files = new int[rowGroupSize];
+		sessions = new int[rowGroupSize];
+		types = new int[rowGroupSize];
+		profiles = new int[rowGroupSize];
+		millis = new long[rowGroupSize];
+		offsets = new int[rowGroupSize];
+		hasTriggeredAt = new boolean[rowGroupSize];
+		durations = new long[rowGroupSize];
+		hasDuration = new boolean[rowGroupSize];
+
+		long end = 0;
+		if (append && file.length() > 0) {
+			try (ColumnarEventReader existing = ColumnarEventReader.open(file)) {
+				for (Column c : ColumnarFormat.DICTIONARY_COLUMNS) {
+					for (String value : existing.getDictionary(c)) {
+						dictionaries.get(c).idOf(value);
+					}
+				}
+				rowGroups.addAll(existing.getRowGroups());
+				end = existing.getEnd();
+				if (!rowGroups.isEmpty() || end > ColumnarFormat.HEADER_SIZE) {
+					lastFooterEnd = end;
+				}
+			}
+		}
+		for (Column c : ColumnarFormat.DICTIONARY_COLUMNS) {
+			writtenValues.put(c, dictionaries.get(c).values.size());
+		}
+		writtenGroups = rowGroups.size();
+		raf = new RandomAccessFile(file, "rw");
+		out = raf.getChannel();
+		if (end == 0) {
+			Buffer header = new Buffer();
+			header.writeBytes(ColumnarFormat.MAGIC, 0, ColumnarFormat.MAGIC.length);
+			header.writeInt(ColumnarFormat.VERSION);
+			out.truncate(0);
+			writeFully(header.asByteBuffer(), 0);
+			end = header.size;
+		} else {
+			// drops what was written after the last checkpoint
+			out.truncate(end);
+		}
+		out.position(end);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public boolean needsEvent(EventType type) {
+		return type == EventType.USER_PROFILE;
+	}
+
+	@Override
+	public void handle(EventRecord record, ZipContext zip) {
+		ZipRows block = zip.columnarRows;
+		if (block == null) {
+			block = zip.columnarRows = new ZipRows();
+		}
+		int i = block.size++;
+		block.sessions[i] = record.type == EventType.OTHER ? null : record.IDESessionUUID;
+		block.types[i] = record.typeName;
+		block.triggeredAt[i] = record.TriggeredAt;
+		// like in events.csv, with full precision
+		block.hasDuration[i] = record.type.hasDuration && record.Duration != null;
+		block.durations[i] = block.hasDuration[i] ? record.Duration.toMillis() : 0;
+		block.profiles[i] = record.type == EventType.USER_PROFILE ? ((UserProfileEvent) record.event).ProfileId
+				: null;
+		if (block.size == ZIP_BLOCK_ROWS) {
+			append(zip, block);
+		}
+	}
+
+	/**
+	 * Hands the remaining rows of the zip to the writer, called when the zip is
+	 * done.
+	 */
+	public void finishZip(ZipContext zip) {
+		ZipRows block = zip.columnarRows;
+		if (block != null && block.size > 0) {
+			append(zip, block);
+		}
+		zip.columnarRows = null;
+	}
+
+	private synchronized void append(ZipContext zip, ZipRows block) {
+		int file = dictionaries.get(Column.FILE).idOf(zip.path);
+		Dictionary sessionIds = dictionaries.get(Column.SESSION);
+		Dictionary typeIds = dictionaries.get(Column.TYPE);
+		Dictionary profileIds = dictionaries.get(Column.PROFILE);
+		for (int i = 0; i < block.size; i++) {
+			files[rows] = file;
+			sessions[rows] = sessionIds.idOf(block.sessions[i]);
+			types[rows] = typeIds.idOf(block.types[i]);
+			profiles[rows] = profileIds.idOf(block.profiles[i]);
+			ZonedDateTime t = block.triggeredAt[i];
+			hasTriggeredAt[rows] = t != null;
+			if (t != null) {
+				millis[rows] = t.toInstant().toEpochMilli();
+				offsets[rows] = t.getOffset().getTotalSeconds();
+			}
+			hasDuration[rows] = block.hasDuration[i];
+			durations[rows] = block.durations[i];
+			rows++;
+			if (rows == rowGroupSize) {
+				writeRowGroup();
+			}
+		}
+		block.size = 0;
+	}
+
+	private void writeRowGroup() {
+		Buffer group = new Buffer();
+		Buffer column = new Buffer();
+		int[] columnLengths = new int[Column.values().length];
+		long minTs = Long.MAX_VALUE;
+		long maxTs = Long.MIN_VALUE;
+		long minDuration = Long.MAX_VALUE;
+		long maxDuration = Long.MIN_VALUE;
+		for (Column c : Column.values()) {
+			column.clear();
+			switch (c) {
+			case FILE:
+				writeIds(column, files);
+				break;
+			case SESSION:
+				writeIds(column, sessions);
+				break;
+			case TYPE:
+				writeIds(column, types);
+				break;
+			case PROFILE:
+				writeIds(column, profiles);
+				break;
+			case TRIGGERED_AT:
+				writeBitmap(column, hasTriggeredAt);
+				long previous = 0;
+				for (int i = 0; i < rows; i++) {
+					if (hasTriggeredAt[i]) {
+						column.writeVarLong(ColumnarFormat.zigzag(millis[i] - previous));
+						previous = millis[i];
+						minTs = Math.min(minTs, millis[i]);
+						maxTs = Math.max(maxTs, millis[i]);
+					}
+				}
+				break;
+			case ZONE_OFFSET:
+				for (int i = 0; i < rows; i++) {
+					if (hasTriggeredAt[i]) {
+						column.writeVarLong(ColumnarFormat.zigzag(offsets[i]));
+					}
+				}
+				break;
+			case DURATION:
+				writeBitmap(column, hasDuration);
+				for (int i = 0; i < rows; i++) {
+					if (hasDuration[i]) {
+						column.writeVarLong(ColumnarFormat.zigzag(durations[i]));
+						minDuration = Math.min(minDuration, durations[i]);
+						maxDuration = Math.max(maxDuration, durations[i]);
+					}
+				}
+				break;
+			}
+			columnLengths[c.ordinal()] = column.size;
+			group.writeBytes(column.bytes, 0, column.size);
+		}
+		try {
+			long offset = out.position();
+			writeFully(group.asByteBuffer(), offset);
+			out.position(offset + group.size);
+			rowGroups.add(new RowGroup(offset, rows, columnLengths, minTs, maxTs, minDuration, maxDuration));
+		} catch (IOException e) {
+			throw new RuntimeException("cannot write to " + file, e);
+		}
+		rows = 0;
+	}
+
+	private void writeIds(Buffer column, int[] ids) {
+		for (int i = 0; i < rows; i++) {
+			column.writeVarLong(ids[i]);
+		}
+	}
+
+	private void writeBitmap(Buffer column, boolean[] present) {
+		for (int i = 0; i < rows; i += 8) {
+			int b = 0;
+			for (int j = 0; j < 8 && i + j < rows; j++) {
+				if (present[i + j]) {
+					b |= 1 << j;
+				}
+			}
+			column.writeByte(b);
+		}
+	}
+
+	/**
+	 * Writes the pending rows and a footer and syncs the file, so that all rows
+	 * handed over so far are kept if the process dies.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		if (rows > 0) {
+			writeRowGroup();
+		}
+		boolean changed = rowGroups.size() > writtenGroups;
+		for (Column c : ColumnarFormat.DICTIONARY_COLUMNS) {
+			changed |= dictionaries.get(c).values.size() > writtenValues.get(c);
+		}
+		if (!changed) {
+			return;
+		}
+		long footerOffset = out.position();
+		Buffer footer = new Buffer();
+		footer.writeLong(lastFooterEnd);
+		for (Column c : ColumnarFormat.DICTIONARY_COLUMNS) {
+			List<String> values = dictionaries.get(c).values;
+			int from = writtenValues.get(c);
+			footer.writeVarLong(values.size() - from);
+			for (String value : values.subList(from, values.size())) {
+				footer.writeString(value);
+			}
+			writtenValues.put(c, values.size());
+		}
+		footer.writeVarLong(rowGroups.size() - writtenGroups);
+		for (RowGroup g : rowGroups.subList(writtenGroups, rowGroups.size())) {
+			g.writeTo(footer);
+		}
+		writtenGroups = rowGroups.size();
+		CRC32 crc = new CRC32();
+		crc.update(footer.bytes, 0, footer.size);
+		footer.writeInt((int) crc.getValue());
+		footer.writeLong(footerOffset);
+		footer.writeBytes(ColumnarFormat.MAGIC, 0, ColumnarFormat.MAGIC.length);
+		writeFully(footer.asByteBuffer(), footerOffset);
+		lastFooterEnd = footerOffset + footer.size;
+		out.position(lastFooterEnd);
+		out.force(false);
+	}
+
+	/**
+	 * Writes the last row group and footer.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			checkpoint();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void writeFully(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			position += out.write(buf, position);
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The layout of the columnar events file, shared by
+ * {@link ColumnarEventWriter} and {@link ColumnarEventReader}.
+ * 
+ * <pre>
+ * file      := MAGIC version:int (rowGroup | footer)*
+ * rowGroup  := chunk{one per Column}
+ * footer    := previous:long dictionary{FILE, SESSION, TYPE, PROFILE} groupCount:varint groupInfo*
+ *              crc:int footerOffset:long MAGIC
+ * groupInfo := offset:long rows:varint length:varint{one per Column}
+ *              minTs maxTs minDuration maxDuration (zigzag varints)
+ * </pre>
+ * 
+ * File paths, session ids, type names and profile ids are stored as ids into
+ * dictionaries (id + 1, 0 for null). Timestamps are epoch millis, each stored
+ * as the difference to the previous one in the row group, plus the offset of
+ * their time zone. Timestamps and durations can be null, their columns start
+ * with a bitmap of the rows that have a value. All numbers are variable-length,
+ * small values take a single byte.
+ * 
+ * A footer is written at every checkpoint of the writer. It only holds the
+ * dictionary values and row groups added since the previous footer (which
+ * ends at previous, -1 for the first), so the footers form a chain from the
+ * last one back to the first. The crc (CRC32 of the footer up to the crc)
+ * tells a complete footer from one that was cut off by a crash; everything
+ * after the last complete footer is ignored.
+ */
+public class ColumnarFormat {
+
+	static final byte[] MAGIC = { 'K', 'V', 'E', 'C' };
+	static final int VERSION = 2;
+
+	/**
+	 * the magic and version at the start of the file
+	 */
+	static final int HEADER_SIZE = MAGIC.length + 4;
+
+	/**
+	 * crc, footerOffset and magic at the end of a footer
+	 */
+	static final int TRAILER_SIZE = 4 + 8 + MAGIC.length;
+
+	public enum Column {
+		FILE, SESSION, TYPE, TRIGGERED_AT, ZONE_OFFSET, DURATION, PROFILE
+	}
+
+	static final Column[] DICTIONARY_COLUMNS = { Column.FILE, Column.SESSION, Column.TYPE, Column.PROFILE };
+
+	/**
+	 * Where a row group and each of its column chunks are stored, and the range
+	 * of its timestamps (epoch millis) and durations (millis). If no row has a
+	 * value, min is Long.MAX_VALUE and max is Long.MIN_VALUE.
+	 */
+	public static class RowGroup {
+		public final long offset;
+		public final int length;
+		public final int rows;
+		public final long minTriggeredAt;
+		public final long maxTriggeredAt;
+		public final long minDuration;
+		public final long maxDuration;
+		private final int[] columnLengths;
+
+		RowGroup(long offset, int rows, int[] columnLengths, long minTriggeredAt, long maxTriggeredAt,
+				long minDuration, long maxDuration) {
+			this.offset = offset;
+			this.rows = rows;
+			this.columnLengths = columnLengths;
+			int length = 0;
+			for (int l : columnLengths) {
+				length += l;
+			}
+			this.length = length;
+			this.minTriggeredAt = minTriggeredAt;
+			this.maxTriggeredAt = maxTriggeredAt;
+			this.minDuration = minDuration;
+			this.maxDuration = maxDuration;
+		}
+
+		/**
+		 * false if no row of the group can have a timestamp in [from, to]
+		 */
+		public boolean overlaps(long from, long to) {
+			return minTriggeredAt <= to && maxTriggeredAt >= from;
+		}
+
+		/**
+		 * where the chunk of the column starts in the file
+		 */
+		public long getColumnOffset(Column c) {
+			long position = offset;
+			for (int i = 0; i < c.ordinal(); i++) {
+				position += columnLengths[i];
+			}
+			return position;
+		}
+
+		public int getColumnLength(Column c) {
+			return columnLengths[c.ordinal()];
+		}
+
+		void writeTo(Buffer out) {
+			out.writeLong(offset);
+			out.writeVarLong(rows);
+			for (int l : columnLengths) {
+				out.writeVarLong(l);
+			}
+			out.writeVarLong(zigzag(minTriggeredAt));
+			out.writeVarLong(zigzag(maxTriggeredAt));
+			out.writeVarLong(zigzag(minDuration));
+			out.writeVarLong(zigzag(maxDuration));
+		}
+
+		static RowGroup readFrom(ByteBuffer in) {
+			long offset = in.getLong();
+			int rows = readVarInt(in);
+			int[] columnLengths = new int[Column.values().length];
+			for (int i = 0; i < columnLengths.length; i++) {
+				columnLengths[i] = readVarInt(in);
+			}
+			return new RowGroup(offset, rows, columnLengths, unzigzag(readVarLong(in)), unzigzag(readVarLong(in)),
+					unzigzag(readVarLong(in)), unzigzag(readVarLong(in)));
+		}
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static long readVarLong(ByteBuffer in) {
+		long v = 0;
+		int shift = 0;
+		while (true) {
+			byte b = in.get();
+			v |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return v;
+			}
+			shift += 7;
+		}
+	}
+
+	static int readVarInt(ByteBuffer in) {
+		return (int) readVarLong(in);
+	}
+
+	static String readString(ByteBuffer in) {
+		int length = readVarInt(in);
+		String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return s;
+	}
+
+	/**
+	 * A growable byte buffer for encoding a column or the footer.
+	 */
+	static final class Buffer {
+		byte[] bytes = new byte[1024];
+		int size;
+
+		void clear() {
+			size = 0;
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			bytes[size++] = (byte) b;
+		}
+
+		void writeBytes(byte[] b, int offset, int length) {
+			ensure(length);
+			System.arraycopy(b, offset, bytes, size, length);
+			size += length;
+		}
+
+		void writeVarLong(long v) {
+			ensure(10);
+			while ((v & ~0x7fL) != 0) {
+				bytes[size++] = (byte) ((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			bytes[size++] = (byte) v;
+		}
+
+		void writeInt(int v) {
+			ensure(4);
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				bytes[size++] = (byte) (v >>> shift);
+			}
+		}
+
+		void writeLong(long v) {
+			ensure(8);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				bytes[size++] = (byte) (v >>> shift);
+			}
+		}
+
+		void writeString(String s) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(b.length);
+			writeBytes(b, 0, b.length);
+		}
+
+		ByteBuffer asByteBuffer() {
+			return ByteBuffer.wrap(bytes, 0, size);
+		}
+
+		private void ensure(int n) {
+			if (size + n > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+			}
+		}
+	}
+}
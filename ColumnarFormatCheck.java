@@ -0,0 +1,148 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import examples.ColumnarFormat.Column;
+
+/**
+ * Checks that the columnar events file survives what happens to it in real
+ * runs: it writes rows, reopens the file and appends to it, cuts it off in the
+ * middle of a row group as a crash would, and reads it back after each step,
+ * comparing every column with the rows that were written. Exits with an
+ * exception at the first difference.
+ */
+public class ColumnarFormatCheck {
+
+	private static final ZonedDateTime START = ZonedDateTime.parse("2016-05-01T10:00:00+02:00");
+
+	public static void main(String[] args) throws IOException {
+		File dir = Files.createTempDirectory("columnar").toFile();
+		File file = new File(dir, "events.col");
+		List<String> expected = new ArrayList<String>();
+
+		// a small row group size, so the zips span several groups
+		try (ColumnarEventWriter w = new ColumnarEventWriter(file, 100, true)) {
+			write(w, "u0/a.zip", 0, 250, expected);
+			w.checkpoint();
+			write(w, "u0/b.zip", 250, 30, expected);
+		}
+		check(read(file), expected, "after the first run");
+
+		try (ColumnarEventWriter w = new ColumnarEventWriter(file, 100, true)) {
+			write(w, "u1/c.zip", 280, 120, expected);
+		}
+		check(read(file), expected, "after appending");
+
+		// a run that dies after its checkpoint, in the middle of the next group
+		ColumnarEventWriter w = new ColumnarEventWriter(file, 100, true);
+		write(w, "u1/d.zip", 400, 50, expected);
+		w.checkpoint();
+		List<String> lost = new ArrayList<String>();
+		write(w, "u1/e.zip", 450, 150, lost);
+		try (FileOutputStream torn = new FileOutputStream(file, true)) {
+			torn.write(new byte[] { 'K', 'V', 'E', 'C', 1, 2, 3 });
+		}
+		check(read(file), expected, "after a crash");
+
+		try (ColumnarEventWriter again = new ColumnarEventWriter(file, 100, true)) {
+			write(again, "u1/e.zip", 450, 150, expected);
+		}
+		check(read(file), expected, "after the restart");
+
+		// a time range within one group: events 120 to 129, without 124 and 129
+		final List<String> types = new ArrayList<String>();
+		try (ColumnarEventReader r = ColumnarEventReader.open(file)) {
+			long from = START.plusSeconds(120).toInstant().toEpochMilli();
+			long to = START.plusSeconds(129).toInstant().toEpochMilli();
+			r.scan(from, to, EnumSet.of(Column.TYPE), new ColumnarEventReader.RowVisitor() {
+				@Override
+				public void visit(ColumnarEventReader.Row row) {
+					types.add(row.getType());
+				}
+			});
+		}
+		if (types.size() != 8) {
+			throw new IllegalStateException("expected 8 rows in the time range, got " + types.size());
+		}
+
+		file.delete();
+		dir.delete();
+		System.out.println("columnar format: " + expected.size() + " rows read back correctly");
+	}
+
+	/*
+	 * every fifth event has no time, every third no duration
+	 */
+	private static void write(ColumnarEventWriter w, String path, int first, int count, List<String> expected) {
+		ZipContext zip = new ZipContext(path);
+		EventRecord r = new EventRecord();
+		for (int i = first; i < first + count; i++) {
+			r.type = i % 2 == 0 ? EventType.COMMAND : EventType.BUILD;
+			r.typeName = r.type.typeName;
+			r.IDESessionUUID = "s" + i / 40;
+			r.TriggeredAt = i % 5 == 4 ? null : START.plusSeconds(i);
+			r.Duration = i % 3 == 2 ? null : Duration.ofMillis(i * 7);
+			w.handle(r, zip);
+			// like in events.csv, only types with a duration have one
+			boolean hasDuration = r.type.hasDuration && r.Duration != null;
+			expected.add(row(zip.path, r.IDESessionUUID, r.typeName, r.TriggeredAt,
+					hasDuration ? r.Duration.toMillis() : null));
+		}
+		w.finishZip(zip);
+	}
+
+	private static String row(String file, String session, String type, ZonedDateTime t, Long duration) {
+		return file + "," + session + "," + type + "," + (t == null ? null : t.toInstant()) + ","
+				+ (t == null ? null : t.getOffset()) + "," + duration;
+	}
+
+	private static List<String> read(File file) throws IOException {
+		final List<String> rows = new ArrayList<String>();
+		try (ColumnarEventReader r = ColumnarEventReader.open(file)) {
+			r.scan(EnumSet.allOf(Column.class), new ColumnarEventReader.RowVisitor() {
+				@Override
+				public void visit(ColumnarEventReader.Row row) {
+					rows.add(row(row.getFile(), row.getSession(), row.getType(), row.getTriggeredAt(),
+							row.hasDuration() ? row.getDurationMillis() : null));
+				}
+			});
+		}
+		return rows;
+	}
+
+	private static void check(List<String> actual, List<String> expected, String when) {
+		if (!actual.equals(expected)) {
+			for (int i = 0; i < Math.min(actual.size(), expected.size()); i++) {
+				if (!actual.get(i).equals(expected.get(i))) {
+					throw new IllegalStateException(when + ", row " + i + ": expected " + expected.get(i)
+							+ " but read " + actual.get(i));
+				}
+			}
+			throw new IllegalStateException(
+					when + ": expected " + expected.size() + " rows but read " + actual.size());
+		}
+	}
+}
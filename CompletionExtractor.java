@@ -0,0 +1,527 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import cc.kave.commons.model.events.completionevents.CompletionEvent;
+import cc.kave.commons.model.events.completionevents.IProposalSelection;
+import cc.kave.commons.model.naming.IName;
+import examples.ColumnarFormat.Buffer;
+
+/**
+ * Writes the selections of all CompletionEvents to a compact binary file,
+ * instead of one CSV row per event with the text of every selected proposal.
+ * Proposal names (and the trigger and termination of a completion) are kept
+ * once in a dictionary file ("&lt;file&gt;.names", one name per line), the
+ * events only refer to them by id.
+ * 
+ * <pre>
+ * file      := MAGIC version:int block*
+ * block     := length:int crc:int zip:string events:varint event*
+ * event     := triggeredAt:varint terminatedBy:varint terminatedState:varint selections:varint selection*
+ * selection := proposal:varint selectedAfter:varint
+ * </pre>
+ * 
+ * There is one block per zip; its length and CRC32 cover what follows them.
+ * Names are stored as id + 1 (0 for null). The
+ * time of an event is epoch millis + 1 (0 for null), as the zigzag difference
+ * to that of the previous event of the block; selectedAfter is millis + 1 (0
+ * for null).
+ * 
+ * New names are synced before the first block that uses them is written, and
+ * {@link #sync()} syncs the blocks. A block or name that was cut off by a
+ * crash is removed when the file is opened again.
+ * 
+ * While the blocks are written, selection statistics are collected per
+ * proposal. They are written at the end of a run and cover the zips that were
+ * read in the run; {@link #main(String[])} computes them for a whole file.
+ */
+public class CompletionExtractor implements EventHandler, Closeable {
+
+	static final byte[] MAGIC = { 'K', 'V', 'C', 'S' };
+	static final int VERSION = 2;
+
+	static final String APPLIED = "Applied";
+	static final String STATS_HEADER = "proposal,events,selections,applied,meanFirstSelectionMs\n";
+
+	/**
+	 * the encoded completions of the zip that is currently read
+	 */
+	static final class ZipBlock {
+		final Buffer events = new Buffer();
+		int count;
+		long previous;
+	}
+
+	/**
+	 * Selection counts per proposal id, updated block by block.
+	 */
+	static final class ProposalStats {
+		long[] events = new long[0];
+		long[] selections = new long[0];
+		long[] applied = new long[0];
+		long[] firstSelectionMillis = new long[0];
+		long[] firstSelections = new long[0];
+		int[] lastEvent = new int[0];
+		int eventSerial;
+		long completions;
+		int blocks;
+
+		/**
+		 * @param appliedId
+		 *            the id of "Applied", or -1 if it is not in the dictionary
+		 */
+		void addBlock(ByteBuffer in, int count, int appliedId) {
+			blocks++;
+			for (int i = 0; i < count; i++) {
+				completions++;
+				eventSerial++;
+				ColumnarFormat.readVarLong(in); // triggeredAt
+				ColumnarFormat.readVarInt(in); // terminatedBy
+				int state = ColumnarFormat.readVarInt(in) - 1;
+				int n = ColumnarFormat.readVarInt(in);
+				int last = -1;
+				for (int s = 0; s < n; s++) {
+					int id = ColumnarFormat.readVarInt(in) - 1;
+					long after = ColumnarFormat.readVarLong(in) - 1;
+					if (id < 0) {
+						continue;
+					}
+					ensure(id + 1);
+					selections[id]++;
+					if (lastEvent[id] != eventSerial) {
+						lastEvent[id] = eventSerial;
+						events[id]++;
+						if (after >= 0) {
+							firstSelectionMillis[id] += after;
+							firstSelections[id]++;
+						}
+					}
+					last = id;
+				}
+				if (last >= 0 && state == appliedId && appliedId >= 0) {
+					applied[last]++;
+				}
+			}
+		}
+
+		private void ensure(int size) {
+			if (size <= events.length) {
+				return;
+			}
+			int n = Math.max(size, events.length * 2);
+			events = Arrays.copyOf(events, n);
+			selections = Arrays.copyOf(selections, n);
+			applied = Arrays.copyOf(applied, n);
+			firstSelectionMillis = Arrays.copyOf(firstSelectionMillis, n);
+			firstSelections = Arrays.copyOf(firstSelections, n);
+			lastEvent = Arrays.copyOf(lastEvent, n);
+		}
+
+		/**
+		 * Writes one row per proposal that was selected, the most frequent first.
+		 * 
+		 * @return the number of rows
+		 */
+		int writeTo(CsvSink out, final List<String> names) {
+			out.writeHeader(STATS_HEADER);
+			List<Integer> ids = new ArrayList<Integer>();
+			for (int id = 0; id < events.length; id++) {
+				if (events[id] > 0) {
+					ids.add(id);
+				}
+			}
+			Collections.sort(ids, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int c = Long.compare(events[b], events[a]);
+					return c != 0 ? c : names.get(a).compareTo(names.get(b));
+				}
+			});
+			StringBuilder sb = new StringBuilder(256);
+			for (int id : ids) {
+				sb.setLength(0);
+				sb.append(CsvSink.field(names.get(id))).append(',').append(events[id]).append(',')
+						.append(selections[id]).append(',').append(applied[id]).append(',');
+				if (firstSelections[id] > 0) {
+					sb.append(firstSelectionMillis[id] / firstSelections[id]);
+				}
+				out.write(sb.append('\n').toString());
+			}
+			return ids.size();
+		}
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel out;
+	private final FileOutputStream namesFileOut;
+	private final Writer namesOut;
+	private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+	private int writtenNames;
+	private final ProposalStats stats = new ProposalStats();
+
+	/**
+	 * Opens the file and its dictionary; blocks are appended to an existing
+	 * file.
+	 */
+	public CompletionExtractor(File file) throws IOException {
+		this.file = file;
+		File namesFile = namesFile(file);
+		if (file.length() == 0) {
+			namesFile.delete();
+		} else {
+			dropTornLine(namesFile);
+			names.addAll(readNames(namesFile));
+			for (int id = 0; id < names.size(); id++) {
+				ids.put(names.get(id), id);
+			}
+			writtenNames = names.size();
+		}
+		raf = new RandomAccessFile(file, "rw");
+		out = raf.getChannel();
+		if (raf.length() == 0) {
+			Buffer header = new Buffer();
+			header.writeBytes(MAGIC, 0, MAGIC.length);
+			header.writeInt(VERSION);
+			writeFully(header.asByteBuffer());
+		} else {
+			checkHeader(out, file);
+			long end = validLength(out);
+			if (end < raf.length()) {
+				System.err.printf("%s: dropped %d bytes of a block that was cut off\n", file, raf.length() - end);
+				raf.setLength(end);
+			}
+			out.position(end);
+		}
+		namesFileOut = new FileOutputStream(namesFile, true);
+		namesOut = new OutputStreamWriter(namesFileOut, StandardCharsets.UTF_8);
+	}
+
+	static File namesFile(File file) {
+		return new File(file.getPath() + ".names");
+	}
+
+	static List<String> readNames(File namesFile) throws IOException {
+		List<String> names = new ArrayList<String>();
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(new FileInputStream(namesFile), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				names.add(line);
+			}
+		}
+		return names;
+	}
+
+	/*
+	 * removes a last name that was cut off before its line break
+	 */
+	private static void dropTornLine(File namesFile) throws IOException {
+		if (!namesFile.exists()) {
+			return;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(namesFile, "rw")) {
+			long end = raf.length();
+			while (end > 0) {
+				raf.seek(end - 1);
+				if (raf.read() == '\n') {
+					break;
+				}
+				end--;
+			}
+			raf.setLength(end);
+		}
+	}
+
+	/*
+	 * the end of the last complete block
+	 */
+	private static long validLength(FileChannel in) throws IOException {
+		long size = in.size();
+		long position = MAGIC.length + 4;
+		ByteBuffer head = ByteBuffer.allocate(8);
+		while (position + 8 <= size) {
+			head.clear();
+			readFully(in, head, position);
+			int length = head.getInt(0);
+			if (length < 0 || position + 8 + length > size) {
+				break;
+			}
+			ByteBuffer block = ByteBuffer.allocate(length);
+			readFully(in, block, position + 8);
+			CRC32 crc = new CRC32();
+			crc.update(block.array(), 0, length);
+			if ((int) crc.getValue() != head.getInt(4)) {
+				break;
+			}
+			position += 8 + length;
+		}
+		return position;
+	}
+
+	private static void readFully(FileChannel in, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			if (in.read(buf, position + buf.position()) < 0) {
+				throw new IOException("unexpected end of file");
+			}
+		}
+	}
+
+	private static void checkHeader(FileChannel in, File file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4);
+		in.read(header, 0);
+		header.flip();
+		byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("not a completions file: " + file);
+		}
+		int version = header.getInt();
+		if (version != VERSION) {
+			throw new IOException("completions file of version " + version + ", expected " + VERSION + ": " + file);
+		}
+	}
+
+	@Override
+	public boolean needsEvent(EventType type) {
+		return type == EventType.COMPLETION;
+	}
+
+	@Override
+	public void handle(EventRecord r, ZipContext zip) {
+		CompletionEvent ce = (CompletionEvent) r.event;
+		ZipBlock block = zip.completions;
+		if (block == null) {
+			block = zip.completions = new ZipBlock();
+		}
+		Buffer b = block.events;
+		long time = r.TriggeredAt == null ? 0 : r.TriggeredAt.toInstant().toEpochMilli() + 1;
+		b.writeVarLong(ColumnarFormat.zigzag(time - block.previous));
+		block.previous = time;
+		b.writeVarLong(id(ce.terminatedBy == null ? null : ce.terminatedBy.toString()) + 1);
+		b.writeVarLong(id(ce.terminatedState == null ? null : ce.terminatedState.toString()) + 1);
+		List<IProposalSelection> selections = ce.selections;
+		int n = selections == null ? 0 : selections.size();
+		b.writeVarLong(n);
+		for (int i = 0; i < n; i++) {
+			IProposalSelection s = selections.get(i);
+			IName name = s.getProposal() == null ? null : s.getProposal().getName();
+			b.writeVarLong(id(name == null ? null : name.getIdentifier()) + 1);
+			b.writeVarLong(s.getSelectedAfter() == null ? 0 : s.getSelectedAfter().toMillis() + 1);
+		}
+		block.count++;
+	}
+
+	/*
+	 * the id of a name in the dictionary, -1 for null
+	 */
+	int id(String name) {
+		if (name == null) {
+			return -1;
+		}
+		// one name per line, as it is read back from the dictionary
+		String key = name.indexOf('\n') < 0 && name.indexOf('\r') < 0 ? name
+				: name.replace('\n', ' ').replace('\r', ' ');
+		Integer id = ids.get(key);
+		if (id != null) {
+			return id;
+		}
+		synchronized (names) {
+			id = ids.get(key);
+			if (id == null) {
+				id = names.size();
+				names.add(key);
+				ids.put(key, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Writes the block of a zip that is done, after the names it uses.
+	 */
+	public synchronized void finishZip(ZipContext zip) {
+		ZipBlock block = zip.completions;
+		zip.completions = null;
+		if (block == null) {
+			return;
+		}
+		try {
+			writeNewNames();
+			Buffer header = new Buffer();
+			header.writeString(zip.path);
+			header.writeVarLong(block.count);
+			CRC32 crc = new CRC32();
+			crc.update(header.bytes, 0, header.size);
+			crc.update(block.events.bytes, 0, block.events.size);
+			Buffer b = new Buffer();
+			b.writeInt(header.size + block.events.size);
+			b.writeInt((int) crc.getValue());
+			b.writeBytes(header.bytes, 0, header.size);
+			b.writeBytes(block.events.bytes, 0, block.events.size);
+			writeFully(b.asByteBuffer());
+		} catch (IOException e) {
+			throw new RuntimeException("cannot write the completions of " + zip.path, e);
+		}
+		Integer applied = ids.get(APPLIED);
+		stats.addBlock(block.events.asByteBuffer(), block.count, applied == null ? -1 : applied);
+	}
+
+	private void writeNewNames() throws IOException {
+		List<String> added;
+		synchronized (names) {
+			added = new ArrayList<String>(names.subList(writtenNames, names.size()));
+		}
+		if (added.isEmpty()) {
+			return;
+		}
+		for (String name : added) {
+			namesOut.write(name);
+			namesOut.write('\n');
+		}
+		namesOut.flush();
+		// before a block refers to them
+		namesFileOut.getChannel().force(false);
+		writtenNames += added.size();
+	}
+
+	/**
+	 * Makes the blocks written so far durable.
+	 */
+	public synchronized void sync() throws IOException {
+		out.force(false);
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes the statistics of the proposals selected in this run.
+	 * 
+	 * @return the number of proposals
+	 */
+	public synchronized int writeStats(CsvSink output) {
+		List<String> snapshot;
+		synchronized (names) {
+			snapshot = new ArrayList<String>(names);
+		}
+		return stats.writeTo(output, snapshot);
+	}
+
+	/**
+	 * Writes the statistics of all proposals in the file, including the blocks
+	 * of earlier runs.
+	 * 
+	 * @return the number of proposals
+	 */
+	public synchronized int writeFileStats(CsvSink output) throws IOException {
+		writeNewNames();
+		List<String> snapshot;
+		synchronized (names) {
+			snapshot = new ArrayList<String>(names);
+		}
+		return readStats(file, snapshot).writeTo(output, snapshot);
+	}
+
+	public synchronized String getSummary() throws IOException {
+		return String.format("completions: %d events, %d names, %d bytes", stats.completions, names.size(),
+				out.size());
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writeNewNames();
+		namesOut.close();
+		raf.close();
+	}
+
+	/**
+	 * Computes the statistics of all proposals in a completions file.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("usage: CompletionExtractor <completions file> <stats csv>");
+			return;
+		}
+		File file = new File(args[0]);
+		List<String> names = readNames(namesFile(file));
+		ProposalStats stats = readStats(file, names);
+		try (CsvSink out = new CsvSink(new File(args[1]), CsvSink.DEFAULT_BUFFER_SIZE,
+				CsvSink.DEFAULT_FLUSH_INTERVAL_MS, false)) {
+			int rows = stats.writeTo(out, names);
+			System.out.printf("%d zips, %d completions, %d proposals\n", stats.blocks, stats.completions, rows);
+		}
+	}
+
+	/**
+	 * Reads all blocks of a completions file.
+	 * 
+	 * @param names
+	 *            the dictionary of the file
+	 */
+	static ProposalStats readStats(File file, List<String> names) throws IOException {
+		ProposalStats stats = new ProposalStats();
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			FileChannel channel = in.getChannel();
+			checkHeader(channel, file);
+			// without a block that was cut off
+			ByteBuffer all = channel.map(FileChannel.MapMode.READ_ONLY, 0, validLength(channel));
+			all.position(MAGIC.length + 4);
+			while (all.hasRemaining()) {
+				int length = all.getInt();
+				all.getInt(); // crc
+				ByteBuffer block = all.slice();
+				block.limit(length);
+				all.position(all.position() + length);
+				int pathLength = ColumnarFormat.readVarInt(block);
+				block.position(block.position() + pathLength);
+				int count = ColumnarFormat.readVarInt(block);
+				stats.addBlock(block, count, names.indexOf(APPLIED));
+			}
+		}
+		return stats;
+	}
+}
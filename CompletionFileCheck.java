@@ -0,0 +1,163 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import cc.kave.commons.model.events.IIDEEvent;
+import cc.kave.commons.model.events.completionevents.CompletionEvent;
+import cc.kave.commons.model.events.completionevents.IProposalSelection;
+import cc.kave.commons.utils.io.json.JsonUtils;
+
+/**
+ * Checks that the completions file survives what happens to it in real runs:
+ * it writes zips, reopens the file and appends to it, cuts off a block and a
+ * name as a crash would, and reads the file back after each step, comparing
+ * the selections per proposal with the events that were written. Exits with
+ * an exception at the first difference.
+ */
+public class CompletionFileCheck {
+
+	private static final ZonedDateTime START = ZonedDateTime.parse("2016-05-01T10:00:00+02:00");
+
+	public static void main(String[] args) throws IOException {
+		File dir = Files.createTempDirectory("completions").toFile();
+		File file = new File(dir, "completions.bin");
+		Random rnd = new Random(42);
+		Map<String, String> expected = new TreeMap<String, String>();
+		int completions = 0;
+
+		try (CompletionExtractor c = new CompletionExtractor(file)) {
+			completions += write(c, "u0/a.zip", events(rnd, 0, 80), expected);
+			completions += write(c, "u0/b.zip", events(rnd, 80, 40), expected);
+			// names with line breaks are stored with spaces, and keep their id
+			int id = c.id("Name\nwith a line break");
+			if (c.id("Name\nwith a line break") != id || c.id("Name with a line break") != id) {
+				throw new IllegalStateException("a name with a line break got more than one id");
+			}
+		}
+		check(file, expected, completions, "after the first run");
+
+		try (CompletionExtractor c = new CompletionExtractor(file)) {
+			completions += write(c, "u1/c.zip", events(rnd, 120, 60), expected);
+			if (c.id("Name\nwith a line break") != c.id("Name with a line break")) {
+				throw new IllegalStateException("a name with a line break got a new id after reopening");
+			}
+		}
+		check(file, expected, completions, "after appending");
+
+		// a run that dies while writing a block and a new name
+		CompletionExtractor crashed = new CompletionExtractor(file);
+		completions += write(crashed, "u1/d.zip", events(rnd, 180, 30), expected);
+		crashed.sync();
+		try (FileOutputStream torn = new FileOutputStream(file, true)) {
+			torn.write(new byte[] { 0, 0, 4, 0, 1, 2, 3, 4, 5 });
+		}
+		try (FileOutputStream torn = new FileOutputStream(CompletionExtractor.namesFile(file), true)) {
+			torn.write("0M:[p:void] [T, P].Torn(".getBytes("UTF-8"));
+		}
+		try (CompletionExtractor c = new CompletionExtractor(file)) {
+			completions += write(c, "u1/e.zip", events(rnd, 210, 50), expected);
+		}
+		check(file, expected, completions, "after the restart");
+
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+		System.out.println("completions file: " + completions + " completions read back correctly");
+	}
+
+	private static List<CompletionEvent> events(Random rnd, int first, int count) {
+		List<CompletionEvent> events = new ArrayList<CompletionEvent>();
+		for (int i = first; i < first + count; i++) {
+			String json = BenchmarkFixtures.completionEvent(rnd, i, 1 + rnd.nextInt(8));
+			events.add((CompletionEvent) JsonUtils.fromJson(json, IIDEEvent.class));
+		}
+		return events;
+	}
+
+	/*
+	 * writes the events as one zip and counts the events and selections per
+	 * proposal, as "events,selections"
+	 */
+	private static int write(CompletionExtractor c, String path, List<CompletionEvent> events,
+			Map<String, String> expected) {
+		ZipContext zip = new ZipContext(path);
+		EventRecord r = new EventRecord();
+		for (int i = 0; i < events.size(); i++) {
+			CompletionEvent ce = events.get(i);
+			r.type = EventType.COMPLETION;
+			r.typeName = r.type.typeName;
+			r.event = ce;
+			r.TriggeredAt = i % 5 == 4 ? null : START.plusSeconds(i);
+			c.handle(r, zip);
+			List<String> selected = new ArrayList<String>();
+			for (IProposalSelection s : ce.selections) {
+				String name = s.getProposal().getName().getIdentifier();
+				long[] counts = parse(expected.get(name));
+				counts[0] += selected.contains(name) ? 0 : 1;
+				counts[1]++;
+				expected.put(name, counts[0] + "," + counts[1]);
+				selected.add(name);
+			}
+		}
+		c.finishZip(zip);
+		return events.size();
+	}
+
+	private static long[] parse(String counts) {
+		if (counts == null) {
+			return new long[2];
+		}
+		String[] parts = counts.split(",");
+		return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) };
+	}
+
+	private static void check(File file, Map<String, String> expected, int completions, String when)
+			throws IOException {
+		List<String> names = CompletionExtractor.readNames(CompletionExtractor.namesFile(file));
+		CompletionExtractor.ProposalStats stats = CompletionExtractor.readStats(file, names);
+		if (stats.completions != completions) {
+			throw new IllegalStateException(
+					when + ": expected " + completions + " completions but read " + stats.completions);
+		}
+		Map<String, String> actual = new TreeMap<String, String>();
+		for (int id = 0; id < stats.events.length; id++) {
+			if (stats.events[id] > 0) {
+				actual.put(names.get(id), stats.events[id] + "," + stats.selections[id]);
+			}
+		}
+		if (!actual.equals(expected)) {
+			for (Map.Entry<String, String> e : expected.entrySet()) {
+				if (!e.getValue().equals(actual.get(e.getKey()))) {
+					throw new IllegalStateException(when + ", " + e.getKey() + ": expected " + e.getValue()
+							+ " but read " + actual.get(e.getKey()));
+				}
+			}
+			throw new IllegalStateException(when + ": read proposals that were not selected");
+		}
+	}
+}
@@ -0,0 +1,392 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An append-only CSV file that stays open for a whole run. Rows are collected
+ * in a large buffer and only written to disk when the buffer passes a size
+ * threshold or when the last flush is older than a time threshold. Rows that
+ * are already encoded (see {@link RowEncoder}) are written to the file channel
+ * directly.
+ *
+ * If a write fails, the pending rows are kept and the file is reopened on the
+ * next flush. Rows that still cannot be written when the sink is closed are
+ * saved next to the file (suffix ".unwritten") instead of being dropped.
+ * 
+ * The rows of a single zip can be collected in a staging sink (see
+ * {@link #staging(File)}) and then appended in one piece, so that they are
+ * contiguous in the file and can be cut off or removed again.
+ */
+public class CsvSink implements Closeable {
+
+	static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+	static final long DEFAULT_FLUSH_INTERVAL_MS = 5000;
+	static final int STAGING_BUFFER_SIZE = 1024 * 1024;
+
+	private static final LongAdder WRITE_NANOS = new LongAdder();
+
+	private final File file;
+	private final int bufferSize;
+	private final long flushIntervalMs;
+	private byte[] pending;
+	private int pendingLength;
+	private boolean append;
+	private FileChannel out;
+	private long lastFlush;
+	private int failedFlushes;
+	private boolean closed;
+	private boolean staging;
+
+	public CsvSink(String fileName) {
+		this(new File(fileName), DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_INTERVAL_MS);
+	}
+
+	public CsvSink(File file, int bufferSize, long flushIntervalMs) {
+		this(file, bufferSize, flushIntervalMs, true);
+	}
+
+	/**
+	 * @param append
+	 *            false to replace an existing file instead of appending to it
+	 */
+	public CsvSink(File file, int bufferSize, long flushIntervalMs, boolean append) {
+		this.file = file;
+		this.append = append;
+		this.bufferSize = bufferSize;
+		this.flushIntervalMs = flushIntervalMs;
+		this.pending = new byte[Math.min(bufferSize, 64 * 1024)];
+		this.lastFlush = System.currentTimeMillis();
+	}
+
+	/**
+	 * A sink for the rows of a single zip, which are appended to the output by
+	 * {@link #append(CsvSink)}. The rows stay in memory up to
+	 * {@link #STAGING_BUFFER_SIZE}; only larger zips write them to the file.
+	 */
+	static CsvSink staging(File file) {
+		CsvSink sink = new CsvSink(file, STAGING_BUFFER_SIZE, Long.MAX_VALUE, false);
+		sink.staging = true;
+		return sink;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getFailedFlushes() {
+		return failedFlushes;
+	}
+
+	/**
+	 * time spent in writing to the files of all sinks, since the JVM started
+	 */
+	public static long getTotalWriteNanos() {
+		return WRITE_NANOS.sum();
+	}
+
+	/**
+	 * The value as a CSV field: quoted if it contains a separator, a quote or a
+	 * line break, empty for null.
+	 */
+	public static String field(String value) {
+		if (value == null) {
+			return "";
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+				return '"' + value.replace("\"", "\"\"") + '"';
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Writes the header line, unless the file already has content from an earlier
+	 * run that is appended to.
+	 */
+	public synchronized void writeHeader(String header) {
+		boolean hasContent = append && file.length() > 0;
+		if (!hasContent && pendingLength == 0) {
+			write(header);
+		}
+	}
+
+	public synchronized void write(String row) {
+		checkOpen();
+		byte[] bytes = row.getBytes(StandardCharsets.UTF_8);
+		appendPending(bytes, 0, bytes.length);
+		if (pendingLength >= bufferSize || System.currentTimeMillis() - lastFlush >= flushIntervalMs) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes complete, already encoded rows. Unless older rows are still pending,
+	 * the bytes go straight to the file without being copied.
+	 */
+	public synchronized void write(ByteBuffer rows) {
+		checkOpen();
+		if (pendingLength > 0 || staging) {
+			appendPending(rows);
+			if (pendingLength >= bufferSize) {
+				flush();
+			}
+			return;
+		}
+		try {
+			writeFully(rows);
+		} catch (IOException e) {
+			failed(e);
+			appendPending(rows);
+		}
+	}
+
+	/**
+	 * Writes all pending rows. Returns false (and keeps the rows) if the file
+	 * could not be written.
+	 */
+	public synchronized boolean flush() {
+		lastFlush = System.currentTimeMillis();
+		if (pendingLength == 0) {
+			return true;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(pending, 0, pendingLength);
+		try {
+			writeFully(buf);
+			pendingLength = 0;
+			return true;
+		} catch (IOException e) {
+			// keep what has not been written yet
+			System.arraycopy(pending, buf.position(), pending, 0, buf.remaining());
+			pendingLength = buf.remaining();
+			failed(e);
+			return false;
+		}
+	}
+
+	/**
+	 * the length of the file with all pending rows written
+	 */
+	synchronized long length() throws IOException {
+		if (!flush()) {
+			throw new IOException("cannot write the pending rows of " + file);
+		}
+		return file.length();
+	}
+
+	/**
+	 * Appends all rows of a staging sink in one piece and discards the staging
+	 * sink. If they cannot be written, the file is cut back to its old length.
+	 * 
+	 * @return the offset of the rows in the file
+	 */
+	synchronized long append(CsvSink staged) throws IOException {
+		checkOpen();
+		long start = length();
+		try {
+			synchronized (staged) {
+				staged.closeQuietly();
+				if (staged.file.exists()) {
+					// the rows that did not fit into memory
+					try (FileChannel in = FileChannel.open(staged.file.toPath(), StandardOpenOption.READ)) {
+						transfer(in, 0, in.size(), channel());
+					}
+				}
+				writeFully(ByteBuffer.wrap(staged.pending, 0, staged.pendingLength));
+			}
+		} catch (IOException e) {
+			failed(e);
+			truncate(start);
+			throw e;
+		} finally {
+			staged.discard();
+		}
+		return start;
+	}
+
+	/**
+	 * Drops the rows of a staging sink.
+	 */
+	synchronized void discard() {
+		closed = true;
+		pendingLength = 0;
+		closeQuietly();
+		file.delete();
+	}
+
+	/**
+	 * Cuts the file off at the length, e.g., to remove the rows of zips that
+	 * were not committed by a run that stopped.
+	 * 
+	 * @return false if the file was not longer
+	 */
+	synchronized boolean truncate(long length) throws IOException {
+		if (file.length() <= length) {
+			return false;
+		}
+		closeQuietly();
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			ch.truncate(length);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the bytes from start to start + length, e.g., the rows of an
+	 * earlier version of a zip, by replacing the file with a copy without them.
+	 */
+	synchronized void cut(long start, long length) throws IOException {
+		checkOpen();
+		if (length == 0) {
+			return;
+		}
+		long end = length();
+		closeQuietly();
+		File copy = new File(file.getPath() + ".cut");
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(copy.toPath(), StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			transfer(in, 0, start, out);
+			transfer(in, start + length, end - start - length, out);
+			out.force(false);
+		}
+		Files.move(copy.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		// the copy must not be replaced when the file is opened again
+		append = true;
+	}
+
+	private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+		long start = System.nanoTime();
+		try {
+			for (long done = 0; done < count;) {
+				done += in.transferTo(position + done, count - done, out);
+			}
+		} finally {
+			WRITE_NANOS.add(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (!append && pendingLength == 0) {
+			// nothing written, but the old content has to be replaced anyway
+			try {
+				new FileOutputStream(file, false).close();
+				append = true;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (!flush()) {
+			saveUnwritten();
+		}
+		closeQuietly();
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("sink already closed: " + file);
+		}
+	}
+
+	private FileChannel channel() throws IOException {
+		if (out == null) {
+			out = new FileOutputStream(file, append).getChannel();
+			// the file is only replaced once, a reopened file is appended to
+			append = true;
+		}
+		return out;
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException {
+		FileChannel channel = channel();
+		long start = System.nanoTime();
+		try {
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+		} finally {
+			WRITE_NANOS.add(System.nanoTime() - start);
+		}
+	}
+
+	private void failed(IOException e) {
+		failedFlushes++;
+		System.err.printf("could not write to %s (%d pending bytes kept): %s\n", file, pendingLength,
+				e.getMessage());
+		closeQuietly();
+	}
+
+	private void appendPending(byte[] bytes, int offset, int length) {
+		ensurePending(length);
+		System.arraycopy(bytes, offset, pending, pendingLength, length);
+		pendingLength += length;
+	}
+
+	private void appendPending(ByteBuffer rows) {
+		int length = rows.remaining();
+		ensurePending(length);
+		rows.get(pending, pendingLength, length);
+		pendingLength += length;
+	}
+
+	private void ensurePending(int length) {
+		if (pendingLength + length > pending.length) {
+			pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+		}
+	}
+
+	private void saveUnwritten() {
+		File fallback = new File(file.getPath() + ".unwritten");
+		try (FileOutputStream fos = new FileOutputStream(fallback, true /* append = true */)) {
+			fos.write(pending, 0, pendingLength);
+			System.err.printf("%d pending bytes of %s saved to %s\n", pendingLength, file, fallback);
+			pendingLength = 0;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void closeQuietly() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		out = null;
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds events that were already read in the same run, e.g., because the
+ * same developer uploaded overlapping data in several folders. Each raw event
+ * (the JSON as returned by getNextPlain) is identified by a 64-bit
+ * fingerprint; two different events get the same fingerprint with a
+ * probability of about n^2 / 2^65 for n events.
+ * 
+ * A {@link BloomFilter} screens the fingerprints: most new events are not in
+ * it and are added without any further check. Only if the filter may contain
+ * the fingerprint, an exact {@link FingerprintSet} on disk is asked. The
+ * memory is fixed: three quarters for the filter and a quarter for the
+ * fingerprints that are not written to disk yet. The fingerprints are
+ * partitioned by their first bits, so threads only wait for each other if
+ * they check fingerprints of the same partition.
+ * 
+ * When zips are processed at the same time, it depends on the timing which
+ * of them keeps the first copy of an event.
+ */
+public class DuplicateFilter {
+
+	public enum Mode {
+		/** duplicates are not dispatched to the handlers */
+		DROP,
+		/** duplicates are processed like other events */
+		FLAG
+	}
+
+	public static final String HEADER = "file,entry,fingerprint\n";
+
+	private static final int PARTITION_BITS = 8;
+
+	private final Mode mode;
+	private final File dir;
+	private final BloomFilter filter;
+	private final FingerprintSet[] partitions = new FingerprintSet[1 << PARTITION_BITS];
+	private final long expectedEvents;
+
+	private final LongAdder checked = new LongAdder();
+	private final LongAdder filterHits = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+
+	/**
+	 * @param dir
+	 *            directory for the fingerprints on disk, deleted by
+	 *            {@link #close()}
+	 * @param memoryBytes
+	 *            memory for the filter and the fingerprints not yet on disk
+	 * @param expectedEvents
+	 *            the number of events the filter is tuned for
+	 */
+	public DuplicateFilter(Mode mode, File dir, long memoryBytes, long expectedEvents) {
+		this.mode = mode;
+		this.dir = dir;
+		this.expectedEvents = expectedEvents;
+		this.filter = new BloomFilter(memoryBytes / 4 * 3, expectedEvents);
+		// 16 bytes per buffered fingerprint, the tables are at most half full
+		int bufferSize = (int) Math.max(16, Math.min(1 << 24, memoryBytes / 4 / 16 / partitions.length));
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i] = new FingerprintSet(dir, "p" + i, bufferSize);
+		}
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return true if an event with the same fingerprint was checked before
+	 */
+	public boolean isDuplicate(long fingerprint) {
+		checked.increment();
+		FingerprintSet partition = partitions[(int) (fingerprint >>> (64 - PARTITION_BITS))];
+		synchronized (partition) {
+			try {
+				if (filter.mightContain(fingerprint)) {
+					filterHits.increment();
+					if (partition.contains(fingerprint)) {
+						duplicates.increment();
+						return true;
+					}
+				} else {
+					filter.add(fingerprint);
+				}
+				partition.addNew(fingerprint);
+				return false;
+			} catch (IOException e) {
+				throw new RuntimeException("cannot write the fingerprints to " + dir, e);
+			}
+		}
+	}
+
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	public String getSummary() {
+		long n = checked.sum();
+		long dups = duplicates.sum();
+		long falsePositives = filterHits.sum() - dups;
+		long onDisk = 0;
+		for (FingerprintSet partition : partitions) {
+			synchronized (partition) {
+				onDisk += partition.getSizeOnDisk();
+			}
+		}
+		return String.format(
+				"duplicates: %d of %d events (%s), filter: %.1f MB with %d hashes, %d false positives "
+						+ "(expected rate %.5f for %d events), fingerprints on disk: %.1f MB",
+				dups, n, mode == Mode.DROP ? "dropped" : "flagged", filter.getSizeInBytes() / 1048576.0,
+				filter.getHashes(), falsePositives, filter.getFalsePositiveRate(expectedEvents), expectedEvents,
+				onDisk / 1048576.0);
+	}
+
+	/**
+	 * Deletes the fingerprints on disk.
+	 */
+	public void close() {
+		for (FingerprintSet partition : partitions) {
+			synchronized (partition) {
+				partition.delete();
+			}
+		}
+		dir.delete();
+	}
+}
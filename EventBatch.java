@@ -0,0 +1,125 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+/**
+ * A run of consecutive entries of one user zip. The entries are decoded
+ * together on one thread and written together, in entry order, on another,
+ * which keeps the handoff between threads per batch instead of per event.
+ */
+class EventBatch {
+
+	static final int SIZE = 256;
+
+	final ZipContext zip;
+
+	/**
+	 * position of the batch in the zip, the first entry has the index seq * SIZE
+	 */
+	final int seq;
+	final String[] json = new String[SIZE];
+	final EventRecord[] records = new EventRecord[SIZE];
+	final RuntimeException[] errors = new RuntimeException[SIZE];
+
+	/**
+	 * fingerprints of the entries, only if duplicates are looked for
+	 */
+	long[] fingerprints;
+	int size;
+
+	/**
+	 * set in the last batch of a zip only
+	 */
+	boolean last;
+	int numProcessedEvents;
+
+	/**
+	 * for the metrics, if the entries were read on another thread than the one
+	 * that writes them
+	 */
+	long unzipNanos;
+	long jsonBytes;
+
+	EventBatch(ZipContext zip, int seq) {
+		this.zip = zip;
+		this.seq = seq;
+	}
+
+	boolean isFull() {
+		return size == SIZE;
+	}
+
+	void add(String entry) {
+		json[size++] = entry;
+	}
+
+	/**
+	 * Decodes all entries; an entry that cannot be decoded (or recovered) keeps
+	 * its exception instead of a record.
+	 */
+	void decode(GettingStarted ingest, IngestMetrics metrics) {
+		if (ingest.isCheckingDuplicates()) {
+			fingerprints = new long[size];
+			for (int i = 0; i < size; i++) {
+				fingerprints[i] = Hashing.hash64(json[i]);
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			EventRecord r = new EventRecord();
+			long start = System.nanoTime();
+			try {
+				ingest.decode(json[i], r);
+				records[i] = r;
+				metrics.decoded(zip, r, json[i], System.nanoTime() - start);
+			} catch (RuntimeException e) {
+				metrics.decodeFailed(System.nanoTime() - start);
+				if (ingest.recover(json[i], r, e)) {
+					records[i] = r;
+				} else {
+					errors[i] = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Dispatches the decoded entries and quarantines the others (duplicates are
+	 * checked here, so the first copy in a zip is kept). Must be called
+	 * for the batches of a zip in order and from one thread at a time.
+	 */
+	void write(GettingStarted ingest, IngestMetrics metrics) {
+		if (jsonBytes > 0) {
+			metrics.unzipped(zip, size, jsonBytes, unzipNanos);
+		}
+		for (int i = 0; i < size; i++) {
+			int entry = seq * SIZE + i;
+			if (fingerprints != null && ingest.skipDuplicate(zip, entry, json[i], fingerprints[i])) {
+				continue;
+			}
+			if (errors[i] != null) {
+				ingest.quarantine(zip, entry, json[i], "decode", errors[i]);
+			} else {
+				long start = System.nanoTime();
+				try {
+					ingest.dispatch(records[i], zip);
+				} catch (RuntimeException e) {
+					ingest.quarantine(zip, entry, json[i], "dispatch", e);
+				}
+				metrics.dispatched(System.nanoTime() - start);
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+/**
+ * Routes every event to the handlers that are registered for its type. The
+ * handlers are kept in one array per type, so dispatching is a single array
+ * lookup that does not allocate. Handlers have to be registered before the run
+ * starts.
+ */
+public class EventDispatcher {
+
+	private final EventHandler[][] handlers = new EventHandler[EventType.COUNT][];
+	private final boolean[] needsEvent = new boolean[EventType.COUNT];
+
+	public EventDispatcher() {
+		for (int i = 0; i < handlers.length; i++) {
+			handlers[i] = new EventHandler[0];
+		}
+	}
+
+	public synchronized void register(EventType type, EventHandler handler) {
+		EventHandler[] old = handlers[type.ordinal()];
+		EventHandler[] now = new EventHandler[old.length + 1];
+		System.arraycopy(old, 0, now, 0, old.length);
+		now[old.length] = handler;
+		handlers[type.ordinal()] = now;
+		needsEvent[type.ordinal()] |= handler.needsEvent(type);
+	}
+
+	public void registerForAll(EventHandler handler) {
+		for (EventType type : EventType.values()) {
+			register(type, handler);
+		}
+	}
+
+	/**
+	 * @return true if any handler of the type needs the deserialized event
+	 */
+	public boolean needsEvent(EventType type) {
+		return needsEvent[type.ordinal()];
+	}
+
+	public void dispatch(EventRecord record, ZipContext zip) {
+		int type = record.type.ordinal();
+		zip.aggregate.counts[type]++;
+		EventHandler[] forType = handlers[type];
+		for (int i = 0; i < forType.length; i++) {
+			forType[i].handle(record, zip);
+		}
+	}
+}
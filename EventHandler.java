@@ -0,0 +1,33 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+/**
+ * Processes the events of one or more types, e.g., by writing them to an
+ * output. Handlers are registered with an {@link EventDispatcher} and are
+ * called from several worker threads at once when zips are processed in
+ * parallel.
+ */
+public interface EventHandler {
+
+	/**
+	 * @return true if the handler uses {@link EventRecord#event} for the given
+	 *         type, i.e., if such events always have to be deserialized
+	 */
+	boolean needsEvent(EventType type);
+
+	void handle(EventRecord record, ZipContext zip);
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The header fields of a serialized event as found by {@link EventSniffer}. All
+ * values are kept as the raw Json strings and only converted on request; a
+ * field is null if it was not present in the Json.
+ */
+public class EventHeader {
+
+	private static final Pattern LENIENT_DATE_TIME = Pattern
+			.compile("(\\d{4}-\\d{2}-\\d{2})[T ](\\d{2}:\\d{2}(?::\\d{2})?)(?:\\.(\\d+))?\\s*(Z|[+-]\\d{2}:?\\d{2})?");
+
+	/**
+	 * the type discriminator, e.g.
+	 * "KaVE.Commons.Model.Events.CommandEvent, KaVE.Commons"
+	 */
+	public String type;
+	public String IDESessionUUID;
+	public String TriggeredAt;
+	public String Duration;
+
+	/**
+	 * @return the class name without namespace and assembly (e.g.,
+	 *         "CommandEvent"), or null if no type is known
+	 */
+	public String getSimpleTypeName() {
+		if (type == null) {
+			return null;
+		}
+		int end = type.indexOf(',');
+		if (end < 0) {
+			end = type.length();
+		}
+		int start = type.lastIndexOf('.', end) + 1;
+		return type.substring(start, end).trim();
+	}
+
+	/**
+	 * @throws DateTimeException
+	 *             if the timestamp cannot be parsed, like the deserializer does
+	 */
+	public ZonedDateTime getTriggeredAt() {
+		return TriggeredAt == null ? null : ZonedDateTime.parse(TriggeredAt);
+	}
+
+	/**
+	 * Like {@link #getTriggeredAt()}, but also accepts timestamps without offset
+	 * (taken as UTC), with a space instead of the "T", with more than nine
+	 * fraction digits or with an offset without colon.
+	 * 
+	 * @return null if the timestamp is missing or still cannot be parsed
+	 */
+	public ZonedDateTime getTriggeredAtLeniently() {
+		if (TriggeredAt == null) {
+			return null;
+		}
+		try {
+			return ZonedDateTime.parse(TriggeredAt);
+		} catch (DateTimeException e) {
+			// try the lenient format below
+		}
+		Matcher m = LENIENT_DATE_TIME.matcher(TriggeredAt.trim());
+		if (!m.matches()) {
+			return null;
+		}
+		StringBuilder local = new StringBuilder(m.group(1)).append('T').append(m.group(2));
+		if (m.group(3) != null) {
+			String fraction = m.group(3);
+			local.append('.').append(fraction.length() > 9 ? fraction.substring(0, 9) : fraction);
+		}
+		try {
+			ZoneOffset offset = ZoneOffset.UTC;
+			if (m.group(4) != null && !m.group(4).equals("Z")) {
+				offset = ZoneOffset.of(m.group(4));
+			}
+			return LocalDateTime.parse(local).atZone(offset);
+		} catch (DateTimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the duration, or null if it is missing or not a valid TimeSpan
+	 */
+	public Duration getDurationLeniently() {
+		try {
+			return getDuration();
+		} catch (DateTimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parses a .NET TimeSpan in the form "[-][d.]hh:mm:ss[.fffffff]".
+	 * 
+	 * @throws DateTimeException
+	 *             if the value is not a valid TimeSpan
+	 */
+	public Duration getDuration() {
+		return Duration == null ? null : parseTimeSpan(Duration);
+	}
+
+	static Duration parseTimeSpan(String s) {
+		try {
+			boolean negative = s.startsWith("-");
+			String[] parts = (negative ? s.substring(1) : s).split(":");
+			if (parts.length != 3) {
+				throw new DateTimeException("not a TimeSpan: " + s);
+			}
+			long days = 0;
+			String hours = parts[0];
+			int dot = hours.indexOf('.');
+			if (dot >= 0) {
+				days = Long.parseLong(hours.substring(0, dot));
+				hours = hours.substring(dot + 1);
+			}
+			String seconds = parts[2];
+			long nanos = 0;
+			dot = seconds.indexOf('.');
+			if (dot >= 0) {
+				String fraction = (seconds.substring(dot + 1) + "000000000").substring(0, 9);
+				nanos = Long.parseLong(fraction);
+				seconds = seconds.substring(0, dot);
+			}
+			long total = days * 86400 + Long.parseLong(hours) * 3600 + Long.parseLong(parts[1]) * 60
+					+ Long.parseLong(seconds);
+			Duration d = java.time.Duration.ofSeconds(total, nanos);
+			return negative ? d.negated() : d;
+		} catch (NumberFormatException e) {
+			throw new DateTimeException("not a TimeSpan: " + s, e);
+		}
+	}
+}
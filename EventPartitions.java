@@ -0,0 +1,350 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import cc.kave.commons.model.events.CommandEvent;
+import cc.kave.commons.model.events.ErrorEvent;
+import cc.kave.commons.model.events.InfoEvent;
+import cc.kave.commons.model.events.NavigationEvent;
+import cc.kave.commons.model.events.SystemEvent;
+import cc.kave.commons.model.events.completionevents.CompletionEvent;
+import cc.kave.commons.model.events.testrunevents.TestCaseResult;
+import cc.kave.commons.model.events.testrunevents.TestRunEvent;
+import cc.kave.commons.model.events.userprofiles.UserProfileEvent;
+import cc.kave.commons.model.events.versioncontrolevents.VersionControlAction;
+import cc.kave.commons.model.events.versioncontrolevents.VersionControlEvent;
+import cc.kave.commons.model.events.visualstudio.BuildEvent;
+import cc.kave.commons.model.events.visualstudio.BuildTarget;
+import cc.kave.commons.model.events.visualstudio.DebuggerEvent;
+import cc.kave.commons.model.events.visualstudio.DocumentEvent;
+import cc.kave.commons.model.events.visualstudio.EditEvent;
+import cc.kave.commons.model.events.visualstudio.FindEvent;
+import cc.kave.commons.model.events.visualstudio.IDEStateEvent;
+import cc.kave.commons.model.events.visualstudio.InstallEvent;
+import cc.kave.commons.model.events.visualstudio.SolutionEvent;
+import cc.kave.commons.model.events.visualstudio.UpdateEvent;
+import cc.kave.commons.model.events.visualstudio.WindowEvent;
+
+/**
+ * Writes each event type to its own file (e.g., CommandEvent.csv) in a
+ * folder, with the columns of that type next to the common ones: file,
+ * IDESessionUUID, TriggeredAt and Duration (in milliseconds). Events of OTHER
+ * types go to other.csv, with their class name.
+ * 
+ * Every type has its own sink, so workers that write different types do not
+ * wait for each other; each zip encodes its rows per type (see
+ * {@link RowEncoder}) and hands them over in large blocks. All types except
+ * ActivityEvents and OTHER events have to be deserialized.
+ */
+public class EventPartitions implements EventHandler {
+
+	public static final String COMMON_HEADER = "file,IDESessionUUID,TriggeredAt,DurationMs";
+
+	/**
+	 * The columns of one event type.
+	 */
+	abstract static class Columns {
+		final String header;
+
+		Columns(String header) {
+			this.header = header;
+		}
+
+		/**
+		 * appends the values, each one preceded by a comma
+		 */
+		abstract void put(EventRecord r, RowEncoder row);
+	}
+
+	private static final Columns[] COLUMNS = new Columns[EventType.COUNT];
+
+	static {
+		define(EventType.COMMAND, new Columns("CommandId") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				value(row, ((CommandEvent) r.event).CommandId);
+			}
+		});
+		define(EventType.ACTIVITY, new Columns("") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+			}
+		});
+		define(EventType.TEST_RUN, new Columns("Aborted,Tests,Results") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				TestRunEvent e = (TestRunEvent) r.event;
+				value(row, e.WasAborted);
+				// number of tests per result, e.g., "Failed=1;Success=12"
+				Map<String, Integer> results = new TreeMap<String, Integer>();
+				int tests = 0;
+				if (e.Tests != null) {
+					for (TestCaseResult t : e.Tests) {
+						String result = String.valueOf(t.Result);
+						Integer n = results.get(result);
+						results.put(result, n == null ? 1 : n + 1);
+						tests++;
+					}
+				}
+				row.put(',').put(tests);
+				StringBuilder sb = new StringBuilder();
+				for (Map.Entry<String, Integer> result : results.entrySet()) {
+					sb.append(sb.length() == 0 ? "" : ";").append(result.getKey()).append('=');
+					sb.append(result.getValue());
+				}
+				value(row, sb);
+			}
+		});
+		define(EventType.VERSION_CONTROL, new Columns("Solution,Actions") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				VersionControlEvent e = (VersionControlEvent) r.event;
+				value(row, e.Solution);
+				StringBuilder sb = new StringBuilder();
+				if (e.Actions != null) {
+					for (VersionControlAction a : e.Actions) {
+						sb.append(sb.length() == 0 ? "" : ";").append(a.ActionType);
+					}
+				}
+				value(row, sb);
+			}
+		});
+		define(EventType.WINDOW, new Columns("Window,Action") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				WindowEvent e = (WindowEvent) r.event;
+				value(row, e.Window);
+				value(row, e.Action);
+			}
+		});
+		define(EventType.BUILD, new Columns("Scope,Action,Targets,SuccessfulTargets,Projects") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				BuildEvent e = (BuildEvent) r.event;
+				value(row, e.Scope);
+				value(row, e.Action);
+				int targets = 0;
+				int successful = 0;
+				StringBuilder projects = new StringBuilder();
+				if (e.Targets != null) {
+					for (BuildTarget t : e.Targets) {
+						targets++;
+						if (t.Successful) {
+							successful++;
+						}
+						projects.append(projects.length() == 0 ? "" : ";").append(t.Project);
+					}
+				}
+				row.put(',').put(targets).put(',').put(successful);
+				value(row, projects);
+			}
+		});
+		define(EventType.COMPLETION, new Columns("TerminatedBy,TerminatedState,Selections") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				CompletionEvent e = (CompletionEvent) r.event;
+				value(row, e.terminatedBy);
+				value(row, e.terminatedState);
+				row.put(',').put(e.selections == null ? 0 : e.selections.size());
+			}
+		});
+		define(EventType.SYSTEM, new Columns("Type") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				value(row, ((SystemEvent) r.event).Type);
+			}
+		});
+		define(EventType.NAVIGATION, new Columns("Target,Location,TypeOfNavigation") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				NavigationEvent e = (NavigationEvent) r.event;
+				value(row, e.Target);
+				value(row, e.Location);
+				value(row, e.TypeOfNavigation);
+			}
+		});
+		define(EventType.OTHER, new Columns("Type") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				value(row, r.typeName);
+			}
+		});
+		define(EventType.INSTALL, new Columns("PluginVersion") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				value(row, ((InstallEvent) r.event).PluginVersion);
+			}
+		});
+		define(EventType.DOCUMENT, new Columns("Document,Action") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				DocumentEvent e = (DocumentEvent) r.event;
+				value(row, e.Document);
+				value(row, e.Action);
+			}
+		});
+		define(EventType.DEBUGGER, new Columns("Mode,Reason,Action") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				DebuggerEvent e = (DebuggerEvent) r.event;
+				value(row, e.Mode);
+				value(row, e.Reason);
+				value(row, e.Action);
+			}
+		});
+		define(EventType.USER_PROFILE, new Columns("ProfileId,Education,Position") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				UserProfileEvent e = (UserProfileEvent) r.event;
+				value(row, e.ProfileId);
+				value(row, e.Education);
+				value(row, e.Position);
+			}
+		});
+		define(EventType.IDE_STATE, new Columns("IDELifecyclePhase") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				value(row, ((IDEStateEvent) r.event).IDELifecyclePhase);
+			}
+		});
+		define(EventType.EDIT, new Columns("NumberOfChanges,SizeOfChanges") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				EditEvent e = (EditEvent) r.event;
+				row.put(',').put(e.NumberOfChanges).put(',').put(e.SizeOfChanges);
+			}
+		});
+		define(EventType.FIND, new Columns("Cancelled") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				value(row, ((FindEvent) r.event).Cancelled);
+			}
+		});
+		define(EventType.UPDATE, new Columns("OldPluginVersion,NewPluginVersion") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				UpdateEvent e = (UpdateEvent) r.event;
+				value(row, e.OldPluginVersion);
+				value(row, e.NewPluginVersion);
+			}
+		});
+		define(EventType.SOLUTION, new Columns("Target,Action") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				SolutionEvent e = (SolutionEvent) r.event;
+				value(row, e.Target);
+				value(row, e.Action);
+			}
+		});
+		define(EventType.ERROR, new Columns("Content,StackTrace") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				ErrorEvent e = (ErrorEvent) r.event;
+				value(row, e.Content);
+				StringBuilder sb = new StringBuilder();
+				if (e.StackTrace != null) {
+					for (String line : e.StackTrace) {
+						sb.append(sb.length() == 0 ? "" : "\n").append(line);
+					}
+				}
+				value(row, sb);
+			}
+		});
+		define(EventType.INFO, new Columns("Info") {
+			@Override
+			void put(EventRecord r, RowEncoder row) {
+				value(row, ((InfoEvent) r.event).Info);
+			}
+		});
+	}
+
+	private static void define(EventType type, Columns columns) {
+		COLUMNS[type.ordinal()] = columns;
+	}
+
+	private static void value(RowEncoder row, Object value) {
+		row.put(',').put(CsvSink.field(value == null ? null : value.toString()));
+	}
+
+	private final CsvSink[] sinks = new CsvSink[EventType.COUNT];
+
+	/**
+	 * @param append
+	 *            false to replace the files of an earlier run
+	 */
+	public EventPartitions(File dir, boolean append) throws IOException {
+		Files.createDirectories(dir.toPath());
+		for (EventType type : EventType.values()) {
+			CsvSink sink = new CsvSink(new File(dir, type.typeName + ".csv"), CsvSink.DEFAULT_BUFFER_SIZE,
+					CsvSink.DEFAULT_FLUSH_INTERVAL_MS, append);
+			String specific = COLUMNS[type.ordinal()].header;
+			sink.writeHeader(COMMON_HEADER + (specific.isEmpty() ? "" : "," + specific) + "\n");
+			sinks[type.ordinal()] = sink;
+		}
+	}
+
+	@Override
+	public boolean needsEvent(EventType type) {
+		return type != EventType.ACTIVITY && type != EventType.OTHER;
+	}
+
+	@Override
+	public void handle(EventRecord r, ZipContext zip) {
+		RowEncoder[] rows = zip.partitionRows;
+		if (rows == null) {
+			rows = zip.partitionRows = new RowEncoder[EventType.COUNT];
+		}
+		int t = r.type.ordinal();
+		RowEncoder row = rows[t];
+		if (row == null) {
+			row = rows[t] = RowEncoder.acquire(zip.sink(sinks[t]));
+		}
+		row.beginRow();
+		row.put(zip.pathPrefix);
+		row.put(CsvSink.field(r.IDESessionUUID)).put(',');
+		if (r.TriggeredAt != null) {
+			row.put(r.TriggeredAt);
+		}
+		row.put(',');
+		if (r.Duration != null) {
+			row.put(r.Duration.toMillis());
+		}
+		COLUMNS[t].put(r, row);
+		row.put('\n');
+		row.endRow();
+	}
+
+	/**
+	 * the files of all types
+	 */
+	public List<CsvSink> getSinks() {
+		return Arrays.asList(sinks);
+	}
+
+	public void close() {
+		for (CsvSink sink : sinks) {
+			sink.close();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+
+import cc.kave.commons.model.events.IIDEEvent;
+
+/**
+ * The fields of an event that are available to all {@link EventHandler}s,
+ * regardless of whether the event was deserialized or only its header was
+ * read. One instance is reused for all events of a zip.
+ */
+public class EventRecord {
+
+	public EventType type;
+
+	/**
+	 * name of the type as written in the outputs (for OTHER events the simple
+	 * name of their class)
+	 */
+	public String typeName;
+
+	public String IDESessionUUID;
+	public ZonedDateTime TriggeredAt;
+	public Duration Duration;
+
+	/**
+	 * the event as it was read from the zip
+	 */
+	public String json;
+
+	/**
+	 * the deserialized event, null if only the header was read (see
+	 * {@link EventHandler#needsEvent(EventType)})
+	 */
+	public IIDEEvent event;
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+/**
+ * Reads the type discriminator and the few header fields of a serialized event
+ * directly from the Json text, without deserializing the event. Only the top
+ * level of the object is inspected; nested objects and arrays (e.g., the SST of
+ * a CompletionEvent) are skipped character by character.
+ */
+public class EventSniffer {
+
+	private static final String TYPE = "$type";
+	private static final String SESSION = "IDESessionUUID";
+	private static final String TRIGGERED_AT = "TriggeredAt";
+	private static final String DURATION = "Duration";
+
+	/**
+	 * @return the header of the event, or null if the text is not a Json object
+	 *         that can be read without a full deserialization
+	 */
+	public static EventHeader sniff(String json) {
+		int n = json.length();
+		int i = skipWhitespace(json, 0);
+		if (i >= n || json.charAt(i) != '{') {
+			return null;
+		}
+		i++;
+		EventHeader header = new EventHeader();
+		while (true) {
+			i = skipWhitespace(json, i);
+			if (i >= n) {
+				return null;
+			}
+			char c = json.charAt(i);
+			if (c == '}') {
+				return header;
+			}
+			if (c == ',') {
+				i++;
+				continue;
+			}
+			if (c != '"') {
+				return null;
+			}
+			int keyStart = i + 1;
+			int keyEnd = endOfString(json, i);
+			if (keyEnd < 0) {
+				return null;
+			}
+			i = skipWhitespace(json, keyEnd);
+			if (i >= n || json.charAt(i) != ':') {
+				return null;
+			}
+			int valueStart = skipWhitespace(json, i + 1);
+			int valueEnd = endOfValue(json, valueStart);
+			if (valueEnd < 0) {
+				return null;
+			}
+			int keyLength = keyEnd - 1 - keyStart;
+			if (isKey(json, keyStart, keyLength, TYPE)) {
+				header.type = stringValue(json, valueStart, valueEnd);
+			} else if (isKey(json, keyStart, keyLength, SESSION)) {
+				header.IDESessionUUID = stringValue(json, valueStart, valueEnd);
+			} else if (isKey(json, keyStart, keyLength, TRIGGERED_AT)) {
+				header.TriggeredAt = stringValue(json, valueStart, valueEnd);
+			} else if (isKey(json, keyStart, keyLength, DURATION)) {
+				header.Duration = stringValue(json, valueStart, valueEnd);
+			}
+			if (header.type != null && header.IDESessionUUID != null && header.TriggeredAt != null
+					&& header.Duration != null) {
+				// everything found, the rest of the event is not needed
+				return header;
+			}
+			i = valueEnd;
+		}
+	}
+
+	private static boolean isKey(String json, int keyStart, int keyLength, String key) {
+		return keyLength == key.length() && json.regionMatches(keyStart, key, 0, keyLength);
+	}
+
+	/*
+	 * Plain string values are returned as they are, escaped strings and all
+	 * non-string values are treated as missing.
+	 */
+	private static String stringValue(String json, int start, int end) {
+		if (json.charAt(start) != '"') {
+			return null;
+		}
+		for (int i = start + 1; i < end - 1; i++) {
+			if (json.charAt(i) == '\\') {
+				return null;
+			}
+		}
+		return json.substring(start + 1, end - 1);
+	}
+
+	private static int skipWhitespace(String json, int i) {
+		int n = json.length();
+		while (i < n && Character.isWhitespace(json.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/*
+	 * index right after the closing quote of the string that starts at i, or -1
+	 */
+	private static int endOfString(String json, int i) {
+		int n = json.length();
+		for (int j = i + 1; j < n; j++) {
+			char c = json.charAt(j);
+			if (c == '\\') {
+				j++;
+			} else if (c == '"') {
+				return j + 1;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * index right after the value that starts at i, or -1
+	 */
+	private static int endOfValue(String json, int i) {
+		int n = json.length();
+		if (i >= n) {
+			return -1;
+		}
+		char first = json.charAt(i);
+		if (first == '"') {
+			return endOfString(json, i);
+		}
+		if (first == '{' || first == '[') {
+			int depth = 0;
+			for (int j = i; j < n; j++) {
+				char c = json.charAt(j);
+				if (c == '"') {
+					j = endOfString(json, j);
+					if (j < 0) {
+						return -1;
+					}
+					j--;
+				} else if (c == '{' || c == '[') {
+					depth++;
+				} else if (c == '}' || c == ']') {
+					depth--;
+					if (depth == 0) {
+						return j + 1;
+					}
+				}
+			}
+			return -1;
+		}
+		int j = i;
+		while (j < n) {
+			char c = json.charAt(j);
+			if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+				break;
+			}
+			j++;
+		}
+		return j;
+	}
+}
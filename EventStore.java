@@ -0,0 +1,1081 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * A local, append-only store of the events of a run, so that questions like
+ * "all BuildEvents of profile X between t1 and t2" can be answered without
+ * reading the zips again.
+ * 
+ * Events are collected in memory and written as segment files of a few MB.
+ * Until their segment is written, the events are also appended to a log
+ * ("wal.log"); {@link #sync()} makes them durable without cutting a segment,
+ * and the log is replayed when the store is opened again after a crash.
+ * Segments are synced before they are renamed into place, and only then is
+ * the log cleared.
+ * The events of a segment are sorted by time; each segment has an index of
+ * its events by type, session and zip. Segments are mapped into memory for
+ * reading, so a query only touches the index entries and events it needs,
+ * and segments outside the time range of a query are skipped entirely.
+ * 
+ * Zips and their profile ids are kept in a catalog ("zips.tsv"). When a zip is
+ * read again (e.g., because it changed), only the events in the segments
+ * written since then count, so the events of the old version are hidden.
+ * 
+ * Appending is thread-safe; queries only see the segments that are written.
+ * {@link #openReadOnly(File)} opens a store for queries only.
+ */
+public class EventStore implements Closeable {
+
+	private static final int MAGIC = 0x4b455653;
+	private static final int VERSION = 1;
+	private static final String CATALOG = "zips.tsv";
+	private static final String LOG = "wal.log";
+
+	/*
+	 * time (8), offset of the Json (4), its length (4), session (4), zip (4),
+	 * type (4)
+	 */
+	private static final int ENTRY_SIZE = 28;
+
+	/**
+	 * time of events without a TriggeredAt, they are sorted first
+	 */
+	public static final long NO_TIME = Long.MIN_VALUE;
+
+	/**
+	 * An event as it is kept in the store.
+	 */
+	public static class StoredEvent {
+		/**
+		 * epoch millis, {@link EventStore#NO_TIME} if unknown
+		 */
+		public final long triggeredAt;
+		public final EventType type;
+		public final String IDESessionUUID;
+		public final String zip;
+		public final String json;
+
+		StoredEvent(long triggeredAt, EventType type, String session, String zip, String json) {
+			this.triggeredAt = triggeredAt;
+			this.type = type;
+			this.IDESessionUUID = session;
+			this.zip = zip;
+			this.json = json;
+		}
+
+		public Instant getTriggeredAt() {
+			return triggeredAt == NO_TIME ? null : Instant.ofEpochMilli(triggeredAt);
+		}
+	}
+
+	/**
+	 * Is called for every event that matches a query, with the events of one
+	 * segment in time order. Returns false to stop the query.
+	 */
+	public interface Visitor {
+		boolean visit(StoredEvent event);
+	}
+
+	/**
+	 * The conditions that the events of a query must all meet; a condition that
+	 * is not set matches all events.
+	 */
+	public static class Query {
+		Set<EventType> types;
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+		String session;
+		String zip;
+		String profile;
+
+		public Query type(EventType type) {
+			if (types == null) {
+				types = EnumSet.noneOf(EventType.class);
+			}
+			types.add(type);
+			return this;
+		}
+
+		/**
+		 * only events from (inclusive) to (exclusive), either can be null; events
+		 * without a time are excluded
+		 */
+		public Query between(ZonedDateTime from, ZonedDateTime to) {
+			this.from = from == null ? NO_TIME + 1 : from.toInstant().toEpochMilli();
+			this.to = to == null ? Long.MAX_VALUE : to.toInstant().toEpochMilli();
+			return this;
+		}
+
+		public Query session(String session) {
+			this.session = session;
+			return this;
+		}
+
+		/**
+		 * @param zip
+		 *            the zip as in the "file" column of the outputs
+		 */
+		public Query zip(String zip) {
+			this.zip = zip;
+			return this;
+		}
+
+		public Query profile(String profile) {
+			this.profile = profile;
+			return this;
+		}
+	}
+
+	/*
+	 * the latest time a zip was read
+	 */
+	private static class Catalogued {
+		/**
+		 * the first segment with events of this version of the zip
+		 */
+		final int fromSegment;
+		final Set<String> profileIds;
+
+		Catalogued(int fromSegment, Set<String> profileIds) {
+			this.fromSegment = fromSegment;
+			this.profileIds = profileIds;
+		}
+	}
+
+	private final File dir;
+	private final long segmentBytes;
+	private final boolean readOnly;
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+	private final Map<String, Catalogued> catalog = new HashMap<String, Catalogued>();
+	private FileOutputStream catalogOut;
+	private int nextSegment;
+
+	/*
+	 * the log of the events that are not in a segment yet
+	 */
+	private FileOutputStream logFile;
+	private DataOutputStream logOut;
+	private final ByteArrayOutputStream logRecord = new ByteArrayOutputStream(1024);
+
+	/*
+	 * the events that are not written yet
+	 */
+	private long[] times = new long[1024];
+	private int[] types = new int[1024];
+	private String[] sessions = new String[1024];
+	private String[] zips = new String[1024];
+	private byte[][] jsons = new byte[1024][];
+	private int buffered;
+	private long bufferedBytes;
+	private final Set<String> bufferedZips = new HashSet<String>();
+
+	/**
+	 * Opens the store in the given folder, with the segments that are already
+	 * there, and the events in the log that were not written to a segment.
+	 * 
+	 * @param segmentMb
+	 *            Json of the events that is collected before a segment is
+	 *            written
+	 */
+	public EventStore(File dir, int segmentMb) throws IOException {
+		this(dir, segmentMb, false);
+	}
+
+	private EventStore(File dir, int segmentMb, boolean readOnly) throws IOException {
+		this.dir = dir;
+		this.segmentBytes = Math.min(segmentMb * 1024L * 1024L, Integer.MAX_VALUE / 2);
+		this.readOnly = readOnly;
+		if (readOnly && !dir.isDirectory()) {
+			throw new FileNotFoundException("no event store in " + dir);
+		}
+		dir.mkdirs();
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		for (File f : files) {
+			if (f.getName().startsWith("seg-") && f.getName().endsWith(".evs")) {
+				Segment segment;
+				try {
+					segment = new Segment(f);
+				} catch (IOException e) {
+					if (readOnly) {
+						throw e;
+					}
+					// written without a sync by an older version; if the log was not
+					// cleared yet, its events are replayed from there
+					File broken = new File(f.getPath() + ".broken");
+					System.err.printf("cannot read %s, moved to %s: %s\n", f, broken.getName(), e.getMessage());
+					Files.move(f.toPath(), broken.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					continue;
+				}
+				segments.add(segment);
+				nextSegment = Math.max(nextSegment, segment.number + 1);
+			}
+		}
+		readCatalog();
+		if (!readOnly) {
+			replayLog();
+		}
+	}
+
+	/**
+	 * Opens an existing store for queries; fails if the folder does not exist.
+	 */
+	public static EventStore openReadOnly(File dir) throws IOException {
+		return new EventStore(dir, 1, true);
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Adds an event of the zip. The first event of a zip hides the events of
+	 * earlier versions of the zip.
+	 */
+	public void append(EventRecord r, ZipContext zip) throws IOException {
+		byte[] json = r.json == null ? new byte[0] : r.json.getBytes(StandardCharsets.UTF_8);
+		long time = r.TriggeredAt == null ? NO_TIME : r.TriggeredAt.toInstant().toEpochMilli();
+		synchronized (this) {
+			checkWritable();
+			if (!zip.inStore) {
+				beginZip(zip.path);
+				zip.inStore = true;
+			}
+			log(time, r.type, r.IDESessionUUID, zip.path, json);
+			buffer(time, r.type.ordinal(), r.IDESessionUUID, zip.path, json);
+			if (bufferedBytes >= segmentBytes) {
+				flush();
+			}
+		}
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new IllegalStateException("the event store is open for reading only: " + dir);
+		}
+	}
+
+	private void buffer(long time, int type, String session, String zip, byte[] json) {
+		if (buffered == times.length) {
+			grow();
+		}
+		times[buffered] = time;
+		types[buffered] = type;
+		sessions[buffered] = session;
+		zips[buffered] = zip;
+		jsons[buffered] = json;
+		buffered++;
+		bufferedBytes += json.length + ENTRY_SIZE;
+		bufferedZips.add(zip);
+	}
+
+	/*
+	 * log record := length:int crc:int time:long type:UTF (enum name) session:UTF zip:UTF
+	 * jsonLength:int json
+	 */
+	private void log(long time, EventType type, String session, String zip, byte[] json) throws IOException {
+		if (logOut == null) {
+			logFile = new FileOutputStream(new File(dir, LOG), true);
+			logOut = new DataOutputStream(new BufferedOutputStream(logFile, 1 << 16));
+		}
+		logRecord.reset();
+		DataOutputStream record = new DataOutputStream(logRecord);
+		record.writeLong(time);
+		record.writeUTF(type.name());
+		record.writeUTF(session == null ? "" : session);
+		record.writeUTF(zip);
+		record.writeInt(json.length);
+		record.write(json);
+		CRC32 crc = new CRC32();
+		crc.update(logRecord.toByteArray());
+		logOut.writeInt(logRecord.size());
+		logOut.writeInt((int) crc.getValue());
+		logRecord.writeTo(logOut);
+	}
+
+	/*
+	 * Reads the events of the log back into the buffer; a record that was cut
+	 * off by a crash (and everything after it) is dropped.
+	 */
+	private void replayLog() throws IOException {
+		File file = new File(dir, LOG);
+		if (!file.exists()) {
+			return;
+		}
+		long valid = 0;
+		int events = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			long length = file.length();
+			while (valid + 8 <= length) {
+				int size = in.readInt();
+				int crc = in.readInt();
+				if (size < 0 || valid + 8 + size > length) {
+					break;
+				}
+				byte[] record = new byte[size];
+				in.readFully(record);
+				CRC32 check = new CRC32();
+				check.update(record);
+				if ((int) check.getValue() != crc) {
+					break;
+				}
+				DataInputStream r = new DataInputStream(new ByteArrayInputStream(record));
+				long time = r.readLong();
+				EventType type = EventType.valueOf(r.readUTF());
+				String session = r.readUTF();
+				String zip = r.readUTF();
+				byte[] json = new byte[r.readInt()];
+				r.readFully(json);
+				buffer(time, type.ordinal(), session.isEmpty() ? null : session, zip, json);
+				valid += 8 + size;
+				events++;
+			}
+		}
+		if (valid < file.length()) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(valid);
+			}
+		}
+		if (events > 0) {
+			System.out.printf("event store: %d events replayed from the log\n", events);
+		}
+	}
+
+	/**
+	 * Makes all events appended so far durable, in a segment or in the log.
+	 */
+	public synchronized void sync() throws IOException {
+		if (logOut != null) {
+			logOut.flush();
+			logFile.getChannel().force(false);
+		}
+		if (catalogOut != null) {
+			catalogOut.getChannel().force(false);
+		}
+	}
+
+	private void beginZip(String zip) throws IOException {
+		if (bufferedZips.contains(zip)) {
+			// the old version must be in an older segment than the new one
+			flush();
+		}
+		catalog(zip, new Catalogued(nextSegment, Collections.<String> emptySet()));
+	}
+
+	/**
+	 * Records the profile ids of a zip whose events were all appended.
+	 */
+	public synchronized void finishZip(ZipContext zip) throws IOException {
+		checkWritable();
+		if (zip.inStore) {
+			Catalogued c = catalog.get(zip.path);
+			catalog(zip.path, new Catalogued(c.fromSegment, new HashSet<String>(zip.aggregate.profileIds)));
+		}
+	}
+
+	private void catalog(String zip, Catalogued c) throws IOException {
+		catalog.put(zip, c);
+		if (catalogOut == null) {
+			catalogOut = new FileOutputStream(new File(dir, CATALOG), true);
+		}
+		StringBuilder line = new StringBuilder(zip).append('\t').append(c.fromSegment).append('\t');
+		for (String id : c.profileIds) {
+			line.append(id).append(' ');
+		}
+		catalogOut.write(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void readCatalog() throws IOException {
+		File file = new File(dir, CATALOG);
+		if (!file.exists()) {
+			return;
+		}
+		if (!readOnly) {
+			endTornLine(file);
+		}
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t", -1);
+				if (parts.length < 3 || !parts[1].matches("[0-9]+")) {
+					// cut off by a crash
+					continue;
+				}
+				Set<String> ids = new HashSet<String>();
+				for (String id : parts[2].split(" ")) {
+					if (!id.isEmpty()) {
+						ids.add(id);
+					}
+				}
+				catalog.put(parts[0], new Catalogued(Integer.parseInt(parts[1]), ids));
+			}
+		}
+	}
+
+	/*
+	 * ends a line that was cut off by a crash, so the next one starts on its own
+	 */
+	private static void endTornLine(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() > 0) {
+				raf.seek(raf.length() - 1);
+				if (raf.read() != '\n') {
+					raf.write('\n');
+				}
+			}
+		}
+	}
+
+	private void grow() {
+		int size = times.length * 2;
+		times = Arrays.copyOf(times, size);
+		types = Arrays.copyOf(types, size);
+		sessions = Arrays.copyOf(sessions, size);
+		zips = Arrays.copyOf(zips, size);
+		jsons = Arrays.copyOf(jsons, size);
+	}
+
+	/**
+	 * Writes the collected events as a new segment.
+	 */
+	public synchronized void flush() throws IOException {
+		if (buffered == 0) {
+			return;
+		}
+		checkWritable();
+		File file = new File(dir, String.format("seg-%06d.evs", nextSegment));
+		File tmp = new File(dir, file.getName() + ".tmp");
+		writeSegment(tmp);
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		syncDir();
+		segments.add(new Segment(file));
+		nextSegment++;
+		// the events are safe in the segment now
+		if (catalogOut != null) {
+			catalogOut.getChannel().force(false);
+		}
+		if (logOut != null) {
+			logOut.close();
+			logOut = null;
+			logFile = null;
+		}
+		Files.deleteIfExists(new File(dir, LOG).toPath());
+		Arrays.fill(sessions, 0, buffered, null);
+		Arrays.fill(zips, 0, buffered, null);
+		Arrays.fill(jsons, 0, buffered, null);
+		buffered = 0;
+		bufferedBytes = 0;
+		bufferedZips.clear();
+	}
+
+	/*
+	 * makes the rename of a segment durable (not possible on all platforms)
+	 */
+	private void syncDir() {
+		try (FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			d.force(true);
+		} catch (IOException e) {
+			// e.g., on Windows, where folders cannot be opened
+		}
+	}
+
+	private void writeSegment(File file) throws IOException {
+		int n = buffered;
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		// stable, so the events of a zip keep their order
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(times[a], times[b]);
+			}
+		});
+		Map<String, Integer> sessionIds = new HashMap<String, Integer>();
+		Map<String, Integer> zipIds = new HashMap<String, Integer>();
+		List<String> sessionNames = new ArrayList<String>();
+		List<String> zipNames = new ArrayList<String>();
+		int[] session = new int[n];
+		int[] zip = new int[n];
+		for (int e = 0; e < n; e++) {
+			int i = order[e];
+			session[e] = id(sessions[i], sessionIds, sessionNames);
+			zip[e] = id(zips[i], zipIds, zipNames);
+		}
+
+		// postings: the events of each type, session and zip, in time order
+		int keys = EventType.COUNT + sessionNames.size() + zipNames.size();
+		int[] start = new int[keys + 1];
+		for (int e = 0; e < n; e++) {
+			start[types[order[e]] + 1]++;
+			if (session[e] >= 0) {
+				start[EventType.COUNT + session[e] + 1]++;
+			}
+			start[EventType.COUNT + sessionNames.size() + zip[e] + 1]++;
+		}
+		for (int k = 0; k < keys; k++) {
+			start[k + 1] += start[k];
+		}
+		int[] postings = new int[start[keys]];
+		int[] next = Arrays.copyOf(start, keys);
+		for (int e = 0; e < n; e++) {
+			postings[next[types[order[e]]]++] = e;
+			if (session[e] >= 0) {
+				postings[next[EventType.COUNT + session[e]]++] = e;
+			}
+			postings[next[EventType.COUNT + sessionNames.size() + zip[e]]++] = e;
+		}
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream h = new DataOutputStream(header);
+		h.writeInt(n);
+		h.writeLong(times[order[0]]);
+		h.writeLong(times[order[n - 1]]);
+		h.writeInt(postings.length);
+		h.writeInt(EventType.COUNT);
+		for (EventType type : EventType.values()) {
+			h.writeUTF(type.typeName);
+		}
+		writeNames(h, sessionNames);
+		writeNames(h, zipNames);
+		h.flush();
+
+		FileOutputStream fileOut = new FileOutputStream(file);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(header.size());
+			header.writeTo(out);
+			int offset = 0;
+			for (int e = 0; e < n; e++) {
+				int i = order[e];
+				out.writeLong(times[i]);
+				out.writeInt(offset);
+				out.writeInt(jsons[i].length);
+				out.writeInt(session[e]);
+				out.writeInt(zip[e]);
+				out.writeInt(types[i]);
+				offset += jsons[i].length;
+			}
+			for (int k = 0; k < keys; k++) {
+				out.writeInt(start[k]);
+				out.writeInt(start[k + 1] - start[k]);
+			}
+			for (int p : postings) {
+				out.writeInt(p);
+			}
+			for (int e = 0; e < n; e++) {
+				out.write(jsons[order[e]]);
+			}
+			out.flush();
+			fileOut.getChannel().force(false);
+		}
+	}
+
+	private static int id(String name, Map<String, Integer> ids, List<String> names) {
+		if (name == null) {
+			return -1;
+		}
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = names.size();
+			ids.put(name, id);
+			names.add(name);
+		}
+		return id;
+	}
+
+	private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+		out.writeInt(names.size());
+		for (String name : names) {
+			out.writeUTF(name);
+		}
+	}
+
+	private static String[] readNames(DataInputStream in) throws IOException {
+		String[] names = new String[in.readInt()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = in.readUTF();
+		}
+		return names;
+	}
+
+	/*
+	 * a written segment, mapped into memory
+	 */
+	private static class Segment {
+		final File file;
+		final int number;
+		final int count;
+		final long minTime;
+		final long maxTime;
+		/**
+		 * the current type of each type in the file
+		 */
+		final EventType[] types;
+		final String[] sessions;
+		final String[] zips;
+		final Map<String, Integer> sessionIds = new HashMap<String, Integer>();
+		final Map<String, Integer> zipIds = new HashMap<String, Integer>();
+		final ByteBuffer data;
+		final int tablePos;
+		final int postingsPos;
+		final int jsonPos;
+
+		Segment(File file) throws IOException {
+			this.file = file;
+			this.number = Integer.parseInt(file.getName().substring(4, file.getName().length() - 4));
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+					throw new IOException("not a segment of an event store: " + file);
+				}
+				byte[] header = new byte[raf.readInt()];
+				raf.readFully(header);
+				DataInputStream h = new DataInputStream(new ByteArrayInputStream(header));
+				count = h.readInt();
+				minTime = h.readLong();
+				maxTime = h.readLong();
+				int postings = h.readInt();
+				types = new EventType[h.readInt()];
+				for (int i = 0; i < types.length; i++) {
+					EventType type = EventType.forName(h.readUTF());
+					types[i] = type == null ? EventType.OTHER : type;
+				}
+				sessions = readNames(h);
+				zips = readNames(h);
+				for (int i = 0; i < sessions.length; i++) {
+					sessionIds.put(sessions[i], i);
+				}
+				for (int i = 0; i < zips.length; i++) {
+					zipIds.put(zips[i], i);
+				}
+				long bodyPos = 12 + header.length;
+				data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, bodyPos, raf.length() - bodyPos);
+				tablePos = count * ENTRY_SIZE;
+				postingsPos = tablePos + (types.length + sessions.length + zips.length) * 8;
+				jsonPos = postingsPos + postings * 4;
+			}
+		}
+
+		long time(int e) {
+			return data.getLong(e * ENTRY_SIZE);
+		}
+
+		int session(int e) {
+			return data.getInt(e * ENTRY_SIZE + 16);
+		}
+
+		int zip(int e) {
+			return data.getInt(e * ENTRY_SIZE + 20);
+		}
+
+		EventType type(int e) {
+			return types[data.getInt(e * ENTRY_SIZE + 24)];
+		}
+
+		/**
+		 * the first event at or after the time
+		 */
+		int firstAt(long time) {
+			int low = 0;
+			int high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (time(mid) < time) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		int postingsStart(int key) {
+			return data.getInt(tablePos + key * 8);
+		}
+
+		int postingsCount(int key) {
+			return data.getInt(tablePos + key * 8 + 4);
+		}
+
+		int posting(int i) {
+			return data.getInt(postingsPos + i * 4);
+		}
+
+		StoredEvent read(int e) {
+			int pos = e * ENTRY_SIZE;
+			byte[] json = new byte[data.getInt(pos + 12)];
+			ByteBuffer view = data.duplicate();
+			view.position(jsonPos + data.getInt(pos + 8));
+			view.get(json);
+			int session = session(e);
+			return new StoredEvent(time(e), type(e), session < 0 ? null : sessions[session], zips[zip(e)],
+					new String(json, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Visits the events that match the query, segment by segment.
+	 * 
+	 * @return the number of events visited
+	 */
+	public int query(Query q, Visitor visitor) {
+		Set<String> zipsOfQuery = zipsOf(q);
+		int visited = 0;
+		for (Segment s : segments) {
+			if (s.count == 0 || q.from > s.maxTime || q.to <= s.minTime) {
+				continue;
+			}
+			boolean[] liveZips = liveZips(s, zipsOfQuery);
+			if (liveZips == null) {
+				continue;
+			}
+			int low = q.from == Long.MIN_VALUE ? 0 : s.firstAt(q.from);
+			int high = q.to == Long.MAX_VALUE ? s.count : s.firstAt(q.to);
+			for (int e : candidates(s, q, liveZips, zipsOfQuery != null, low, high)) {
+				if (matches(s, q, liveZips, e)) {
+					visited++;
+					if (!visitor.visit(s.read(e))) {
+						return visited;
+					}
+				}
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * The earliest events that match the query, ordered by time. As the
+	 * segments overlap in time, the matches of all segments are collected in a
+	 * heap with the latest one on top; the events of a segment are ordered by
+	 * time, so a segment is left as soon as its events are not earlier than the
+	 * top of a full heap.
+	 * 
+	 * @param limit
+	 *            the maximum number of events
+	 */
+	public List<StoredEvent> find(Query q, int limit) {
+		if (limit <= 0) {
+			return new ArrayList<StoredEvent>();
+		}
+		Comparator<StoredEvent> byTime = new Comparator<StoredEvent>() {
+			@Override
+			public int compare(StoredEvent a, StoredEvent b) {
+				return Long.compare(a.triggeredAt, b.triggeredAt);
+			}
+		};
+		PriorityQueue<StoredEvent> earliest = new PriorityQueue<StoredEvent>(16, Collections.reverseOrder(byTime));
+		Set<String> zipsOfQuery = zipsOf(q);
+		for (Segment s : segments) {
+			if (s.count == 0 || q.from > s.maxTime || q.to <= s.minTime) {
+				continue;
+			}
+			if (earliest.size() == limit && s.minTime >= earliest.peek().triggeredAt) {
+				continue;
+			}
+			boolean[] liveZips = liveZips(s, zipsOfQuery);
+			if (liveZips == null) {
+				continue;
+			}
+			int low = q.from == Long.MIN_VALUE ? 0 : s.firstAt(q.from);
+			int high = q.to == Long.MAX_VALUE ? s.count : s.firstAt(q.to);
+			for (int e : candidates(s, q, liveZips, zipsOfQuery != null, low, high)) {
+				if (earliest.size() == limit && s.time(e) >= earliest.peek().triggeredAt) {
+					break;
+				}
+				if (matches(s, q, liveZips, e)) {
+					if (earliest.size() == limit) {
+						earliest.poll();
+					}
+					earliest.add(s.read(e));
+				}
+			}
+		}
+		List<StoredEvent> found = new ArrayList<StoredEvent>(earliest);
+		Collections.sort(found, byTime);
+		return found;
+	}
+
+	/*
+	 * the zips that the query is restricted to, null for all
+	 */
+	private Set<String> zipsOf(Query q) {
+		if (q.zip == null && q.profile == null) {
+			return null;
+		}
+		Set<String> result = new HashSet<String>();
+		synchronized (this) {
+			if (q.profile == null) {
+				result.add(q.zip);
+			} else {
+				for (Map.Entry<String, Catalogued> c : catalog.entrySet()) {
+					if (c.getValue().profileIds.contains(q.profile)
+							&& (q.zip == null || q.zip.equals(c.getKey()))) {
+						result.add(c.getKey());
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * which zips of the segment have events of their latest version (and are
+	 * asked for), null if none
+	 */
+	private boolean[] liveZips(Segment s, Set<String> zipsOfQuery) {
+		boolean[] live = new boolean[s.zips.length];
+		boolean any = false;
+		synchronized (this) {
+			for (int z = 0; z < live.length; z++) {
+				Catalogued c = catalog.get(s.zips[z]);
+				live[z] = (c == null || c.fromSegment <= s.number)
+						&& (zipsOfQuery == null || zipsOfQuery.contains(s.zips[z]));
+				any |= live[z];
+			}
+		}
+		return any ? live : null;
+	}
+
+	/*
+	 * The events in [low, high) to check, from the shortest postings of the
+	 * conditions of the query.
+	 */
+	private static int[] candidates(Segment s, Query q, boolean[] liveZips, boolean byZip, int low, int high) {
+		List<Integer> keys = null;
+		int best = high - low;
+		if (q.session != null) {
+			Integer id = s.sessionIds.get(q.session);
+			if (id == null) {
+				return new int[0];
+			}
+			keys = Collections.singletonList(s.types.length + id);
+			best = s.postingsCount(keys.get(0));
+		}
+		if (q.types != null) {
+			List<Integer> typeKeys = new ArrayList<Integer>();
+			int total = 0;
+			for (int t = 0; t < s.types.length; t++) {
+				if (q.types.contains(s.types[t])) {
+					typeKeys.add(t);
+					total += s.postingsCount(t);
+				}
+			}
+			if (total < best) {
+				keys = typeKeys;
+				best = total;
+			}
+		}
+		if (byZip) {
+			List<Integer> zipKeys = new ArrayList<Integer>();
+			int total = 0;
+			for (int z = 0; z < liveZips.length; z++) {
+				if (liveZips[z]) {
+					int key = s.types.length + s.sessions.length + z;
+					zipKeys.add(key);
+					total += s.postingsCount(key);
+				}
+			}
+			if (total < best) {
+				keys = zipKeys;
+				best = total;
+			}
+		}
+		if (keys == null) {
+			int[] all = new int[high - low];
+			for (int i = 0; i < all.length; i++) {
+				all[i] = low + i;
+			}
+			return all;
+		}
+		int[] events = new int[best];
+		int n = 0;
+		for (int key : keys) {
+			int start = s.postingsStart(key);
+			int end = start + s.postingsCount(key);
+			for (int i = start; i < end; i++) {
+				int e = s.posting(i);
+				if (e >= high) {
+					break;
+				}
+				if (e >= low) {
+					events[n++] = e;
+				}
+			}
+		}
+		events = Arrays.copyOf(events, n);
+		if (keys.size() > 1) {
+			Arrays.sort(events);
+		}
+		return events;
+	}
+
+	private static boolean matches(Segment s, Query q, boolean[] liveZips, int e) {
+		if (!liveZips[s.zip(e)]) {
+			return false;
+		}
+		if (q.types != null && !q.types.contains(s.type(e))) {
+			return false;
+		}
+		if (q.session != null) {
+			int session = s.session(e);
+			return session >= 0 && q.session.equals(s.sessions[session]);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the remaining events and closes the catalog.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (readOnly) {
+			return;
+		}
+		flush();
+		if (catalogOut != null) {
+			catalogOut.close();
+			catalogOut = null;
+		}
+		if (logOut != null) {
+			logOut.close();
+			logOut = null;
+		}
+	}
+
+	/**
+	 * Prints the events of a store that match the given conditions, one Json
+	 * per line, e.g., "EventStore out/store type=BuildEvent profile=X
+	 * from=2016-05-01 to=2016-05-08".
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("usage: EventStore <store folder> [type=<name>]... [profile=<id>] [zip=<file>]"
+					+ " [session=<id>] [from=<time>] [to=<time>] [limit=<n>] [count]");
+			return;
+		}
+		Query q = new Query();
+		ZonedDateTime from = null;
+		ZonedDateTime to = null;
+		int limit = Integer.MAX_VALUE;
+		boolean count = false;
+		for (int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("type=")) {
+				EventType type = EventType.forName(value);
+				if (type == null) {
+					System.err.println("unknown event type: " + value);
+					return;
+				}
+				q.type(type);
+			} else if (arg.startsWith("profile=")) {
+				q.profile(value);
+			} else if (arg.startsWith("zip=")) {
+				q.zip(value);
+			} else if (arg.startsWith("session=")) {
+				q.session(value);
+			} else if (arg.startsWith("from=")) {
+				from = parseTime(value);
+			} else if (arg.startsWith("to=")) {
+				to = parseTime(value);
+			} else if (arg.startsWith("limit=")) {
+				limit = Integer.parseInt(value);
+			} else if (arg.equals("count")) {
+				count = true;
+			} else {
+				System.err.println("unknown argument: " + arg);
+				return;
+			}
+		}
+		if (from != null || to != null) {
+			q.between(from, to);
+		}
+		try (EventStore store = openReadOnly(new File(args[0]))) {
+			long start = System.nanoTime();
+			if (count) {
+				int n = store.query(q, new Visitor() {
+					@Override
+					public boolean visit(StoredEvent event) {
+						return true;
+					}
+				});
+				System.out.println(n);
+			} else {
+				for (StoredEvent e : store.find(q, limit)) {
+					System.out.println(e.json);
+				}
+			}
+			System.err.printf("%d segments, %d ms\n", store.getSegmentCount(), (System.nanoTime() - start) / 1000000);
+		}
+	}
+
+	/*
+	 * a date (start of the day in UTC) or a time with an offset
+	 */
+	private static ZonedDateTime parseTime(String value) {
+		if (value.length() == 10) {
+			return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC);
+		}
+		return ZonedDateTime.parse(value);
+	}
+}
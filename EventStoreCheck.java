@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Checks that the event store survives what happens to it in real runs: it
+ * appends zips, reopens the store and appends to it, crashes after a sync
+ * (with a torn log record), reads a changed zip again and appends events that
+ * are earlier than all others, and after each step compares queries by type,
+ * time range, zip and profile, and the earliest events of a query, with the
+ * events that were written. Exits with an exception at the first difference.
+ */
+public class EventStoreCheck {
+
+	private static final ZonedDateTime START = ZonedDateTime.parse("2016-05-01T10:00:00+02:00");
+
+	public static void main(String[] args) throws IOException {
+		File dir = Files.createTempDirectory("store").toFile();
+		List<StoredEvent> expected = new ArrayList<StoredEvent>();
+
+		try (EventStore store = new EventStore(dir, 1)) {
+			append(store, "u0/a.zip", "p0", 0, 300, expected);
+			store.flush();
+			append(store, "u0/b.zip", "p1", 300, 200, expected);
+		}
+		check(dir, expected, "after the first run");
+
+		try (EventStore store = new EventStore(dir, 1)) {
+			append(store, "u1/c.zip", "p0", 500, 100, expected);
+		}
+		check(dir, expected, "after appending");
+
+		// a run that dies after the sync of d.zip, while writing e.zip
+		EventStore crashed = new EventStore(dir, 1);
+		append(crashed, "u1/d.zip", "p2", 600, 150, expected);
+		crashed.sync();
+		append(crashed, "u1/e.zip", "p2", 750, 10, new ArrayList<StoredEvent>());
+		try (FileOutputStream torn = new FileOutputStream(new File(dir, "wal.log"), true)) {
+			torn.write(new byte[] { 0, 0, 1, 0, 7, 7 });
+		}
+		try (EventStore store = new EventStore(dir, 1)) {
+			// a changed zip hides the events of its earlier version
+			remove(expected, "u0/b.zip");
+			append(store, "u0/b.zip", "p1", 760, 40, expected);
+		}
+		check(dir, expected, "after the restart");
+
+		try (EventStore store = new EventStore(dir, 1)) {
+			// earlier than the other events, in a segment that overlaps the first one
+			append(store, "u2/f.zip", "p3", -200, 250, expected);
+		}
+		check(dir, expected, "after adding earlier events");
+
+		try {
+			EventStore.openReadOnly(new File(dir, "missing")).close();
+			throw new IllegalStateException("opened a store in a folder that does not exist");
+		} catch (IOException e) {
+			// expected
+		}
+		if (new File(dir, "missing").exists()) {
+			throw new IllegalStateException("opening a missing store created its folder");
+		}
+
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+		System.out.println("event store: " + expected.size() + " events read back correctly");
+	}
+
+	/*
+	 * every seventh event has no time
+	 */
+	private static void append(EventStore store, String path, String profile, int first, int count,
+			List<StoredEvent> expected) throws IOException {
+		ZipContext zip = new ZipContext(path);
+		zip.aggregate.profileIds.add(profile);
+		EventRecord r = new EventRecord();
+		for (int i = first; i < first + count; i++) {
+			r.type = i % 3 == 0 ? EventType.COMMAND : i % 3 == 1 ? EventType.BUILD : EventType.EDIT;
+			r.typeName = r.type.typeName;
+			r.IDESessionUUID = "s" + i / 50;
+			r.TriggeredAt = i % 7 == 6 ? null : START.plusMinutes(i);
+			r.json = "{\"n\":" + i + "}";
+			store.append(r, zip);
+			expected.add(new StoredEvent(path, profile, r));
+		}
+		store.finishZip(zip);
+	}
+
+	private static void remove(List<StoredEvent> expected, String zip) {
+		for (Iterator<StoredEvent> it = expected.iterator(); it.hasNext();) {
+			if (it.next().zip.equals(zip)) {
+				it.remove();
+			}
+		}
+	}
+
+	private static void check(File dir, List<StoredEvent> expected, String when) throws IOException {
+		ZonedDateTime from = START.plusMinutes(100);
+		ZonedDateTime to = START.plusMinutes(700);
+		try (EventStore store = EventStore.openReadOnly(dir)) {
+			compare(store, new EventStore.Query(), expected, when + ", all events");
+			compare(store, new EventStore.Query().type(EventType.BUILD), filter(expected, EventType.BUILD, null,
+					null, null, null), when + ", by type");
+			compare(store, new EventStore.Query().between(from, to), filter(expected, null, from, to, null, null),
+					when + ", by time");
+			compare(store, new EventStore.Query().profile("p0").type(EventType.EDIT).between(from, null),
+					filter(expected, EventType.EDIT, from, null, null, "p0"), when + ", by profile, type and time");
+			compare(store, new EventStore.Query().zip("u0/b.zip"), filter(expected, null, null, null, "u0/b.zip",
+					null), when + ", by zip");
+			ZonedDateTime early = START.minusMinutes(100);
+			compareEarliest(store, new EventStore.Query().between(early, null),
+					filter(expected, null, early, START.plusMinutes(120), null, null), when + ", earliest");
+			compareEarliest(store, new EventStore.Query().type(EventType.COMMAND).between(early, null),
+					filter(expected, EventType.COMMAND, early, START.plusMinutes(30), null, null),
+					when + ", earliest by type");
+		}
+	}
+
+	/*
+	 * the query with the number of expected events as limit, which must find the
+	 * expected (and earliest) events in time order
+	 */
+	private static void compareEarliest(EventStore store, EventStore.Query q, List<StoredEvent> expected,
+			String what) {
+		List<EventStore.StoredEvent> found = store.find(q, expected.size());
+		for (int i = 1; i < found.size(); i++) {
+			if (found.get(i).triggeredAt < found.get(i - 1).triggeredAt) {
+				throw new IllegalStateException(what + ": the events are not ordered by time");
+			}
+		}
+		compare(found, expected, what);
+	}
+
+	private static List<StoredEvent> filter(List<StoredEvent> events, EventType type, ZonedDateTime from,
+			ZonedDateTime to, String zip, String profile) {
+		List<StoredEvent> matches = new ArrayList<StoredEvent>();
+		for (StoredEvent e : events) {
+			boolean inRange = from == null && to == null || e.time != null
+					&& (from == null || !e.time.isBefore(from)) && (to == null || e.time.isBefore(to));
+			if ((type == null || e.type == type) && inRange && (zip == null || e.zip.equals(zip))
+					&& (profile == null || e.profile.equals(profile))) {
+				matches.add(e);
+			}
+		}
+		return matches;
+	}
+
+	private static void compare(EventStore store, EventStore.Query q, List<StoredEvent> expected, String what) {
+		compare(store.find(q, Integer.MAX_VALUE), expected, what);
+	}
+
+	private static void compare(List<EventStore.StoredEvent> found, List<StoredEvent> expected, String what) {
+		List<String> actual = new ArrayList<String>();
+		for (EventStore.StoredEvent e : found) {
+			actual.add(e.zip + "," + e.type + "," + e.IDESessionUUID + ","
+					+ (e.triggeredAt == EventStore.NO_TIME ? null : e.getTriggeredAt()) + "," + e.json);
+		}
+		List<String> wanted = new ArrayList<String>();
+		for (StoredEvent e : expected) {
+			wanted.add(e.toString());
+		}
+		Collections.sort(actual);
+		Collections.sort(wanted);
+		if (!actual.equals(wanted)) {
+			wanted.removeAll(actual);
+			throw new IllegalStateException(what + ": expected " + expected.size() + " events but found "
+					+ actual.size() + (wanted.isEmpty() ? "" : ", e.g., missing " + wanted.get(0)));
+		}
+	}
+
+	private static class StoredEvent {
+		final String zip;
+		final String profile;
+		final EventType type;
+		final String session;
+		final ZonedDateTime time;
+		final String json;
+
+		StoredEvent(String zip, String profile, EventRecord r) {
+			this.zip = zip;
+			this.profile = profile;
+			this.type = r.type;
+			this.session = r.IDESessionUUID;
+			this.time = r.TriggeredAt;
+			this.json = r.json;
+		}
+
+		@Override
+		public String toString() {
+			return zip + "," + type + "," + session + "," + (time == null ? null : time.toInstant()) + "," + json;
+		}
+	}
+}
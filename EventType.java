@@ -0,0 +1,137 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import cc.kave.commons.model.events.ActivityEvent;
+import cc.kave.commons.model.events.CommandEvent;
+import cc.kave.commons.model.events.ErrorEvent;
+import cc.kave.commons.model.events.IIDEEvent;
+import cc.kave.commons.model.events.InfoEvent;
+import cc.kave.commons.model.events.NavigationEvent;
+import cc.kave.commons.model.events.SystemEvent;
+import cc.kave.commons.model.events.completionevents.CompletionEvent;
+import cc.kave.commons.model.events.testrunevents.TestRunEvent;
+import cc.kave.commons.model.events.userprofiles.UserProfileEvent;
+import cc.kave.commons.model.events.versioncontrolevents.VersionControlEvent;
+import cc.kave.commons.model.events.visualstudio.BuildEvent;
+import cc.kave.commons.model.events.visualstudio.DebuggerEvent;
+import cc.kave.commons.model.events.visualstudio.DocumentEvent;
+import cc.kave.commons.model.events.visualstudio.EditEvent;
+import cc.kave.commons.model.events.visualstudio.FindEvent;
+import cc.kave.commons.model.events.visualstudio.IDEStateEvent;
+import cc.kave.commons.model.events.visualstudio.InstallEvent;
+import cc.kave.commons.model.events.visualstudio.SolutionEvent;
+import cc.kave.commons.model.events.visualstudio.UpdateEvent;
+import cc.kave.commons.model.events.visualstudio.WindowEvent;
+
+/**
+ * All event types that are distinguished in the outputs. The order is the
+ * order of the summary at the end of a run; the ordinal is used as index into
+ * the counter arrays.
+ */
+public enum EventType {
+
+	COMMAND(CommandEvent.class, "Command events", false),
+	ACTIVITY(ActivityEvent.class, "activity events", true),
+	TEST_RUN(TestRunEvent.class, "test events", true),
+	VERSION_CONTROL(VersionControlEvent.class, "version cotnrol events", false),
+	WINDOW(WindowEvent.class, "window events", false),
+	BUILD(BuildEvent.class, "build events", true),
+	COMPLETION(CompletionEvent.class, "completion events", false),
+	SYSTEM(SystemEvent.class, "system events", false),
+	NAVIGATION(NavigationEvent.class, "navigation events", false),
+	/** any event that is not one of the other types */
+	OTHER(null, "other events", false),
+	INSTALL(InstallEvent.class, "install events", false),
+	DOCUMENT(DocumentEvent.class, "document events", false),
+	DEBUGGER(DebuggerEvent.class, "debugger events", false),
+	USER_PROFILE(UserProfileEvent.class, "userprofile events", false),
+	IDE_STATE(IDEStateEvent.class, "ideee events", false),
+	EDIT(EditEvent.class, "edit events", true),
+	FIND(FindEvent.class, "find events", false),
+	UPDATE(UpdateEvent.class, "update events", false),
+	SOLUTION(SolutionEvent.class, "solution events", false),
+	ERROR(ErrorEvent.class, "error events", false),
+	INFO(InfoEvent.class, "info events", false);
+
+	public static final int COUNT = values().length;
+
+	/**
+	 * the class of the events, null for OTHER
+	 */
+	public final Class<? extends IIDEEvent> eventClass;
+
+	/**
+	 * the name in the "Event" column, i.e., the simple class name ("other" for
+	 * OTHER, whose rows use the name of the actual class)
+	 */
+	public final String typeName;
+
+	public final String summaryLabel;
+
+	/**
+	 * whether the row contains the Duration of the event
+	 */
+	public final boolean hasDuration;
+
+	private EventType(Class<? extends IIDEEvent> eventClass, String summaryLabel, boolean hasDuration) {
+		this.eventClass = eventClass;
+		this.typeName = eventClass == null ? "other" : eventClass.getSimpleName();
+		this.summaryLabel = summaryLabel;
+		this.hasDuration = hasDuration;
+	}
+
+	private static final Map<String, EventType> BY_NAME = new HashMap<String, EventType>();
+	private static final Map<Class<?>, EventType> BY_CLASS = new HashMap<Class<?>, EventType>();
+	static {
+		for (EventType t : values()) {
+			BY_NAME.put(t.typeName, t);
+			if (t.eventClass != null) {
+				BY_CLASS.put(t.eventClass, t);
+			}
+		}
+	}
+
+	/*
+	 * resolved once per class, also for subclasses of the known event types
+	 */
+	private static final ClassValue<EventType> TYPES = new ClassValue<EventType>() {
+		@Override
+		protected EventType computeValue(Class<?> c) {
+			for (Class<?> cur = c; cur != null; cur = cur.getSuperclass()) {
+				EventType t = BY_CLASS.get(cur);
+				if (t != null) {
+					return t;
+				}
+			}
+			return OTHER;
+		}
+	};
+
+	public static EventType of(Class<?> eventClass) {
+		return TYPES.get(eventClass);
+	}
+
+	/**
+	 * @return the type with the given typeName, or null if it is unknown
+	 */
+	public static EventType forName(String typeName) {
+		return typeName == null ? null : BY_NAME.get(typeName);
+	}
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An exact set of 64-bit fingerprints that lives mostly on disk. New
+ * fingerprints are kept in a small hash table; when it is full, they are
+ * written sorted to a run file, which is then mapped into memory and searched
+ * with a binary search. Runs of similar size are merged, so a set of n
+ * fingerprints has about log2(n / bufferSize) runs and every fingerprint is
+ * rewritten that many times at most.
+ * 
+ * Not thread-safe; the callers synchronize.
+ */
+class FingerprintSet {
+
+	private static final long EMPTY = 0;
+
+	private final File dir;
+	private final String name;
+	private long[] table;
+	private int size;
+	private final List<Run> runs = new ArrayList<Run>();
+	private int nextRun;
+
+	/**
+	 * a sorted, mapped run file
+	 */
+	private static class Run {
+		final File file;
+		final LongBuffer values;
+
+		Run(File file) throws IOException {
+			this.file = file;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				values = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).asLongBuffer();
+			}
+		}
+
+		int size() {
+			return values.limit();
+		}
+
+		boolean contains(long fingerprint) {
+			int low = 0;
+			int high = values.limit() - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				long v = values.get(mid);
+				if (v < fingerprint) {
+					low = mid + 1;
+				} else if (v > fingerprint) {
+					high = mid - 1;
+				} else {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param bufferSize
+	 *            fingerprints kept in memory before they are written to disk
+	 */
+	FingerprintSet(File dir, String name, int bufferSize) {
+		this.dir = dir;
+		this.name = name;
+		// at most half of the slots are used
+		this.table = new long[Integer.highestOneBit(Math.max(2, bufferSize)) * 2];
+	}
+
+	/**
+	 * Adds a fingerprint that is not in the set yet (e.g., because a
+	 * {@link BloomFilter} does not contain it, or {@link #contains(long)} was
+	 * false).
+	 */
+	void addNew(long fingerprint) throws IOException {
+		insert(fingerprint == EMPTY ? 1 : fingerprint);
+		if (size >= table.length / 2) {
+			flush();
+		}
+	}
+
+	boolean contains(long fingerprint) {
+		long f = fingerprint == EMPTY ? 1 : fingerprint;
+		int mask = table.length - 1;
+		for (int i = (int) Hashing.mix(f) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+			if (table[i] == f) {
+				return true;
+			}
+		}
+		for (Run run : runs) {
+			if (run.contains(f)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void insert(long f) {
+		int mask = table.length - 1;
+		int i = (int) Hashing.mix(f) & mask;
+		while (table[i] != EMPTY) {
+			i = (i + 1) & mask;
+		}
+		table[i] = f;
+		size++;
+	}
+
+	long getSizeOnDisk() {
+		long bytes = 0;
+		for (Run run : runs) {
+			bytes += run.file.length();
+		}
+		return bytes;
+	}
+
+	private void flush() throws IOException {
+		long[] sorted = new long[size];
+		int n = 0;
+		for (long f : table) {
+			if (f != EMPTY) {
+				sorted[n++] = f;
+			}
+		}
+		Arrays.sort(sorted);
+		Files.createDirectories(dir.toPath());
+		File file = newRunFile();
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			for (long f : sorted) {
+				out.writeLong(f);
+			}
+		}
+		runs.add(new Run(file));
+		Arrays.fill(table, EMPTY);
+		size = 0;
+		compact();
+	}
+
+	/*
+	 * merges the last two runs as long as the older one is not much larger
+	 */
+	private void compact() throws IOException {
+		while (runs.size() > 1) {
+			Run newer = runs.get(runs.size() - 1);
+			Run older = runs.get(runs.size() - 2);
+			if (older.size() > 2 * newer.size()) {
+				return;
+			}
+			File file = newRunFile();
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+				int i = 0;
+				int j = 0;
+				while (i < older.size() || j < newer.size()) {
+					if (j == newer.size() || (i < older.size() && older.values.get(i) < newer.values.get(j))) {
+						out.writeLong(older.values.get(i++));
+					} else {
+						out.writeLong(newer.values.get(j++));
+					}
+				}
+			}
+			runs.remove(runs.size() - 1);
+			runs.set(runs.size() - 1, new Run(file));
+			older.file.delete();
+			newer.file.delete();
+		}
+	}
+
+	private File newRunFile() {
+		return new File(dir, name + "-" + (nextRun++) + ".bin");
+	}
+
+	/**
+	 * Deletes the run files.
+	 */
+	void delete() {
+		for (Run run : runs) {
+			run.file.delete();
+		}
+		runs.clear();
+		table = new long[2];
+		size = 0;
+	}
+}
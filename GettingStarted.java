@@ -16,37 +16,30 @@
 package examples;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.PrintWriter;
-import java.time.DateTimeException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import cc.kave.commons.model.events.ActivityEvent;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 import cc.kave.commons.model.events.CommandEvent;
-import cc.kave.commons.model.events.ErrorEvent;
 import cc.kave.commons.model.events.IDEEvent;
 import cc.kave.commons.model.events.IIDEEvent;
-import cc.kave.commons.model.events.InfoEvent;
-import cc.kave.commons.model.events.NavigationEvent;
-import cc.kave.commons.model.events.SystemEvent;
 import cc.kave.commons.model.events.completionevents.CompletionEvent;
-import cc.kave.commons.model.events.testrunevents.TestRunEvent;
 import cc.kave.commons.model.events.userprofiles.UserProfileEvent;
-import cc.kave.commons.model.events.versioncontrolevents.VersionControlEvent;
-import cc.kave.commons.model.events.visualstudio.BuildEvent;
-import cc.kave.commons.model.events.visualstudio.DebuggerEvent;
-import cc.kave.commons.model.events.visualstudio.DocumentEvent;
-import cc.kave.commons.model.events.visualstudio.EditEvent;
-import cc.kave.commons.model.events.visualstudio.FindEvent;
-import cc.kave.commons.model.events.visualstudio.IDEStateEvent;
-import cc.kave.commons.model.events.visualstudio.InstallEvent;
-import cc.kave.commons.model.events.visualstudio.SolutionEvent;
-import cc.kave.commons.model.events.visualstudio.UpdateEvent;
-import cc.kave.commons.model.events.visualstudio.WindowEvent;
 import cc.kave.commons.model.ssts.ISST;
 import cc.kave.commons.utils.io.IReadingArchive;
 import cc.kave.commons.utils.io.ReadingArchive;
@@ -59,69 +52,469 @@ import cc.kave.commons.utils.io.json.JsonUtils;
 public class GettingStarted {
 
 	private String eventsDir;
-	static int commandEvents;
-	static int activityEvents;
-	static int testse;
-	static int versione;
-	static int windowe;
-	static int builde;
-	static int completionevents;
-	static int systemevents;
-	static int navigationevents;
-	static int other;
-	static int installevent;
-	static int documente;
-	static int debuggere;
-	static int userprofile;
-	static int ideee;
-	static int editevent;
-	static int finde;
-	static int updatevent;
-	static int solutionevent;
-	static int errore;
-	static int infoe;
-	static int exceptions;
-	static ArrayList<String> all_files = new ArrayList<String>();
+	private IngestOptions options;
+	private ZipManifest manifest;
+	private final EventDispatcher dispatcher = new EventDispatcher();
+	private final IngestMetrics metrics;
+	private SplitZipReader splitter;
+	private ProgressBar progress;
+	/*
+	 * the sizes of the zips found at the start, null if there is no plan
+	 */
+	private ZipPlan plan;
+
+	/*
+	 * where the rows of the zips are kept until they are committed, null if
+	 * they are written to the outputs directly
+	 */
+	private File stagingDir;
+	private ColumnarEventWriter columnar;
+	private EventPartitions partitions;
+	private EventStore store;
+	private CompletionExtractor completionExtractor;
+	private SstFeatureExtractor sstFeatures;
+	private CsvSink sstOut;
+	private Sessionizer sessionizer;
+	private SketchAggregator sketches;
+	private TimeRollups rollups;
+	private DuplicateFilter duplicates;
+	private volatile ZipWatcher watcher;
+
+	/*
+	 * the number of events read from a single zip at most
+	 */
+	static final int MAX_EVENTS_PER_ZIP = 5000000;
+
+	/*
+	 * ends the queue of zips for the workers, compared by identity
+	 */
+	private static final String NO_MORE_ZIPS = new String("");
+
+	/*
+	 * first field of the lines of the aggregates file with the number of
+	 * quarantined events per cause
+	 */
+	static final String CAUSES = "#causes";
+
+	/*
+	 * Number of events per type in all processed zips, indexed by
+	 * EventType.ordinal(). Workers count into the ZipAggregate of their zip, which
+	 * is added here once the zip is done.
+	 */
+	static final long[] eventCounts = new long[EventType.COUNT];
+	static final LongAdder exceptions = new LongAdder();
+	static Set<String> all_files = Collections.synchronizedSet(new LinkedHashSet<String>());
 	static ArrayList<String> files_missing_id_profile = new ArrayList<String>();
-	static Map<String, ArrayList<String>> ids = new HashMap<String, ArrayList<String>>();
+	static final ProfileIndex ids = new ProfileIndex();
+	static CsvSink events;
+	static CsvSink completions;
+	static CsvSink errors;
+	static Quarantine quarantine;
+	static CsvSink eventsPerUser;
+	static CsvSink usersWithMoreThan2000;
+	static CsvSink idsAndZips;
+	static CsvSink zipAggregates;
+	static CsvSink duplicatesOut;
 
 	public GettingStarted(String eventsDir) {
+		this(eventsDir, new IngestOptions());
+	}
+
+	public GettingStarted(String eventsDir, IngestOptions options) {
 		this.eventsDir = eventsDir;
+		this.options = options;
+		this.metrics = new IngestMetrics(options.slowEventMillis);
+		registerDefaultHandlers();
+	}
+
+	/**
+	 * Additional handlers can be registered here before the run is started.
+	 */
+	public EventDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	public IngestMetrics getMetrics() {
+		return metrics;
 	}
 
 	public void run() {
+		if (options.watch && !options.incremental) {
+			// the manifest tells which zips are counted already
+			throw new IllegalArgumentException("watching the events folder needs an incremental run");
+		}
 
 		System.out.printf("looking (recursively) for events in folder %s\n", new File(eventsDir).getAbsolutePath());
 
+		if (options.incremental) {
+			try {
+				manifest = ZipManifest.load(new File(options.outputDir, "manifest.csv"));
+				checkManifest();
+			} catch (IOException e) {
+				throw new RuntimeException("cannot read the manifest of the last run", e);
+			}
+		}
+		openSinks();
+		if (options.columnarFile != null) {
+			try {
+				columnar = new ColumnarEventWriter(new File(options.outputDir, options.columnarFile),
+						options.columnarRowGroupSize, true /* append = true */);
+			} catch (IOException e) {
+				closeSinks();
+				throw new RuntimeException("cannot open the columnar output", e);
+			}
+		}
+		if (options.partitionDir != null) {
+			try {
+				partitions = new EventPartitions(new File(options.outputDir, options.partitionDir), true);
+			} catch (IOException e) {
+				closeColumnar();
+				closeSinks();
+				throw new RuntimeException("cannot open the partitioned outputs", e);
+			}
+		}
+		if (options.storeDir != null) {
+			try {
+				store = new EventStore(new File(options.outputDir, options.storeDir), options.storeSegmentMb);
+			} catch (IOException e) {
+				closePartitions();
+				closeColumnar();
+				closeSinks();
+				throw new RuntimeException("cannot open the event store", e);
+			}
+		}
+		if (options.completionFile != null) {
+			try {
+				completionExtractor = new CompletionExtractor(new File(options.outputDir, options.completionFile));
+			} catch (IOException e) {
+				closeStore();
+				closePartitions();
+				closeColumnar();
+				closeSinks();
+				throw new RuntimeException("cannot open the completions file", e);
+			}
+		}
+		if (options.sstFeaturesFile != null) {
+			sstOut = openSink(options.sstFeaturesFile);
+			sstOut.writeHeader(SstFeatureExtractor.HEADER);
+			sstFeatures = new SstFeatureExtractor(sstOut, options.sstThreads, options.sstCacheMb << 20);
+		}
+		if (manifest != null) {
+			try {
+				resumeOutputs();
+			} catch (IOException e) {
+				closeSstFeatures();
+				closeCompletions();
+				closeStore();
+				closePartitions();
+				closeColumnar();
+				closeSinks();
+				throw new RuntimeException("cannot resume the outputs of the last run", e);
+			}
+		}
+		if (options.sessionsFile != null) {
+			sessionizer = new Sessionizer(new File(options.outputDir, options.sessionsFile + ".runs"),
+					options.maxSessionsInMemory);
+		}
+		if (options.duplicates != null) {
+			duplicates = new DuplicateFilter(options.duplicates, new File(options.outputDir, "duplicates.tmp"),
+					options.duplicatesMemoryMb << 20, options.expectedEvents);
+			duplicatesOut = openSink("duplicates.csv", false);
+			duplicatesOut.writeHeader(DuplicateFilter.HEADER);
+		}
+		if (options.rollupFile != null) {
+			rollups = new TimeRollups(options.rollupHours, options.rollupByProfile);
+		}
+		if (options.sketchFile != null) {
+			sketches = new SketchAggregator(options.sketchPrecision, options.sketchCounters);
+		}
+		if (options.metricsFile != null) {
+			metrics.start(new File(options.outputDir, options.metricsFile),
+					new File(options.outputDir, options.zipMetricsFile), options.metricsIntervalMs);
+		}
+		if (options.splitThreads > 1) {
+			splitter = new SplitZipReader(this, eventsDir, options);
+		}
+		try {
+			if (options.watch) {
+				watcher = new ZipWatcher(this, eventsDir, options.watchQuietMillis);
+			}
+			processAllZips();
+			if (watcher != null) {
+				// from now on, ids_and_zips.csv is replaced after every zip
+				idsAndZips.flush();
+				progress = null;
+				// the zips that arrive now are not in the plan
+				plan = null;
+				watcher.watch();
+			}
+			writeCauses();
+			writeSessions();
+			writeSketches();
+			writeRollups();
+			writeCompletionStats();
+		} catch (IOException e) {
+			throw new RuntimeException("cannot watch the events folder", e);
+		} finally {
+			watcher = null;
+			sketches = null;
+			rollups = null;
+			if (duplicates != null) {
+				System.out.println(duplicates.getSummary());
+				duplicates.close();
+				duplicates = null;
+				duplicatesOut.close();
+				duplicatesOut = null;
+			}
+			if (sessionizer != null) {
+				sessionizer.discard();
+				sessionizer = null;
+			}
+			if (splitter != null) {
+				splitter.shutdown();
+				splitter = null;
+			}
+			metrics.stop();
+			closeSstFeatures();
+			closeCompletions();
+			closeStore();
+			closePartitions();
+			closeColumnar();
+			closeSinks();
+			if (stagingDir != null) {
+				// empty unless a zip could not be discarded
+				stagingDir.delete();
+				stagingDir = null;
+			}
+		}
+	}
+
+	/*
+	 * All output files are opened once per run and closed (and thereby flushed)
+	 * when the run ends, also if it ends with an exception.
+	 */
+	void openSinks() {
+		events = openSink("events.csv");
+		completions = openSink("CompletionEvents.csv");
+		File errorsFile = new File(options.outputDir, "errors.csv");
+		try {
+			File moved = Quarantine.moveAsideIfOtherHeader(errorsFile);
+			if (moved != null) {
+				System.out.println("errors.csv has other columns, moved to " + moved.getName());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("cannot move the old errors.csv aside", e);
+		}
+		errors = openSink("errors.csv");
+		quarantine = new Quarantine(errors);
+		eventsPerUser = openSink("events_per_user.csv");
+		usersWithMoreThan2000 = openSink("userswithmorethan2000events.csv");
+		// in incremental runs, the mapping is written completely by every run
+		idsAndZips = openSink("ids_and_zips.csv", !options.incremental);
+		zipAggregates = options.aggregatesFile == null ? null : openSink(options.aggregatesFile, false);
+	}
+
+	private CsvSink openSink(String fileName) {
+		return openSink(fileName, true);
+	}
+
+	private CsvSink openSink(String fileName, boolean append) {
+		return new CsvSink(new File(options.outputDir, fileName), CsvSink.DEFAULT_BUFFER_SIZE,
+				CsvSink.DEFAULT_FLUSH_INTERVAL_MS, append);
+	}
+
+	private void writeSessions() {
+		if (sessionizer == null) {
+			return;
+		}
+		try (CsvSink sessions = openSink(options.sessionsFile, false)) {
+			int runs = sessionizer.getSpilledRuns();
+			int count = sessionizer.finish(sessions);
+			System.out.println("sessions: " + count + " (spilled runs: " + runs + ")");
+		}
+	}
+
+	private void writeSketches() {
+		if (sketches == null) {
+			return;
+		}
+		try {
+			sketches.getSketches().save(new File(options.outputDir, options.sketchFile));
+		} catch (IOException e) {
+			throw new RuntimeException("cannot save the sketches", e);
+		}
+		try (CsvSink users = openSink(options.sketchFile + ".users.csv", false)) {
+			sketches.writeUsers(users);
+		}
+		try (CsvSink top = openSink(options.sketchFile + ".top.csv", false)) {
+			sketches.writeTop(top, options.sketchTopK);
+		}
+		SketchAggregator.printSummary(sketches.getSketches(), Math.min(10, options.sketchTopK));
+	}
+
+	private void writeRollups() {
+		if (rollups == null) {
+			return;
+		}
+		try {
+			rollups.save(new File(options.outputDir, options.rollupFile + ".bin"));
+		} catch (IOException e) {
+			throw new RuntimeException("cannot save the rollups", e);
+		}
+		try (CsvSink out = openSink(options.rollupFile, false)) {
+			int rows = rollups.write(out);
+			System.out.println("rollups: " + rows + " rows (events without time: " + rollups.getUntimed() + ")");
+		}
+	}
+
+	/*
+	 * A zip in the manifest is skipped for all outputs, so an incremental run can
+	 * only continue one that wrote the same outputs; outputs that are computed
+	 * from the zips read in a run cannot be continued at all, and neither can
+	 * the search for duplicates, which only knows the events read in this run.
+	 */
+	private void checkManifest() throws IOException {
+		String outputs = appendedOutputs();
+		if (!manifest.getEntries().isEmpty()) {
+			if (manifest.getOutputs() != null && !manifest.getOutputs().equals(outputs)) {
+				throw new IllegalArgumentException("the zips in the manifest were written to " + manifest.getOutputs()
+						+ ", not to " + outputs + "; use a new output folder");
+			}
+			if (options.sessionsFile != null || options.sketchFile != null || options.rollupFile != null) {
+				throw new IllegalArgumentException("sessions, sketches and rollups cannot be added to by a run"
+						+ " that skips the zips in the manifest; use a new output folder");
+			}
+			if (options.duplicates != null) {
+				throw new IllegalArgumentException("duplicates cannot be found by a run that skips the zips in the"
+						+ " manifest, as their events are not read; use a new output folder");
+			}
+		}
+		manifest.setOutputs(outputs);
+	}
+
+	/*
+	 * the outputs to which the rows of every zip are appended
+	 */
+	private String appendedOutputs() {
+		StringBuilder sb = new StringBuilder("events.csv");
+		if (options.completionFile == null || options.completionsCsv) {
+			sb.append(" CompletionEvents.csv");
+		}
+		String[] files = { options.columnarFile, options.partitionDir, options.storeDir, options.completionFile,
+				options.sstFeaturesFile };
+		for (String file : files) {
+			if (file != null) {
+				sb.append(' ').append(file);
+			}
+		}
+		if (options.duplicates != null) {
+			sb.append(" duplicates=").append(options.duplicates);
+		}
+		return sb.toString();
+	}
+
+	private void writeCompletionStats() {
+		if (completionExtractor == null) {
+			return;
+		}
+		try (CsvSink out = openSink(options.completionFile + ".stats.csv", false)) {
+			// an incremental run skips zips whose blocks are in the file already
+			int proposals = manifest != null ? completionExtractor.writeFileStats(out)
+					: completionExtractor.writeStats(out);
+			System.out.println(completionExtractor.getSummary() + ", " + proposals + " proposals selected");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void closeSstFeatures() {
+		if (sstFeatures == null) {
+			return;
+		}
+		sstFeatures.shutdown();
+		System.out.println(sstFeatures.getSummary());
+		sstFeatures = null;
+		sstOut.close();
+		sstOut = null;
+	}
+
+	private void closeCompletions() {
+		if (completionExtractor == null) {
+			return;
+		}
+		try {
+			completionExtractor.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		completionExtractor = null;
+	}
+
+	private void closePartitions() {
+		if (partitions != null) {
+			partitions.close();
+			partitions = null;
+		}
+	}
+
+	private void closeStore() {
+		if (store == null) {
+			return;
+		}
+		try {
+			store.close();
+			System.out.println("event store: " + store.getSegmentCount() + " segments in " + store.getDir());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		store = null;
+	}
+
+	private void closeColumnar() {
+		if (columnar == null) {
+			return;
+		}
+		try {
+			columnar.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		columnar = null;
+	}
+
+	static void closeSinks() {
+		CsvSink[] sinks = { events, completions, errors, eventsPerUser, usersWithMoreThan2000, idsAndZips,
+				zipAggregates };
+		for (CsvSink sink : sinks) {
+			if (sink != null) {
+				sink.close();
+			}
+		}
+	}
+
+	private void processAllZips() {
 		/*
 		 * Each .zip that is contained in the eventsDir represents all events that we
 		 * have collected for a specific user, the folder represents the first day when
 		 * the user uploaded data.
 		 */
-		 PrintWriter completionEvents= null;
-         try {
-             completionEvents = new PrintWriter(new FileOutputStream(
-             new File("CompletionEvents.csv"), 
-             true /* append = true */)); 
-         } catch (FileNotFoundException e) {
-         // TODO Auto-generated catch block
-         e.printStackTrace();
-         }
          StringBuilder s1 = new StringBuilder();
          s1.append("file\n");
-         completionEvents.write(s1.toString());
-         completionEvents.close();
-		Set<String> userZips = IoHelper.findAllZips(eventsDir);
-        System.out.println(userZips.size());
-        PrintWriter pw = null;
-        try {
-        pw  = new PrintWriter(new FileOutputStream(
-            new File("events.csv"), 
-            true /* append = true */)); 
-      } catch (FileNotFoundException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      }
+         completions.writeHeader(s1.toString());
+		// workers can start on the first zips while the others are still searched
+		boolean streaming = options.streamDiscovery && options.zipList == null && options.workers > 1
+				&& !options.pipeline;
+		Set<String> userZips = null;
+		List<String> schedule = null;
+		if (!streaming) {
+			userZips = findUserZips();
+			System.out.println(userZips.size());
+			plan = ZipPlan.create(eventsDir, userZips);
+			progress = new ProgressBar(plan, options.progressIntervalMs);
+			// the order only matters if zips are processed at the same time
+			boolean concurrent = options.pipeline || options.workers > 1;
+			schedule = concurrent && options.largestFirst ? plan.largestFirst() : plan.inOrder();
+		}
         
         StringBuilder sb = new StringBuilder();
         sb.append("file");
@@ -137,35 +530,8 @@ public class GettingStarted {
         sb.append("ProfileID");
         sb.append("\n");
         
-        pw.write(sb.toString());
-        pw.close();
-        PrintWriter error = null;
-        try {
-        error  = new PrintWriter(new FileOutputStream(
-            new File("errors.csv"), 
-            true /* append = true */)); 
-        } catch (FileNotFoundException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-        }
-        StringBuilder sb2 = new StringBuilder();
-        sb2.append("file");
-        sb2.append(",");
-        sb2.append("JSON");
-        
-        sb2.append("\n");
-        
-        error.write(sb2.toString());
-        error.close();
-        PrintWriter events_per_user = null;
-        try {
-            events_per_user  = new PrintWriter(new FileOutputStream(
-            new File("events_per_user.csv"), 
-            true /* append = true */)); 
-        } catch (FileNotFoundException e2) {
-        // TODO Auto-generated catch block
-            e2.printStackTrace();
-        }
+        events.writeHeader(sb.toString());
+        errors.writeHeader(Quarantine.HEADER);
         StringBuilder sb3 = new StringBuilder();
         
         sb3.append("user");
@@ -173,95 +539,132 @@ public class GettingStarted {
         sb3.append("number of events");
         sb3.append("\n");
         
-        events_per_user.write(sb3.toString());
-        events_per_user.close();
-		for (String userZip : userZips) {
-		  //  if(userZip.compareTo("2016-09-26/100.zip") != 0) {
-		    all_files.add(userZip);
-			System.out.printf("\n#### processing user zip: %s #####\n", userZip);
-			processUserZip(userZip);
-			//}
-		}
-		System.out.println("Total files: "+userZips.size());
-		System.out.println("Command events: "+ commandEvents);
-		System.out.println("activity events: "+ activityEvents);
-		System.out.println("test events: "+ testse);
-		System.out.println("version cotnrol events: "+ versione);
-		System.out.println("window events: "+ windowe);
-		System.out.println("build events: "+ builde);
-		System.out.println("completion events: "+ completionevents);
-		System.out.println("system events: "+ systemevents);
-		System.out.println("navigation events: "+ navigationevents);
-		System.out.println("other events: "+ other);
-		System.out.println("install events: "+ installevent);
-		System.out.println("document events: "+ documente);
-		System.out.println("debugger events: "+ debuggere);
-		System.out.println("userprofile events: "+ userprofile);
-		System.out.println("ideee events: "+ ideee);
-		System.out.println("edit events: "+ editevent);
-		System.out.println("find events: "+ finde);
-		System.out.println("update events: "+ updatevent);
-		System.out.println("solution events: "+ solutionevent);
-		System.out.println("error events: "+ errore);
-		System.out.println("info events: "+ infoe);
-		System.out.println("EXCEPTIONS : " + exceptions);
+        eventsPerUser.writeHeader(sb3.toString());
+		if (streaming) {
+			userZips = processWhileDiscovering();
+		} else if (options.pipeline) {
+			IngestPipeline pipeline = new IngestPipeline(this, eventsDir, options);
+			pipeline.run(schedule);
+			for (StageStats stage : pipeline.getStats()) {
+				System.out.println(stage);
+			}
+		} else if (options.workers > 1) {
+			BlockingQueue<String> pending = new LinkedBlockingQueue<String>(schedule);
+			pending.add(NO_MORE_ZIPS);
+			processInParallel(pending);
+		} else {
+			for (String userZip : schedule) {
+				// if(userZip.compareTo("2016-09-26/100.zip") != 0) {
+				all_files.add(userZip);
+				System.out.printf("\n#### processing user zip: %s #####\n", userZip);
+				processUserZip(userZip);
+				// }
+			}
+		}
+		printSummary(userZips.size());
+	}
+
+	/*
+	 * the zips of the events folder, or the ones in options.zipList
+	 */
+	private Set<String> findUserZips() {
+		try {
+			if (options.zipList == null) {
+				return newDiscovery().findAll();
+			}
+			Set<String> userZips = new LinkedHashSet<String>();
+			for (String line : Files.readAllLines(new File(options.zipList).toPath(), StandardCharsets.UTF_8)) {
+				if (!line.isEmpty()) {
+					userZips.add(line);
+				}
+			}
+			return userZips;
+		} catch (IOException e) {
+			throw new RuntimeException("cannot find the zips to read", e);
+		}
+	}
+
+	private ZipDiscovery newDiscovery() {
+		File cache = options.listingCache == null ? null : new File(options.outputDir, options.listingCache);
+		return new ZipDiscovery(eventsDir, cache, options.discoveryThreads);
+	}
+
+	/*
+	 * Searches the events folder on another thread and hands each zip to the
+	 * workers as soon as it is found. There is no plan, so the zips are started
+	 * in the order they are found and no progress is shown.
+	 */
+	private Set<String> processWhileDiscovering() {
+		final ZipDiscovery discovery = newDiscovery();
+		final BlockingQueue<String> pending = new LinkedBlockingQueue<String>();
+		final Set<String> userZips = Collections.synchronizedSet(new TreeSet<String>());
+		final IOException[] failure = new IOException[1];
+		Thread finder = new Thread("zip discovery") {
+			@Override
+			public void run() {
+				try {
+					discovery.find(new ZipDiscovery.Listener() {
+						@Override
+						public void found(String userZip) {
+							userZips.add(userZip);
+							pending.add(userZip);
+						}
+					});
+				} catch (IOException e) {
+					failure[0] = e;
+				} finally {
+					pending.add(NO_MORE_ZIPS);
+				}
+			}
+		};
+		finder.start();
+		processInParallel(pending);
+		try {
+			finder.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure[0] != null) {
+			throw new RuntimeException("cannot find the zips to read", failure[0]);
+		}
+		System.out.println(userZips.size() + " zips found (" + discovery.getListedFolders() + " folders listed)");
+		return userZips;
+	}
+
+	/*
+	 * the counts of all processed zips, the profile ids and the zips they appear
+	 * in (also written to ids_and_zips.csv), and the zips without a profile id
+	 */
+	void printSummary(int totalFiles) {
+		System.out.println("Total files: "+totalFiles);
+		for (EventType type : EventType.values()) {
+			System.out.println(type.summaryLabel + ": " + eventCounts[type.ordinal()]);
+		}
+		System.out.println("EXCEPTIONS : " + exceptions.sum());
+		for (Map.Entry<String, Long> cause : quarantine.getCauses().entrySet()) {
+			System.out.println("  " + cause.getKey() + ": " + cause.getValue());
+		}
+		if (options.lenientTimestamps) {
+			System.out.println("recovered with lenient timestamps: " + quarantine.getRecovered());
+		}
 		System.out.println("ids: "+ ids.size());
-		Set<String> keys = ids.keySet();
 		StringBuilder sb4 = new StringBuilder();
-		sb2.append("id, file\n");
-		Map<String, ArrayList<String>>docs_id = new HashMap<String, ArrayList<String>>();
-
-		PrintWriter pw2 = null;
-	        try {
-	        pw2  = new PrintWriter(new FileOutputStream(
-	            new File("ids_and_zips.csv"), 
-	            true /* append = true */)); 
-	      } catch (FileNotFoundException e) {
-	        // TODO Auto-generated catch block
-	        e.printStackTrace();
-	      }
-	    ArrayList<String> docs = new ArrayList<String>();
-	    for(String s: keys) {
-	           ArrayList<String> files = ids.get(s);
-	           System.out.println("ID "+ s + "appears in " + files.size());
-	           for(int i = 0 ; i < files.size(); i++) {
-	               if(!docs.contains(files.get(i))){
-	                  docs.add(files.get(i));
-	                  ArrayList<String> pair = new ArrayList<String>();
-	                  docs_id.put(files.get(i), pair);
-	               }
-	               docs_id.get(files.get(i)).add(s);
-	               sb4.append( s + ","+files.get(i) +"\n");
-	             
-	          
-	           }
-	        }
-	    
-	    pw2.write(sb4.toString());
-		pw2.close();
-		System.out.println("There are "+ docs.size()+ "files");
-		boolean cond_all_files_map_to_1_id = true;
-		for(int i = 0; i < docs.size(); i++) {
-		  boolean cond = true;
-		  System.out.println("File " + docs.get(i)+ " has"+ " "+ docs_id.get(docs.get(i)).size());
-		  for(int j = 0; j < docs_id.get(docs.get(i)).size(); j++) {
-		    //System.out.println("file "+ docs.get(i)+ " id: "+docs_id.get(docs.get(i)).get(j));
-		    if(j >= 1) {
-		      if(docs_id.get(docs.get(i)).get(j) != docs_id.get(docs.get(i)).get(j-1)) {
-		        cond = false;
-		      }
-		    }
-		  }
-		  cond_all_files_map_to_1_id = cond_all_files_map_to_1_id&& cond ;
-		  
-		}
-		for(int i = 0; i < all_files.size(); i++) {
-		    
-		       if(!docs.contains(all_files.get(i))) {
-		         files_missing_id_profile.add(all_files.get(i));
-		       }
-		    
+		for (String id : ids.profiles()) {
+			Set<String> files = ids.zipsOf(id);
+			System.out.println("ID " + id + "appears in " + files.size());
+			for (String file : files) {
+				sb4.append(id + "," + file + "\n");
+			}
 		}
+		idsAndZips.write(sb4.toString());
+
+		Set<String> docs = ids.zips();
+		System.out.println("There are " + docs.size() + "files");
+		for (String doc : docs) {
+			System.out.println("File " + doc + " has" + " " + ids.profilesOf(doc).size());
+		}
+		boolean cond_all_files_map_to_1_id = ids.eachZipMapsToOneProfile();
+		files_missing_id_profile.addAll(ids.zipsWithoutProfile(new ArrayList<String>(all_files)));
 		System.out.println("Each file maps exactly to an ID?  "+ cond_all_files_map_to_1_id );
 	    for(int k = 0; k < files_missing_id_profile.size();k++) {
 	      System.out.println(files_missing_id_profile.get(k));
@@ -269,63 +672,299 @@ public class GettingStarted {
 
 	}
 
-	private void processUserZip(String userZip) {
+	/**
+	 * Ends watching the events folder (see {@link IngestOptions#watch}); the
+	 * run then writes the remaining outputs and returns.
+	 */
+	public void stopWatching() {
+		ZipWatcher w = watcher;
+		if (w != null) {
+			w.stop();
+		}
+	}
+
+	/*
+	 * A zip that was written while watching the events folder. Zips that were
+	 * already processed (e.g., by the first pass) and did not change are
+	 * skipped; a zip that cannot be processed is reported and tried again when
+	 * it changes.
+	 * 
+	 * The counts, profile ids and rows of an earlier version of a changed zip
+	 * are replaced by those of the new version when it is committed (see
+	 * commit). If the new version cannot be processed, none of its rows are
+	 * written and the earlier version stays counted.
+	 */
+	void processArrivedZip(String userZip) {
+		ZipAggregate counted = null;
+		try {
+			if (manifest.findUnchanged(userZip, new File(eventsDir, userZip)) != null) {
+				return;
+			}
+			counted = all_files.contains(userZip) ? manifest.getAggregate(userZip) : null;
+			if (counted != null) {
+				removeFromTotals(counted);
+			}
+			all_files.add(userZip);
+			System.out.printf("\n#### processing user zip: %s #####\n", userZip);
+			processUserZip(userZip);
+		} catch (IOException | RuntimeException e) {
+			System.err.printf("cannot process %s: %s\n", userZip, e);
+			if (counted != null) {
+				mergeIntoTotals(counted);
+			}
+			return;
+		}
+		replaceIdsAndZips();
+		long total = 0;
+		synchronized (eventCounts) {
+			for (long count : eventCounts) {
+				total += count;
+			}
+		}
+		System.out.printf("[watch] %s done; zips: %d, events: %d, exceptions: %d, ids: %d\n", userZip,
+				all_files.size(), total, exceptions.sum(), ids.size());
+	}
+
+	/*
+	 * writes the complete mapping to a temporary file that then replaces
+	 * ids_and_zips.csv, so readers never see a partial file
+	 */
+	private void replaceIdsAndZips() {
+		StringBuilder sb = new StringBuilder();
+		for (String id : ids.profiles()) {
+			for (String file : ids.zipsOf(id)) {
+				sb.append(id).append(',').append(file).append('\n');
+			}
+		}
+		File target = new File(options.outputDir, "ids_and_zips.csv");
+		File tmp = new File(options.outputDir, "ids_and_zips.csv.tmp");
+		try {
+			Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Every user zip is independent of the others, so the zips are simply spread
+	 * over a fork-join pool. All shared state (counters, ids, output sinks) is safe
+	 * to use from several workers; only the order of the output rows differs from a
+	 * sequential run. Each worker takes the next zip of the schedule when it is
+	 * done with the previous one, so the zips are started in the planned order.
+	 */
+	private void processInParallel(final BlockingQueue<String> pending) {
+		ForkJoinPool pool = new ForkJoinPool(options.workers);
+		try {
+			List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			for (int i = 0; i < options.workers; i++) {
+				tasks.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						String userZip;
+						while ((userZip = nextZip(pending)) != NO_MORE_ZIPS) {
+							all_files.add(userZip);
+							System.out.printf("\n#### processing user zip: %s #####\n", userZip);
+							processUserZip(userZip);
+						}
+					}
+				}));
+			}
+			for (ForkJoinTask<?> task : tasks) {
+				task.join();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/*
+	 * the next zip of the queue; the end marker stays in the queue for the other
+	 * workers
+	 */
+	private static String nextZip(BlockingQueue<String> pending) {
+		try {
+			String userZip = pending.take();
+			if (userZip == NO_MORE_ZIPS) {
+				pending.add(userZip);
+			}
+			return userZip;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return NO_MORE_ZIPS;
+		}
+	}
+
+	/*
+	 * Clears all counters and collected ids, e.g., between two runs in the same
+	 * JVM.
+	 */
+	static void resetState() {
+		synchronized (eventCounts) {
+			Arrays.fill(eventCounts, 0);
+		}
+		exceptions.reset();
+		all_files.clear();
+		files_missing_id_profile.clear();
+		ids.clear();
+	}
+
+	/*
+	 * In incremental runs, zips that did not change since the last run are not
+	 * read again, only their counts are added to the totals. All other zips are
+	 * recorded in the manifest once their rows are on disk.
+	 */
+	void processUserZip(String userZip) {
+		if (reuseUnchanged(userZip)) {
+			return;
+		}
+		if (splitter != null) {
+			ZipPlan.Item planned = plan == null ? null : plan.get(userZip);
+			if (splitter.processIfLarge(userZip, planned == null ? -1 : planned.entries)) {
+				return;
+			}
+		}
+		ZipContext zip = startUserZip(userZip);
 		int numProcessedEvents = 0;
 		// open the .zip file ...
 		
 		try (IReadingArchive ra = new ReadingArchive(new File(eventsDir, userZip))) {
 			// ... and iterate over content.
 			// the iteration will stop after 200 events to speed things up.
-			while (ra.hasNext() && (numProcessedEvents++ < 5000000)) {
+			while (ra.hasNext() && (numProcessedEvents++ < MAX_EVENTS_PER_ZIP)) {
 				/*
 				 * within the userZip, each stored event is contained as a single file that
 				 * contains the Json representation of a subclass of IDEEvent.
 				 */
 				//IDEEvent e = ra.getNext(IDEEvent.class);
+				int entry = numProcessedEvents - 1;
+				long start = System.nanoTime();
 				String json = ra.getNextPlain();
-                // .. and call the deserializer yourself.
-				try {
-				  IIDEEvent e = JsonUtils.fromJson(json, IIDEEvent.class);
-				
-				// the events can then be processed individually
-				//processEvent(e);
-				
-				process(e, userZip);
+				long read = System.nanoTime();
+				metrics.unzipped(zip, json, read - start);
+				if (duplicates != null && skipDuplicate(zip, entry, json, Hashing.hash64(json))) {
+					continue;
 				}
-				catch(DateTimeException e){
-				   PrintWriter error = null;
-			        try {
-			        error  = new PrintWriter(new FileOutputStream(
-			            new File("errors.csv"), 
-			            true /* append = true */)); 
-			        } catch (FileNotFoundException e2) {
-			        // TODO Auto-generated catch block
-			        e.printStackTrace();
-			        }
-			        StringBuilder sb2 = new StringBuilder();
-			        sb2.append(userZip);
-			        sb2.append(",");
-			        sb2.append(ra.getNextPlain());
-			        sb2.append("\n");
-			        
-			        error.write(sb2.toString());
-			        error.close();
-				    exceptions+=1;
-				  
+				// .. and call the deserializer yourself.
+				try {
+					decode(json, zip.record);
+					metrics.decoded(zip, zip.record, json, System.nanoTime() - read);
+				} catch (RuntimeException e) {
+					metrics.decodeFailed(System.nanoTime() - read);
+					if (!recover(json, zip.record, e)) {
+						// keep the event, the archive is not advanced
+						quarantine(zip, entry, json, "decode", e);
+						continue;
+					}
 				}
-				finally {
-				  continue;
+				long decoded = System.nanoTime();
+				try {
+					dispatcher.dispatch(zip.record, zip);
+				} catch (RuntimeException e) {
+					quarantine(zip, entry, json, "dispatch", e);
 				}
+				metrics.dispatched(System.nanoTime() - decoded);
 			}
-			PrintWriter events_per_user = null;
-            try {
-                events_per_user  = new PrintWriter(new FileOutputStream(
-                new File("events_per_user.csv"), 
-                true /* append = true */)); 
-            } catch (FileNotFoundException e2) {
-            // TODO Auto-generated catch block
-                e2.printStackTrace();
-            }
+			finishUserZip(zip, numProcessedEvents);
+		} finally {
+			zip.releaseRows();
+			zip.discardStaged();
+		}
+	}
+
+	boolean isCheckingDuplicates() {
+		return duplicates != null;
+	}
+
+	/*
+	 * Lists the event in duplicates.csv if it was already read in this run;
+	 * returns true if it must not be processed.
+	 */
+	boolean skipDuplicate(ZipContext zip, int entry, String json, long fingerprint) {
+		if (!duplicates.isDuplicate(fingerprint)) {
+			return false;
+		}
+		duplicatesOut.write(zip.path + "," + entry + "," + Long.toHexString(fingerprint) + "\n");
+		return duplicates.getMode() == DuplicateFilter.Mode.DROP;
+	}
+
+	/*
+	 * In incremental runs, zips that did not change since the last run are not
+	 * read again, only their counts are added to the totals.
+	 */
+	boolean reuseUnchanged(String userZip) {
+		if (manifest == null) {
+			return false;
+		}
+		try {
+			ZipAggregate previous = manifest.findUnchanged(userZip, new File(eventsDir, userZip));
+			if (previous != null) {
+				System.out.printf("(unchanged since the last run)\n");
+				mergeIntoTotals(previous);
+				writeAggregate(previous);
+				progress(userZip);
+				return true;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	ZipContext startUserZip(String userZip) {
+		ZipContext zip = new ZipContext(userZip);
+		if (stagingDir != null) {
+			zip.stageIn(stagingDir);
+		}
+		zip.eventRows = RowEncoder.acquire(zip.sink(events));
+		metrics.startZip(zip);
+		return zip;
+	}
+
+	private void progress(String userZip) {
+		ProgressBar bar = progress;
+		if (bar != null) {
+			bar.done(userZip);
+		}
+	}
+
+	/*
+	 * Writes the per-user outputs, adds the counts of the zip to the totals and,
+	 * in incremental runs, records the zip in the manifest once all its rows are
+	 * on disk.
+	 */
+	void finishUserZip(ZipContext zip, int numProcessedEvents) {
+		zip.releaseRows();
+		if (sstFeatures != null) {
+			sstFeatures.finishZip(zip);
+		}
+		if (columnar != null) {
+			columnar.finishZip(zip);
+		}
+		if (sessionizer != null) {
+			sessionizer.finishZip(zip);
+		}
+		if (sketches != null) {
+			sketches.finishZip(zip);
+		}
+		if (rollups != null) {
+			rollups.finishZip(zip);
+		}
+		if (completionExtractor != null) {
+			completionExtractor.finishZip(zip);
+		}
+		// a zip whose outputs are incomplete is not recorded, so the next run reads it again
+		boolean complete = true;
+		if (store != null) {
+			try {
+				store.finishZip(zip);
+			} catch (IOException e) {
+				e.printStackTrace();
+				complete = false;
+			}
+		}
+		String userZip = zip.userZip;
             StringBuilder sb2 = new StringBuilder();
             
             sb2.append(userZip);
@@ -333,18 +972,8 @@ public class GettingStarted {
             sb2.append(numProcessedEvents);
             sb2.append("\n");
             
-            events_per_user.write(sb2.toString());
-            events_per_user.close();
+            zip.sink(eventsPerUser).write(sb2.toString());
             if(numProcessedEvents >= 2000) {
-            PrintWriter events2000 = null;
-            try {
-                events2000  = new PrintWriter(new FileOutputStream(
-                new File("userswithmorethan2000events.csv"), 
-                true /* append = true */)); 
-            } catch (FileNotFoundException e2) {
-            // TODO Auto-generated catch block
-                e2.printStackTrace();
-            }
             StringBuilder sb5 = new StringBuilder();
             
             sb5.append(userZip);
@@ -352,13 +981,174 @@ public class GettingStarted {
             sb5.append(numProcessedEvents);
             sb5.append("\n");
             
-            events2000.write(sb5.toString());
-            events2000.close();
+            zip.sink(usersWithMoreThan2000).write(sb5.toString());
             }
-            
-            
-			
+
+		zip.aggregate.numProcessedEvents = numProcessedEvents;
+		mergeIntoTotals(zip.aggregate);
+		writeAggregate(zip.aggregate);
+		metrics.finishZip(zip);
+		progress(userZip);
+		if (manifest != null && complete) {
+			try {
+				commit(zip);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		zip.discardStaged();
+	}
+
+	/*
+	 * Appends the rows of the zip to the CSV outputs and records the zip in the
+	 * manifest, with the blocks of its rows, once all its outputs are on disk.
+	 * The rows of an earlier version of the zip are removed first. Zips are
+	 * committed one at a time, so all rows after the blocks of the last recorded
+	 * zip belong to zips that were not recorded.
+	 */
+	private void commit(ZipContext zip) throws IOException {
+		synchronized (manifest) {
+			ZipManifest.Entry earlier = manifest.getEntry(zip.userZip);
+			if (earlier != null && earlier.blocks != null) {
+				removeRows(earlier);
+			}
+			Map<String, long[]> blocks = new HashMap<String, long[]>();
+			for (CsvSink output : committedOutputs()) {
+				CsvSink staged = zip.staged.remove(output);
+				long start = staged == null ? output.length() : output.append(staged);
+				blocks.put(outputName(output), new long[] { start, output.length() - start });
+			}
+			if (columnar != null) {
+				columnar.checkpoint();
+			}
+			if (store != null) {
+				store.sync();
+			}
+			if (completionExtractor != null) {
+				completionExtractor.sync();
+			}
+			manifest.record(zip.userZip, new File(eventsDir, zip.userZip), zip.aggregate, blocks);
+		}
+	}
+
+	/*
+	 * Removes the rows of a recorded zip from the outputs. The removal is noted
+	 * in the manifest first: when a run stops during the removal, the next run
+	 * removes the blocks from the outputs that still have the length that the
+	 * manifest expects.
+	 */
+	private void removeRows(ZipManifest.Entry recorded) throws IOException {
+		manifest.startRemoving(recorded.path);
+		for (CsvSink output : committedOutputs()) {
+			String name = outputName(output);
+			long[] block = recorded.blocks.get(name);
+			if (block != null && output.length() == manifest.getCommittedEnd(name)) {
+				output.cut(block[0], block[1]);
+			}
+		}
+		manifest.removed(recorded.path);
+	}
+
+	/*
+	 * Cuts off the rows that a stopped run wrote after the last recorded zip,
+	 * and finishes the removal that it was in the middle of, if any.
+	 */
+	private void resumeOutputs() throws IOException {
+		stagingDir = new File(options.outputDir, "staging");
+		Files.createDirectories(stagingDir.toPath());
+		for (File left : stagingDir.listFiles()) {
+			left.delete();
+		}
+		for (CsvSink output : committedOutputs()) {
+			long end = manifest.getCommittedEnd(outputName(output));
+			if (end >= 0 && output.truncate(end)) {
+				System.out.printf("%s: rows of zips that were not recorded removed\n", outputName(output));
+			}
+		}
+		String removing = manifest.getUnfinishedRemoval();
+		if (removing != null) {
+			ZipManifest.Entry recorded = manifest.getEntry(removing);
+			if (recorded != null && recorded.blocks != null) {
+				removeRows(recorded);
+			} else {
+				manifest.removed(removing);
+			}
+		}
+	}
+
+	/*
+	 * the CSV outputs to which the rows of a zip are appended when it is
+	 * committed
+	 */
+	private List<CsvSink> committedOutputs() {
+		List<CsvSink> outputs = new ArrayList<CsvSink>(
+				Arrays.asList(events, completions, errors, eventsPerUser, usersWithMoreThan2000));
+		if (partitions != null) {
+			outputs.addAll(partitions.getSinks());
+		}
+		if (sstOut != null) {
+			outputs.add(sstOut);
 		}
+		return outputs;
+	}
+
+	/*
+	 * the output relative to the output folder, as in the manifest
+	 */
+	private String outputName(CsvSink output) {
+		return new File(options.outputDir).toPath().relativize(output.getFile().toPath()).toString()
+				.replace(File.separatorChar, '/');
+	}
+
+	static void mergeIntoTotals(ZipAggregate aggregate) {
+		synchronized (eventCounts) {
+			for (int i = 0; i < eventCounts.length; i++) {
+				eventCounts[i] += aggregate.counts[i];
+			}
+		}
+		exceptions.add(aggregate.exceptions);
+		for (String profileId : aggregate.profileIds) {
+			addProfile(profileId, aggregate.zip);
+		}
+	}
+
+	private static void writeCauses() {
+		if (zipAggregates == null) {
+			return;
+		}
+		for (Map.Entry<String, Long> cause : quarantine.getCauses().entrySet()) {
+			zipAggregates.write(CAUSES + "\t" + cause.getKey() + "\t" + cause.getValue() + "\n");
+		}
+	}
+
+	/*
+	 * one line per zip, with the fields of the manifest
+	 */
+	private static void writeAggregate(ZipAggregate aggregate) {
+		if (zipAggregates != null) {
+			zipAggregates.write(aggregate.zip + "\t" + aggregate.toFields() + "\n");
+		}
+	}
+
+	static void removeFromTotals(ZipAggregate aggregate) {
+		synchronized (eventCounts) {
+			for (int i = 0; i < eventCounts.length; i++) {
+				eventCounts[i] -= aggregate.counts[i];
+			}
+		}
+		exceptions.add(-aggregate.exceptions);
+		ids.removeZip(zipPath(aggregate.zip));
+	}
+
+	private static void addProfile(String profileId, String user) {
+		ids.add(profileId, zipPath(user));
+	}
+
+	/*
+	 * the path of a zip as it appears in the outputs
+	 */
+	static String zipPath(String user) {
+		return new File(user).getParent() + "/" + new File(user).getName();
 	}
 
 	/*
@@ -391,500 +1181,308 @@ public class GettingStarted {
 		}
 
 	}
-	private static void process(IIDEEvent event, String user) {
-      // once you have access to the instantiated event you can dispatch the
-      // type. As the events are not nested, we did not implement the visitor
-      // pattern, but resorted to instanceof checks.
-    PrintWriter pw = null;
-      try {
-      pw  = new PrintWriter(new FileOutputStream(
-          new File("events.csv"), 
-          true /* append = true */)); 
-    } catch (FileNotFoundException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
-      StringBuilder sb = new StringBuilder();
-      if (event instanceof CommandEvent) {
-          // if the correct type is identified, you can cast it...
-         commandEvents+=1;
-       
-          CommandEvent ce = (CommandEvent) event;
-          // ...and access the special context for this kind of event
-       
-          String name = new File(user).getName();
-          String u_name = name.substring(0,name.lastIndexOf(".zip"));
-          
-          sb.append(sb.append(new File(user).getParent() +"/"+name));
-          sb.append(",");
-          sb.append(ce.IDESessionUUID);
-          sb.append(",");
-          sb.append("CommandEvent");
-          sb.append(",");
-          sb.append(ce.TriggeredAt);
-          sb.append(",");
-          
-          sb.append("N/A");
-          sb.append(",\n");
-          
-          pw.write(sb.toString());
-          pw.close();
-          return;
-          //System.out.println(ce.CommandId);
-      }
-      if(event instanceof ActivityEvent) {
-         ActivityEvent ae = (ActivityEvent) event;
-         String name = new File(user).getName();
-         String u_name = name.substring(0,name.lastIndexOf(".zip"));
-         activityEvents+=1;
-         sb.append(sb.append(new File(user).getParent() +"/"+name));
-         sb.append(",");
-         sb.append(ae.IDESessionUUID);
-         sb.append(",");
-         sb.append("ActivityEvent");
-         sb.append(",");
-         sb.append(ae.TriggeredAt);
-         sb.append(",");
-         sb.append(ae.Duration.getSeconds());
-         sb.append(",\n");
-         
-         pw.write(sb.toString());
-         pw.close();
-         return;
-         
-      }
-      if(event instanceof InstallEvent) {
-         InstallEvent ie = (InstallEvent) event;
-         String name = new File(user).getName();
-         String u_name = name.substring(0,name.lastIndexOf(".zip"));
-         installevent+=1;
-         sb.append(sb.append(new File(user).getParent() +"/"+name));
-         sb.append(",");
-         sb.append(ie.IDESessionUUID);
-         sb.append(",");
-         sb.append("InstallEvent");
-         sb.append(",");
-         sb.append(ie.TriggeredAt);
-         sb.append(",");
-         sb.append("N/A,");
-         sb.append("\n");
-         
-         pw.write(sb.toString());
-         pw.close();
-         return;
-      }
-      if(event instanceof CompletionEvent) {
-         CompletionEvent ce = (CompletionEvent) event;
-         String name = new File(user).getName();
-         String u_name = name.substring(0,name.lastIndexOf(".zip"));
-         completionevents+=1;
-         sb.append((new File(user).getParent() +"/"+name));
-         sb.append(",");
-         sb.append(ce.IDESessionUUID);
-         sb.append(",");
-         sb.append("CompletionEvent");
-         sb.append(",");
-         sb.append(ce.TriggeredAt);
-         sb.append(",");
-         sb.append("N/A,");
-         sb.append("\n");
-         
-         pw.write(sb.toString());
-         pw.close();
-         PrintWriter completionEvents= null;
-         try {
-             completionEvents = new PrintWriter(new FileOutputStream(
-             new File("CompletionEvents.csv"), 
-             true /* append = true */)); 
-         } catch (FileNotFoundException e) {
-         // TODO Auto-generated catch block
-         e.printStackTrace();
-         }
-         StringBuilder sb2 = new StringBuilder();
-         
-         
-         ArrayList<String> selects = new ArrayList<String>();
-         int selections_length = ce.selections.size();
-         for(int i = 0; i < selections_length ; i++ ) {
-              
-              selects.add(ce.selections.get(i).toString());
-         }
-         sb2.append((new File(user).getParent() +"/"+name));
-         sb2.append(",");
-         for(int i = 0; i < selects.size(); i++) {
-          
-           
-           sb2.append(selects.get(i));
-           sb2.append(",");
-         }
-         sb2.append("\n");
-         
-         completionEvents.write(sb2.toString());
-         completionEvents.close();
-         return;
-      }
-      if(event instanceof TestRunEvent) {
-         TestRunEvent tre = (TestRunEvent) event;
-         String name = new File(user).getName();
-         String u_name = name.substring(0,name.lastIndexOf(".zip"));
-         testse+=1;
-         sb.append(new File(user).getParent() +"/"+name);
-         sb.append(",");
-         sb.append(tre.IDESessionUUID);
-         sb.append(",");
-         sb.append("TestRunEvent");
-         sb.append(",");
-         sb.append(tre.TriggeredAt);
-         sb.append(",");
-         sb.append(tre.Duration.getSeconds());
-         sb.append(",\n");
-         
-         pw.write(sb.toString());
-         pw.close();
-         return;
-      }
-      if(event instanceof UserProfileEvent) {
-        UserProfileEvent upe = (UserProfileEvent) event;
-        
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        userprofile+=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(upe.IDESessionUUID);
-        sb.append(",");
-        sb.append("UserProfileEvent");
-        
-        
-        sb.append(",");
-        sb.append(upe.TriggeredAt);
-        sb.append(",");
-        sb.append("N/A,");
-        sb.append(upe.ProfileId);
-        sb.append("\n");
-        
-        pw.write(sb.toString());
-        pw.close();
-        if(!ids.containsKey(upe.ProfileId)) {
-          
-          ArrayList<String> files = new ArrayList<String>();
-          files.add(new File(user).getParent() +"/"+name);
-          ids.put(upe.ProfileId, files);
-          return;
-       
-        }
-        else {
-           if(!ids.get(upe.ProfileId).contains(new File(user).getParent() +"/"+name)) {
-              ids.get(upe.ProfileId).add(new File(user).getParent() +"/"+name);
-           }
-        }
-        return;
-      }
-      if(event instanceof VersionControlEvent) {
-        VersionControlEvent vce = (VersionControlEvent) event;
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        versione+=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(vce.IDESessionUUID);
-        sb.append(",");
-        sb.append("VersionControlEvent");
-        sb.append(",");
-        sb.append(vce.TriggeredAt);
-        sb.append(",");
-        sb.append("N/A,");
-        sb.append("\n");
+	/*
+	 * Fills the record from the Json of an event. Most events only need their
+	 * header, only the others are deserialized.
+	 */
+	void decode(String json, EventRecord r) {
+		r.json = json;
+		EventHeader header = options.sniffHeaders ? EventSniffer.sniff(json) : null;
+		if (header == null || !decodeHeader(header, r)) {
+			IIDEEvent e = JsonUtils.fromJson(json, IIDEEvent.class);
 
-        pw.write(sb.toString());
-        pw.close();
-        return;
-        
-      }
-      if(event instanceof WindowEvent) {
-        WindowEvent we = (WindowEvent) event;
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        windowe+=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(we.IDESessionUUID);
-        sb.append(",");
-        sb.append("WindowEvent");
-        sb.append(",");
-        sb.append(we.TriggeredAt);
-        sb.append(",");
-        sb.append("N/A,");
-        sb.append("\n");
+			// the events can then be processed individually
+			//processEvent(e);
 
-        pw.write(sb.toString());
-        pw.close();
-        return;
-      }
-      if(event instanceof BuildEvent) {
-        BuildEvent be = (BuildEvent) event;
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        builde+=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(be.IDESessionUUID);
-        sb.append(",");
-        sb.append("BuildEvent");
-        sb.append(",");
-        sb.append(be.TriggeredAt);
-        sb.append(",");
-        sb.append(be.Duration.getSeconds());
-        sb.append(",\n");
-
-        pw.write(sb.toString());
-        pw.close();
-        return;
-      }
-      if(event instanceof DebuggerEvent) {
-        DebuggerEvent de = (DebuggerEvent) event;
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        debuggere+=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(de.IDESessionUUID);
-        sb.append(",");
-        sb.append("DebuggerEvent");
-        sb.append(",");
-        sb.append(de.TriggeredAt);
-        sb.append(",");
-        sb.append("N/A,");
-        sb.append("\n");
+			decodeEvent(e, r);
+		}
+	}
 
-        pw.write(sb.toString());
-        pw.close();
-        return;
-      }
-      if(event instanceof DocumentEvent) {
-        DocumentEvent de  = (DocumentEvent) event;
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        documente+=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(de.IDESessionUUID);
-        sb.append(",");
-        sb.append("DocumentEvent");
-        sb.append(",");
-        sb.append(de.TriggeredAt);
-        sb.append(",");
-        sb.append("N/A,");
-        sb.append("\n");
+	void dispatch(EventRecord r, ZipContext zip) {
+		dispatcher.dispatch(r, zip);
+	}
 
-        pw.write(sb.toString());
-        pw.close();
-        return;
-      }
-      if(event instanceof EditEvent) {
-        EditEvent ee = (EditEvent) event;
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        editevent+=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(ee.IDESessionUUID);
-        sb.append(",");
-        sb.append("EditEvent");
-        sb.append(",");
-        sb.append(ee.TriggeredAt);
-        sb.append(",");
-        sb.append(ee.Duration.getSeconds());
-        sb.append(",\n");
-
-        pw.write(sb.toString());
-        pw.close();
-        return;
-      }
-      if(event instanceof FindEvent) {
-        FindEvent fe = (FindEvent) event;
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        finde+=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(fe.IDESessionUUID);
-        sb.append(",");
-        sb.append("FindEvent");
-        sb.append(",");
-        sb.append(fe.TriggeredAt);
-        sb.append(",");
-        sb.append("N/A,");
-        sb.append("\n");
+	/*
+	 * Decodes an event whose timestamp could not be parsed again from its header,
+	 * with lenient timestamps (if enabled). Returns false if the event still
+	 * cannot be decoded.
+	 */
+	boolean recover(String json, EventRecord r, RuntimeException failure) {
+		if (!options.lenientTimestamps || !Quarantine.isTimestampFailure(failure)) {
+			return false;
+		}
+		EventHeader header = EventSniffer.sniff(json);
+		if (header == null) {
+			return false;
+		}
+		EventType type = EventType.forName(header.getSimpleTypeName());
+		if (type == null || type == EventType.OTHER || dispatcher.needsEvent(type)
+				|| header.IDESessionUUID == null) {
+			return false;
+		}
+		ZonedDateTime triggeredAt = header.getTriggeredAtLeniently();
+		if (triggeredAt == null) {
+			return false;
+		}
+		r.json = json;
+		r.type = type;
+		r.typeName = type.typeName;
+		r.IDESessionUUID = header.IDESessionUUID;
+		r.TriggeredAt = triggeredAt;
+		r.Duration = type.hasDuration ? header.getDurationLeniently() : null;
+		r.event = null;
+		quarantine.recovered();
+		return true;
+	}
 
-        pw.write(sb.toString());
-        pw.close();
-        return;
-      }
-      if(event instanceof IDEStateEvent) {
-        IDEStateEvent ide = (IDEStateEvent) event;
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        ideee+=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(ide.IDESessionUUID);
-        sb.append(",");
-        sb.append("IDEStateEvent");
-        sb.append(",");
-        sb.append(ide.TriggeredAt);
-        sb.append(",");
-        sb.append("N/A,");
-        sb.append("\n");
+	/*
+	 * keeps an event that could not be decoded or processed, see Quarantine
+	 */
+	void quarantine(ZipContext zip, int entry, String json, String stage, RuntimeException failure) {
+		quarantine.add(zip, entry, json, stage, failure);
+		zip.aggregate.exceptions++;
+		metrics.exception();
+	}
 
-        pw.write(sb.toString());
-        pw.close();
-        return;
-      }
-      if(event instanceof SolutionEvent) {
-        SolutionEvent se = (SolutionEvent) event;
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        solutionevent +=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(se.IDESessionUUID);
-        sb.append(",");
-        sb.append("SolutionEvent");
-        sb.append(",");
-        sb.append(se.TriggeredAt);
-        sb.append(",");
-        sb.append("N/A,");
-        sb.append("\n");
+	/*
+	 * Fills the record from the header only. Returns false if a handler needs the
+	 * full event (e.g., for CompletionEvent or UserProfileEvent) or if a field of
+	 * the row is missing in the header, the event then has to be deserialized.
+	 */
+	private boolean decodeHeader(EventHeader header, EventRecord r) {
+		EventType type = EventType.forName(header.getSimpleTypeName());
+		if (type == null || type == EventType.OTHER || dispatcher.needsEvent(type)
+				|| header.IDESessionUUID == null || header.TriggeredAt == null
+				|| (type.hasDuration && header.Duration == null)) {
+			return false;
+		}
+		ZonedDateTime triggeredAt = header.getTriggeredAt();
+		r.type = type;
+		r.typeName = type.typeName;
+		r.IDESessionUUID = header.IDESessionUUID;
+		r.TriggeredAt = triggeredAt;
+		r.Duration = type.hasDuration ? header.getDuration() : null;
+		r.event = null;
+		return true;
+	}
 
-        pw.write(sb.toString());
-        pw.close();
-        return;
-      }
-      if(event instanceof UpdateEvent) {
-        UpdateEvent ue = (UpdateEvent) event;
-        String name = new File(user).getName();
-        String u_name = name.substring(0,name.lastIndexOf(".zip"));
-        updatevent+=1;
-        sb.append(new File(user).getParent() +"/"+name);
-        sb.append(",");
-        sb.append(ue.IDESessionUUID);
-        sb.append(",");
-        sb.append("UpdateEvent");
-        sb.append(",");
-        sb.append(ue.TriggeredAt);
-        sb.append(",");
-        sb.append("N/A,");
-        sb.append("\n");
+	private void decodeEvent(IIDEEvent event, EventRecord r) {
+		// once you have access to the instantiated event you can dispatch the
+		// type. Instead of a chain of instanceof checks, the type is looked up
+		// once per class and the handlers of the type are called.
+		r.type = EventType.of(event.getClass());
+		r.typeName = r.type == EventType.OTHER ? event.getClass().getSimpleName() : r.type.typeName;
+		r.TriggeredAt = event.getTriggeredAt();
+		if (event instanceof IDEEvent) {
+			IDEEvent e = (IDEEvent) event;
+			r.IDESessionUUID = e.IDESessionUUID;
+			r.Duration = e.Duration;
+		} else {
+			r.IDESessionUUID = null;
+			r.Duration = null;
+		}
+		r.event = event;
+	}
+
+	private void registerDefaultHandlers() {
+		dispatcher.registerForAll(new EventHandler() {
+			@Override
+			public boolean needsEvent(EventType type) {
+				return type == EventType.USER_PROFILE;
+			}
+
+			@Override
+			public void handle(EventRecord record, ZipContext zip) {
+				writeEventRow(record, zip);
+			}
+		});
+		if (options.completionFile == null || options.completionsCsv) {
+			dispatcher.register(EventType.COMPLETION, new EventHandler() {
+				@Override
+				public boolean needsEvent(EventType type) {
+					return true;
+				}
+
+				@Override
+				public void handle(EventRecord record, ZipContext zip) {
+					writeCompletionRow((CompletionEvent) record.event, zip);
+				}
+			});
+		}
+		if (options.sstFeaturesFile != null) {
+			dispatcher.register(EventType.COMPLETION, new EventHandler() {
+				@Override
+				public boolean needsEvent(EventType type) {
+					return true;
+				}
+
+				@Override
+				public void handle(EventRecord record, ZipContext zip) {
+					sstFeatures.handle(record, zip);
+				}
+			});
+		}
+		if (options.completionFile != null) {
+			dispatcher.register(EventType.COMPLETION, new EventHandler() {
+				@Override
+				public boolean needsEvent(EventType type) {
+					return true;
+				}
+
+				@Override
+				public void handle(EventRecord record, ZipContext zip) {
+					completionExtractor.handle(record, zip);
+				}
+			});
+		}
+		dispatcher.register(EventType.USER_PROFILE, new EventHandler() {
+			@Override
+			public boolean needsEvent(EventType type) {
+				return true;
+			}
+
+			@Override
+			public void handle(EventRecord record, ZipContext zip) {
+				zip.aggregate.profileIds.add(((UserProfileEvent) record.event).ProfileId);
+			}
+		});
+		if (options.sessionsFile != null) {
+			dispatcher.registerForAll(new EventHandler() {
+				@Override
+				public boolean needsEvent(EventType type) {
+					return false;
+				}
+
+				@Override
+				public void handle(EventRecord record, ZipContext zip) {
+					sessionizer.handle(record, zip);
+				}
+			});
+		}
+		if (options.rollupFile != null) {
+			dispatcher.registerForAll(new EventHandler() {
+				@Override
+				public boolean needsEvent(EventType type) {
+					return false;
+				}
+
+				@Override
+				public void handle(EventRecord record, ZipContext zip) {
+					rollups.handle(record, zip);
+				}
+			});
+		}
+		if (options.sketchFile != null) {
+			dispatcher.registerForAll(new EventHandler() {
+				@Override
+				public boolean needsEvent(EventType type) {
+					return type == EventType.COMMAND;
+				}
+
+				@Override
+				public void handle(EventRecord record, ZipContext zip) {
+					sketches.handle(record, zip);
+				}
+			});
+		}
+		if (options.partitionDir != null) {
+			dispatcher.registerForAll(new EventHandler() {
+				@Override
+				public boolean needsEvent(EventType type) {
+					return type != EventType.ACTIVITY && type != EventType.OTHER;
+				}
+
+				@Override
+				public void handle(EventRecord record, ZipContext zip) {
+					partitions.handle(record, zip);
+				}
+			});
+		}
+		if (options.storeDir != null) {
+			dispatcher.registerForAll(new EventHandler() {
+				@Override
+				public boolean needsEvent(EventType type) {
+					return false;
+				}
+
+				@Override
+				public void handle(EventRecord record, ZipContext zip) {
+					try {
+						store.append(record, zip);
+					} catch (IOException e) {
+						throw new RuntimeException("cannot write to the event store", e);
+					}
+				}
+			});
+		}
+		if (options.columnarFile != null) {
+			// the writer is only open while a run is going on
+			dispatcher.registerForAll(new EventHandler() {
+				@Override
+				public boolean needsEvent(EventType type) {
+					return type == EventType.USER_PROFILE;
+				}
+
+				@Override
+				public void handle(EventRecord record, ZipContext zip) {
+					columnar.handle(record, zip);
+				}
+			});
+		}
+	}
+
+	/*
+	 * one row of events.csv: file, IDESessionUUID, Event, TriggeredAt, Duration
+	 * (in seconds, for Activity/TestRun/Build/EditEvents) and ProfileID (for
+	 * UserProfileEvents)
+	 */
+	static void writeEventRow(EventRecord r, ZipContext zip) {
+		RowEncoder row = zip.eventRows.beginRow();
+		row.put(zip.pathPrefix);
+		if (r.type == EventType.OTHER) {
+			// there a many different event types to process, it is recommended
+			// that you browse the package to see all types and consult the
+			// website for the documentation of the semantics of each event...
+			row.put("N/A,");
+			row.put(r.typeName).put(',');
+			row.put(r.TriggeredAt).put(',');
+			row.put("N/A\n");
+		} else {
+			row.put(r.IDESessionUUID).put(',');
+			row.put(r.typeName).put(',');
+			row.put(r.TriggeredAt).put(',');
+			if (r.type.hasDuration && r.Duration != null) {
+				row.put(r.Duration.getSeconds());
+			} else {
+				row.put("N/A");
+			}
+			row.put(',');
+			if (r.type == EventType.USER_PROFILE) {
+				row.put(((UserProfileEvent) r.event).ProfileId);
+			}
+			row.put('\n');
+		}
+		row.endRow();
+	}
+
+	private static void writeCompletionRow(CompletionEvent ce, ZipContext zip) {
+		ArrayList<String> selects = new ArrayList<String>();
+		int selections_length = ce.selections.size();
+		for (int i = 0; i < selections_length; i++) {
+			selects.add(ce.selections.get(i).toString());
+		}
+		StringBuilder sb2 = new StringBuilder();
+		sb2.append(zip.path);
+		sb2.append(",");
+		for (int i = 0; i < selects.size(); i++) {
+			sb2.append(selects.get(i));
+			sb2.append(",");
+		}
+		sb2.append("\n");
+
+		zip.sink(completions).write(sb2.toString());
+	}
 
-        pw.write(sb.toString());
-        pw.close();
-        return;
-      }
-      
-      if(event instanceof ErrorEvent) {
-          ErrorEvent ee = (ErrorEvent) event;
-          String name = new File(user).getName();
-          String u_name = name.substring(0,name.lastIndexOf(".zip"));
-          errore+=1;
-          sb.append(new File(user).getParent() +"/"+name);
-            sb.append(",");
-            sb.append(ee.IDESessionUUID);
-            sb.append(",");
-            sb.append("ErrorEvent");
-            sb.append(",");
-            sb.append(ee.TriggeredAt);
-            sb.append(",");
-            sb.append("N/A,");
-            sb.append("\n");
-
-            pw.write(sb.toString());
-            pw.close();
-            return;
-      }
-      if(event instanceof InfoEvent) {
-         
-          InfoEvent ie = (InfoEvent) event;
-          String name = new File(user).getName();
-          String u_name = name.substring(0,name.lastIndexOf(".zip"));
-          infoe+=1;
-            sb.append(new File(user).getParent() +"/"+name);
-            sb.append(",");
-            sb.append(ie.IDESessionUUID);
-            sb.append(",");
-            sb.append("InfoEvent");
-            sb.append(",");
-            sb.append(ie.TriggeredAt);
-            sb.append(",");
-            sb.append("N/A,");
-            sb.append("\n");
-
-            pw.write(sb.toString());
-            pw.close();
-            return;
-      }
-      if(event instanceof NavigationEvent) {
-          NavigationEvent ne = (NavigationEvent) event;
-          String name = new File(user).getName();
-          String u_name = name.substring(0,name.lastIndexOf(".zip"));
-          navigationevents+=1;
-          sb.append(new File(user).getParent() +"/"+name);
-          sb.append(",");
-          sb.append(ne.IDESessionUUID);
-          sb.append(",");
-          sb.append("NavigationEvent");
-          sb.append(",");
-          sb.append(ne.TriggeredAt);
-          sb.append(",");
-          sb.append("N/A,");
-          sb.append("\n");
-
-          pw.write(sb.toString());
-          pw.close();
-          return;
-      }
-      if(event instanceof  SystemEvent) {
-          SystemEvent  se = (SystemEvent) event;
-          String name = new File(user).getName();
-          String u_name = name.substring(0,name.lastIndexOf(".zip"));
-          systemevents+=1;
-          sb.append(new File(user).getParent() +"/"+name);
-            sb.append(",");
-            sb.append(se.IDESessionUUID);
-            sb.append(",");
-            sb.append("SystemEvent");
-            sb.append(",");
-            sb.append(se.TriggeredAt);
-            sb.append(",");
-            sb.append("N/A,");
-            sb.append("\n");
-
-            pw.write(sb.toString());
-            pw.close();
-            return;
-      }
-      
-       else {
-          // there a many different event types to process, it is recommended
-          // that you browse the package to see all types and consult the
-          // website for the documentation of the semantics of each event...
-         String name = new File(user).getName();
-         String u_name = name.substring(0,name.lastIndexOf(".zip"));
-         other+=1;
-         sb.append(new File(user).getParent() +"/"+name);
-         sb.append(",");
-         sb.append("N/A");
-         sb.append(",");
-         sb.append(event.getClass().getSimpleName());
-         sb.append(",");
-         sb.append(event.getTriggeredAt());
-         sb.append(",");
-         sb.append("N/A");
-         sb.append("\n");
-
-         pw.write(sb.toString());
-         pw.close();
-       }}
 	private void process(CommandEvent ce) {
 		System.out.printf("found a CommandEvent (id: %s)\n", ce.getCommandId());
 	}
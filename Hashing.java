@@ -0,0 +1,55 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+/**
+ * A fast, non-cryptographic 64-bit hash of strings (FNV-1a over the chars,
+ * followed by the finalizer of MurmurHash3 so that all bits are well mixed).
+ * The value does not depend on the JVM, so it can be stored in files.
+ */
+public final class Hashing {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private Hashing() {
+	}
+
+	public static long hash64(CharSequence s) {
+		return hash64(s, 0, s.length());
+	}
+
+	/**
+	 * the hash of the chars from start (inclusive) to end (exclusive)
+	 */
+	public static long hash64(CharSequence s, int start, int end) {
+		long h = FNV_OFFSET;
+		for (int i = start; i < end; i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe53e3b73L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
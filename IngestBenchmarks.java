@@ -0,0 +1,254 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import cc.kave.commons.model.events.IIDEEvent;
+import cc.kave.commons.utils.io.IReadingArchive;
+import cc.kave.commons.utils.io.ReadingArchive;
+import cc.kave.commons.utils.io.json.JsonUtils;
+
+/**
+ * JMH benchmarks of the hot paths of the ingestion, on synthetic data from
+ * {@link BenchmarkFixtures}:
+ * 
+ * <ul>
+ * <li>reading the entries of a zip (ReadingArchive.getNextPlain)</li>
+ * <li>deserializing a small (CommandEvent) and a large (CompletionEvent) event,
+ * compared to only sniffing the header</li>
+ * <li>dispatching a decoded event to the handlers</li>
+ * <li>encoding an events.csv row</li>
+ * <li>a whole user zip, from the archive to the outputs</li>
+ * </ul>
+ * 
+ * All results are per event. Run {@link #main} to run all of them with the GC
+ * profiler, which adds the bytes allocated per event (gc.alloc.rate.norm), and
+ * to save the results as Json (by default to jmh-results.json) so that they
+ * can be compared between runs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmarks {
+
+	static final int EVENTS_PER_ZIP = 2000;
+	private static final String USER_ZIP = "2016-01-01/1.zip";
+
+	public static void main(String[] args) throws RunnerException {
+		String results = args.length > 0 ? args[0] : "jmh-results.json";
+		new Runner(new OptionsBuilder().include(IngestBenchmarks.class.getSimpleName())
+				.addProfiler(GCProfiler.class).resultFormat(ResultFormatType.JSON).result(results).build()).run();
+	}
+
+	@State(Scope.Benchmark)
+	public static class UserZip {
+		File eventsDir;
+		File zip;
+
+		@Setup
+		public void setUp() throws IOException {
+			eventsDir = BenchmarkFixtures.createTempDir("bench-events");
+			zip = BenchmarkFixtures.writeUserZip(eventsDir, USER_ZIP,
+					BenchmarkFixtures.userEvents(1, EVENTS_PER_ZIP));
+		}
+
+		@TearDown
+		public void tearDown() {
+			BenchmarkFixtures.deleteRecursively(eventsDir);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Events {
+		String command;
+		String completion;
+
+		@Setup
+		public void setUp() {
+			Random rnd = new Random(1);
+			command = BenchmarkFixtures.commandEvent(rnd, 1);
+			completion = BenchmarkFixtures.completionEvent(rnd, 2, 100);
+		}
+	}
+
+	/**
+	 * decoded records of a user zip, and a zip to dispatch them to
+	 */
+	@State(Scope.Thread)
+	public static class Records {
+		EventRecord[] records;
+		ZipContext zip;
+		int next;
+
+		@Setup
+		public void setUp() {
+			GettingStarted ingest = new GettingStarted(".");
+			List<String> events = BenchmarkFixtures.userEvents(1, EVENTS_PER_ZIP);
+			records = new EventRecord[events.size()];
+			for (int i = 0; i < records.length; i++) {
+				records[i] = new EventRecord();
+				ingest.decode(events.get(i), records[i]);
+			}
+			zip = new ZipContext(USER_ZIP);
+		}
+
+		EventRecord next() {
+			EventRecord r = records[next];
+			next = next + 1 == records.length ? 0 : next + 1;
+			return r;
+		}
+	}
+
+	/**
+	 * the records, encoded into a row buffer that writes to a temporary file
+	 */
+	@State(Scope.Thread)
+	public static class Rows extends Records {
+		File out;
+		CsvSink sink;
+
+		@Setup
+		public void openSink() throws IOException {
+			out = File.createTempFile("bench-events", ".csv");
+			sink = new CsvSink(out, CsvSink.DEFAULT_BUFFER_SIZE, CsvSink.DEFAULT_FLUSH_INTERVAL_MS, false);
+			zip.eventRows = RowEncoder.acquire(sink);
+		}
+
+		@TearDown
+		public void closeSink() {
+			zip.releaseRows();
+			sink.close();
+			out.delete();
+		}
+	}
+
+	/**
+	 * an ingestion whose outputs go to a temporary folder, which is emptied after
+	 * each iteration
+	 */
+	@State(Scope.Benchmark)
+	public static class Ingestion {
+		File outputDir;
+		GettingStarted ingest;
+
+		@Setup(Level.Iteration)
+		public void setUp(UserZip userZip) throws IOException {
+			outputDir = BenchmarkFixtures.createTempDir("bench-out");
+			IngestOptions options = new IngestOptions();
+			options.outputDir = outputDir.getPath();
+			options.incremental = false;
+			ingest = new GettingStarted(userZip.eventsDir.getPath(), options);
+			GettingStarted.resetState();
+			ingest.openSinks();
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() {
+			GettingStarted.closeSinks();
+			BenchmarkFixtures.deleteRecursively(outputDir);
+		}
+	}
+
+	private static final EventHandler NO_HANDLER = new EventHandler() {
+		@Override
+		public boolean needsEvent(EventType type) {
+			return false;
+		}
+
+		@Override
+		public void handle(EventRecord record, ZipContext zip) {
+		}
+	};
+
+	private static final EventDispatcher DISPATCHER = new EventDispatcher();
+
+	static {
+		DISPATCHER.registerForAll(NO_HANDLER);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENTS_PER_ZIP)
+	public void getNextPlain(UserZip userZip, Blackhole bh) {
+		try (IReadingArchive ra = new ReadingArchive(userZip.zip)) {
+			while (ra.hasNext()) {
+				bh.consume(ra.getNextPlain());
+			}
+		}
+	}
+
+	@Benchmark
+	public IIDEEvent fromJsonCommandEvent(Events events) {
+		return JsonUtils.fromJson(events.command, IIDEEvent.class);
+	}
+
+	@Benchmark
+	public IIDEEvent fromJsonCompletionEvent(Events events) {
+		return JsonUtils.fromJson(events.completion, IIDEEvent.class);
+	}
+
+	@Benchmark
+	public EventHeader sniffCommandEvent(Events events) {
+		return EventSniffer.sniff(events.command);
+	}
+
+	@Benchmark
+	public EventHeader sniffCompletionEvent(Events events) {
+		return EventSniffer.sniff(events.completion);
+	}
+
+	@Benchmark
+	public void dispatch(Records records) {
+		DISPATCHER.dispatch(records.next(), records.zip);
+	}
+
+	@Benchmark
+	public void encodeEventRow(Rows rows) {
+		GettingStarted.writeEventRow(rows.next(), rows.zip);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENTS_PER_ZIP)
+	public void processUserZip(Ingestion ingestion) {
+		ingestion.ingest.processUserZip(USER_ZIP);
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Custom Java Flight Recorder events of the ingestion. They cost nothing
+ * unless a recording is running, e.g. started with
+ * -XX:StartFlightRecording=filename=ingest.jfr, and show up in JDK Mission
+ * Control next to the CPU and GC data of the same time.
+ */
+class IngestFlightEvents {
+
+	@Name("examples.ZipIngested")
+	@Label("Zip Ingested")
+	@Category("KaVE Ingestion")
+	@Description("All events of a user zip were read, decoded and written")
+	static class ZipIngested extends Event {
+		@Label("Zip")
+		String zip;
+
+		@Label("Events")
+		long events;
+
+		@Label("Json")
+		@DataAmount
+		long jsonBytes;
+
+		@Label("Exceptions")
+		long exceptions;
+	}
+
+	@Name("examples.SlowEvent")
+	@Label("Slow Event")
+	@Category("KaVE Ingestion")
+	@Description("An event that took unusually long to decode")
+	static class SlowEvent extends Event {
+		@Label("Zip")
+		String zip;
+
+		@Label("Event Type")
+		String eventType;
+
+		@Label("Json")
+		@DataAmount
+		long jsonBytes;
+
+		@Label("Decode Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long decodeNanos;
+	}
+
+	@Name("examples.IngestSnapshot")
+	@Label("Ingestion Snapshot")
+	@Category("KaVE Ingestion")
+	@Description("Throughput since the previous snapshot")
+	static class Snapshot extends Event {
+		@Label("Events")
+		long events;
+
+		@Label("Events per Second")
+		double eventsPerSecond;
+
+		@Label("MB per Second")
+		double megabytesPerSecond;
+
+		@Label("Exceptions")
+		long exceptions;
+	}
+}
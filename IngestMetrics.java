@@ -0,0 +1,320 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.time.ZonedDateTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live metrics of a run, collected from all workers:
+ * 
+ * <ul>
+ * <li>events and MB of Json per second, overall and per zip,</li>
+ * <li>counts and decode latencies per event type,</li>
+ * <li>the time spent in unzipping, parsing, dispatching (including the
+ * encoding of the rows) and writing the outputs,</li>
+ * <li>exceptions per event.</li>
+ * </ul>
+ * 
+ * While a run is going on, a snapshot is appended as one Json line to a file
+ * (and a short progress line printed) in a fixed interval; finished zips are
+ * listed with their rates in a CSV file. The same data is emitted as
+ * {@link IngestFlightEvents}, together with events for single events that
+ * were slow to decode.
+ */
+public class IngestMetrics {
+
+	public enum Stage {
+		UNZIP, PARSE, DISPATCH
+	}
+
+	private final long slowEventNanos;
+	private final LongAdder events = new LongAdder();
+	private final LongAdder jsonBytes = new LongAdder();
+	private final LongAdder exceptions = new LongAdder();
+	private final LongAdder zipsDone = new LongAdder();
+	private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+	private final LongAdder[] typeCounts = new LongAdder[EventType.COUNT];
+	private final LatencyHistogram[] decodeLatency = new LatencyHistogram[EventType.COUNT];
+	private final Set<ZipContext> activeZips = ConcurrentHashMap.newKeySet();
+
+	private long startNanos = System.nanoTime();
+	private long writeNanosAtStart = CsvSink.getTotalWriteNanos();
+	private CsvSink snapshots;
+	private CsvSink zipRows;
+	private ScheduledExecutorService timer;
+	private long lastSnapshotNanos;
+	private long lastEvents;
+	private long lastJsonBytes;
+
+	public IngestMetrics(long slowEventMillis) {
+		this.slowEventNanos = TimeUnit.MILLISECONDS.toNanos(slowEventMillis);
+		for (int i = 0; i < stageNanos.length; i++) {
+			stageNanos[i] = new LongAdder();
+		}
+		for (int i = 0; i < EventType.COUNT; i++) {
+			typeCounts[i] = new LongAdder();
+			decodeLatency[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Starts to write snapshots every intervalMs to the snapshot file and a row
+	 * per finished zip to the zip file. Without a call to start, the metrics are
+	 * only collected.
+	 */
+	public synchronized void start(File snapshotFile, File zipFile, long intervalMs) {
+		startNanos = System.nanoTime();
+		writeNanosAtStart = CsvSink.getTotalWriteNanos();
+		lastSnapshotNanos = startNanos;
+		snapshots = new CsvSink(snapshotFile, 64 * 1024, 0, false);
+		zipRows = new CsvSink(zipFile, 64 * 1024, intervalMs, false);
+		zipRows.writeHeader("file,events,MB,seconds,events per second,MB per second,exceptions\n");
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ingest-metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				publish();
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes a last snapshot and closes the files.
+	 */
+	public synchronized void stop() {
+		if (timer == null) {
+			return;
+		}
+		timer.shutdownNow();
+		timer = null;
+		publish();
+		snapshots.close();
+		zipRows.close();
+	}
+
+	public void startZip(ZipContext zip) {
+		zip.flightEvent = new IngestFlightEvents.ZipIngested();
+		zip.flightEvent.begin();
+		activeZips.add(zip);
+	}
+
+	/**
+	 * an entry of the zip was read
+	 */
+	public void unzipped(ZipContext zip, String json, long nanos) {
+		events.increment();
+		jsonBytes.add(json.length());
+		stageNanos[Stage.UNZIP.ordinal()].add(nanos);
+		zip.eventsRead++;
+		zip.jsonBytes += json.length();
+	}
+
+	/**
+	 * a batch of entries of the zip was read
+	 */
+	public void unzipped(ZipContext zip, int entries, long bytes, long nanos) {
+		events.add(entries);
+		jsonBytes.add(bytes);
+		stageNanos[Stage.UNZIP.ordinal()].add(nanos);
+		zip.eventsRead += entries;
+		zip.jsonBytes += bytes;
+	}
+
+	/**
+	 * the entry was decoded into the record
+	 */
+	public void decoded(ZipContext zip, EventRecord r, String json, long nanos) {
+		stageNanos[Stage.PARSE.ordinal()].add(nanos);
+		typeCounts[r.type.ordinal()].increment();
+		decodeLatency[r.type.ordinal()].record(nanos);
+		if (nanos >= slowEventNanos) {
+			IngestFlightEvents.SlowEvent slow = new IngestFlightEvents.SlowEvent();
+			if (slow.isEnabled()) {
+				slow.zip = zip.userZip;
+				slow.eventType = r.typeName;
+				slow.jsonBytes = json.length();
+				slow.decodeNanos = nanos;
+				slow.commit();
+			}
+		}
+	}
+
+	public void decodeFailed(long nanos) {
+		stageNanos[Stage.PARSE.ordinal()].add(nanos);
+	}
+
+	public void dispatched(long nanos) {
+		stageNanos[Stage.DISPATCH.ordinal()].add(nanos);
+	}
+
+	public void exception() {
+		exceptions.increment();
+	}
+
+	public void finishZip(ZipContext zip) {
+		activeZips.remove(zip);
+		zipsDone.increment();
+		long nanos = System.nanoTime() - zip.startNanos;
+		IngestFlightEvents.ZipIngested done = zip.flightEvent;
+		if (done != null && done.shouldCommit()) {
+			done.zip = zip.userZip;
+			done.events = zip.eventsRead;
+			done.jsonBytes = zip.jsonBytes;
+			done.exceptions = zip.aggregate.exceptions;
+			done.commit();
+		}
+		CsvSink rows = zipRows;
+		if (rows != null) {
+			double seconds = nanos / 1e9;
+			rows.write(String.format("%s,%d,%.3f,%.3f,%.1f,%.3f,%d\n", zip.path, zip.eventsRead, mb(zip.jsonBytes),
+					seconds, zip.eventsRead / seconds, mb(zip.jsonBytes) / seconds, zip.aggregate.exceptions));
+		}
+	}
+
+	public long getEvents() {
+		return events.sum();
+	}
+
+	public long getExceptions() {
+		return exceptions.sum();
+	}
+
+	public long getStageNanos(Stage stage) {
+		return stageNanos[stage.ordinal()].sum();
+	}
+
+	/**
+	 * time spent in writing the outputs, in all threads; it overlaps with
+	 * DISPATCH when a full row buffer is written during an event
+	 */
+	public long getWriteNanos() {
+		return CsvSink.getTotalWriteNanos() - writeNanosAtStart;
+	}
+
+	public long getCount(EventType type) {
+		return typeCounts[type.ordinal()].sum();
+	}
+
+	public LatencyHistogram getDecodeLatency(EventType type) {
+		return decodeLatency[type.ordinal()];
+	}
+
+	private synchronized void publish() {
+		long now = System.nanoTime();
+		long eventsNow = events.sum();
+		long bytesNow = jsonBytes.sum();
+		long exceptionsNow = exceptions.sum();
+		double interval = Math.max(1, now - lastSnapshotNanos) / 1e9;
+		double eventsPerSecond = (eventsNow - lastEvents) / interval;
+		double mbPerSecond = mb(bytesNow - lastJsonBytes) / interval;
+		lastSnapshotNanos = now;
+		lastEvents = eventsNow;
+		lastJsonBytes = bytesNow;
+
+		snapshots.write(toJson(now, eventsNow, bytesNow, exceptionsNow, eventsPerSecond, mbPerSecond));
+		snapshots.flush();
+		System.out.printf("[metrics] %d events (%.0f/s, %.1f MB/s), %d zips done, %d exceptions\n", eventsNow,
+				eventsPerSecond, mbPerSecond, zipsDone.sum(), exceptionsNow);
+
+		IngestFlightEvents.Snapshot snapshot = new IngestFlightEvents.Snapshot();
+		if (snapshot.shouldCommit()) {
+			snapshot.events = eventsNow;
+			snapshot.eventsPerSecond = eventsPerSecond;
+			snapshot.megabytesPerSecond = mbPerSecond;
+			snapshot.exceptions = exceptionsNow;
+			snapshot.commit();
+		}
+	}
+
+	private String toJson(long now, long eventsNow, long bytesNow, long exceptionsNow, double eventsPerSecond,
+			double mbPerSecond) {
+		double elapsed = (now - startNanos) / 1e9;
+		StringBuilder sb = new StringBuilder(2048);
+		sb.append("{\"time\":\"").append(ZonedDateTime.now()).append('"');
+		sb.append(",\"elapsedSeconds\":").append(round(elapsed));
+		sb.append(",\"events\":").append(eventsNow);
+		sb.append(",\"eventsPerSecond\":").append(round(eventsPerSecond));
+		sb.append(",\"averageEventsPerSecond\":").append(round(eventsNow / elapsed));
+		sb.append(",\"mbPerSecond\":").append(round(mbPerSecond));
+		sb.append(",\"averageMbPerSecond\":").append(round(mb(bytesNow) / elapsed));
+		sb.append(",\"exceptions\":").append(exceptionsNow);
+		sb.append(",\"exceptionsPerEvent\":").append(eventsNow == 0 ? 0 : (double) exceptionsNow / eventsNow);
+		sb.append(",\"zipsDone\":").append(zipsDone.sum());
+		sb.append(",\"seconds\":{");
+		for (Stage stage : Stage.values()) {
+			sb.append('"').append(stage.name().toLowerCase()).append("\":").append(round(getStageNanos(stage) / 1e9));
+			sb.append(',');
+		}
+		sb.append("\"write\":").append(round(getWriteNanos() / 1e9)).append('}');
+		sb.append(",\"types\":{");
+		boolean first = true;
+		for (EventType type : EventType.values()) {
+			LatencyHistogram latency = decodeLatency[type.ordinal()];
+			long count = typeCounts[type.ordinal()].sum();
+			if (count == 0) {
+				continue;
+			}
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append('"').append(type.typeName).append("\":{\"count\":").append(count);
+			sb.append(",\"decodeMicrosP50\":").append(round(latency.getPercentileNanos(0.5) / 1e3));
+			sb.append(",\"decodeMicrosP99\":").append(round(latency.getPercentileNanos(0.99) / 1e3));
+			sb.append(",\"decodeMicrosMax\":").append(round(latency.getMaxNanos() / 1e3)).append('}');
+		}
+		sb.append("},\"activeZips\":[");
+		first = true;
+		for (ZipContext zip : activeZips) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			long zipEvents = zip.eventsRead;
+			long zipBytes = zip.jsonBytes;
+			double seconds = Math.max(1, now - zip.startNanos) / 1e9;
+			sb.append("{\"zip\":\"").append(zip.path.replace("\\", "\\\\").replace("\"", "\\\""));
+			sb.append("\",\"events\":").append(zipEvents);
+			sb.append(",\"eventsPerSecond\":").append(round(zipEvents / seconds));
+			sb.append(",\"mbPerSecond\":").append(round(mb(zipBytes) / seconds)).append('}');
+		}
+		sb.append("]}\n");
+		return sb.toString();
+	}
+
+	private static double mb(long bytes) {
+		return bytes / (1024.0 * 1024.0);
+	}
+
+	private static double round(double d) {
+		return Math.round(d * 1000) / 1000.0;
+	}
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+/**
+ * Settings for a run of {@link GettingStarted}. The defaults write the outputs
+ * of the original program, and only those, to the working directory, reading
+ * one zip at a time; all other outputs and the incremental mode are off. Two
+ * defaults only make the reading faster: the events folder is listed on all
+ * cores, and events whose content is not needed are only sniffed.
+ */
+public class IngestOptions {
+
+	/**
+	 * number of user zips that are processed at the same time (1 = sequential)
+	 */
+	public int workers = 1;
+
+	/**
+	 * folder in which all output files are created
+	 */
+	public String outputDir = ".";
+
+	/**
+	 * file with the zips to read, one per line and relative to the events
+	 * folder (e.g., written by {@link ShardedIngest}), null to read all zips in
+	 * the events folder
+	 */
+	public String zipList = null;
+
+	/**
+	 * threads that list the folders below the events folder
+	 */
+	public int discoveryThreads = allCores();
+
+	/**
+	 * file in the output folder in which the listing of the folders is cached
+	 * (see {@link ZipDiscovery}), null for none
+	 */
+	public String listingCache = null;
+
+	/**
+	 * with several workers (and no pipeline), start processing zips while the
+	 * events folder is still searched; the zips are then started in the order
+	 * they are found instead of largest first
+	 */
+	public boolean streamDiscovery = false;
+
+	/**
+	 * read only the header of events that do not need their full content instead
+	 * of deserializing every event
+	 */
+	public boolean sniffHeaders = true;
+
+	/**
+	 * keep a manifest of processed zips in the output folder and skip all zips
+	 * that did not change since the last run; the run must write the same
+	 * outputs as the last one, and without sessions, sketches, rollups or
+	 * duplicates. The rows of a zip are appended to the CSV outputs when it is
+	 * recorded, so a stopped run can be resumed, and the rows of a changed zip
+	 * replace those of its earlier version.
+	 */
+	public boolean incremental = false;
+
+	/**
+	 * after the zips in the events folder, keep processing new or changed zips
+	 * as they are written (see {@link ZipWatcher}) until
+	 * {@link GettingStarted#stopWatching()}; needs an incremental run
+	 */
+	public boolean watch = false;
+
+	/**
+	 * time a zip must stay unchanged before it is read in watch mode
+	 */
+	public long watchQuietMillis = 5000;
+
+	/**
+	 * process the zips in a pipeline of readers, decoders and a single writer
+	 * (see {@link IngestPipeline}) instead of one zip per worker
+	 */
+	public boolean pipeline = false;
+
+	/**
+	 * in pipeline mode: number of archives that are unzipped at the same time
+	 */
+	public int readers = 2;
+
+	/**
+	 * in pipeline mode: number of threads that parse events
+	 */
+	public int decoders = Math.max(1, allCores() - 2);
+
+	/**
+	 * in pipeline mode: capacity (in batches of events) of the queues between the
+	 * stages
+	 */
+	public int queueCapacity = 64;
+
+	/**
+	 * when zips are processed at the same time, start with the zips that are
+	 * estimated to take longest (see {@link ZipPlan})
+	 */
+	public boolean largestFirst = true;
+
+	public long progressIntervalMs = 1000;
+
+	/**
+	 * user zips with at least this many entries are read on several threads (see
+	 * {@link SplitZipReader})
+	 */
+	public int splitZipEntries = 50000;
+
+	/**
+	 * number of threads that read a large user zip, 1 to never split a zip
+	 */
+	public int splitThreads = 1;
+
+	/**
+	 * events whose timestamp cannot be parsed are decoded again from their header
+	 * with a lenient timestamp format, instead of being quarantined
+	 */
+	public boolean lenientTimestamps = false;
+
+	/**
+	 * folder in the output folder in which each event type is written to its
+	 * own file, with the columns of that type (see {@link EventPartitions}),
+	 * null for none
+	 */
+	public String partitionDir = null;
+
+	/**
+	 * file in the output folder to which the rows of events.csv are also written
+	 * in a columnar format (see {@link ColumnarFormat}), null for none
+	 */
+	public String columnarFile = null;
+
+	public int columnarRowGroupSize = 65536;
+
+	/**
+	 * file in the output folder to which the IDE sessions are written (see
+	 * {@link Sessionizer}), null for none
+	 */
+	public String sessionsFile = null;
+
+	/**
+	 * sessions kept in memory before they are spilled to disk
+	 */
+	public int maxSessionsInMemory = 200000;
+
+	/**
+	 * file in the output folder to which the features of the SST of every
+	 * CompletionEvent are written (see {@link SstFeatureExtractor}), null for
+	 * none
+	 */
+	public String sstFeaturesFile = null;
+
+	/**
+	 * number of threads that walk the SSTs
+	 */
+	public int sstThreads = allCores();
+
+	/**
+	 * memory for the features of recently seen SSTs
+	 */
+	public int sstCacheMb = 64;
+
+	/**
+	 * file in the output folder to which the selections of all CompletionEvents
+	 * are written in a compact binary form (see {@link CompletionExtractor}),
+	 * null for none; statistics per proposal are written to the file with the
+	 * suffix ".stats.csv"
+	 */
+	public String completionFile = null;
+
+	/**
+	 * false to no longer write CompletionEvents.csv when completionFile is set
+	 */
+	public boolean completionsCsv = true;
+
+	/**
+	 * folder in the output folder in which all events are kept in an
+	 * {@link EventStore} for later queries, null for none
+	 */
+	public String storeDir = null;
+
+	/**
+	 * Json of the events that is collected before a segment of the store is
+	 * written
+	 */
+	public int storeSegmentMb = 64;
+
+	/**
+	 * file in the output folder to which the event counts and durations per
+	 * user and time bucket are written (see {@link TimeRollups}), null for
+	 * none; the rollups are also saved in a binary form to the file with the
+	 * suffix ".bin"
+	 */
+	public String rollupFile = null;
+
+	/**
+	 * width of the time buckets, 24 for days
+	 */
+	public int rollupHours = 24;
+
+	/**
+	 * roll up by the profile id of a zip instead of by the zip
+	 */
+	public boolean rollupByProfile = false;
+
+	/**
+	 * what to do with events that were already read from another zip (or
+	 * earlier in the same zip) in this run (see {@link DuplicateFilter}), null
+	 * to not look for duplicates. The duplicates are listed in duplicates.csv.
+	 * An incremental run can only look for duplicates if it starts a new
+	 * manifest.
+	 */
+	public DuplicateFilter.Mode duplicates = null;
+
+	/**
+	 * memory for finding duplicates, the fingerprints that do not fit are kept
+	 * on disk
+	 */
+	public long duplicatesMemoryMb = 256;
+
+	/**
+	 * the number of events for which the duplicate check is tuned
+	 */
+	public long expectedEvents = 100000000;
+
+	/**
+	 * file in the output folder to which the merged sketches of distinct
+	 * sessions and profiles and of the most frequent commands and event types
+	 * are saved (see {@link SketchAggregator}), null for none
+	 */
+	public String sketchFile = null;
+
+	/**
+	 * precision of the distinct counts, their relative standard error is 1.04
+	 * / sqrt(2^precision)
+	 */
+	public int sketchPrecision = HyperLogLog.DEFAULT_PRECISION;
+
+	/**
+	 * counters for the most frequent commands and types, the counts are too
+	 * large by at most total / counters
+	 */
+	public int sketchCounters = SpaceSaving.DEFAULT_CAPACITY;
+
+	public int sketchTopK = 50;
+
+	/**
+	 * file in the output folder to which the counts and profile ids of every
+	 * zip are written, one line per zip with the fields of the manifest, and at
+	 * the end of the run the number of quarantined events per cause; null for
+	 * none (used by {@link ShardedIngest} to merge the totals of its shards)
+	 */
+	public String aggregatesFile = null;
+
+	/**
+	 * file in the output folder to which a snapshot of the metrics (see
+	 * {@link IngestMetrics}) is appended periodically, null for none
+	 */
+	public String metricsFile = null;
+
+	/**
+	 * file in the output folder with the throughput of every zip, written when
+	 * there is a metricsFile
+	 */
+	public String zipMetricsFile = "zip_metrics.csv";
+
+	public long metricsIntervalMs = 10000;
+
+	/**
+	 * events that take longer to decode are reported as JFR events
+	 */
+	public long slowEventMillis = 50;
+
+	public static int allCores() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cc.kave.commons.utils.io.IReadingArchive;
+import cc.kave.commons.utils.io.ReadingArchive;
+
+/**
+ * Processes user zips in three stages that run at the same time, so that
+ * unzipping, parsing and writing overlap:
+ * 
+ * <ol>
+ * <li>readers, each unzipping one archive at a time into batches of raw Json,</li>
+ * <li>a pool of decoders that parse the batches ({@link GettingStarted#decode}),</li>
+ * <li>a single writer that dispatches the events to the handlers and writes
+ * the outputs.</li>
+ * </ol>
+ * 
+ * The stages are connected by bounded queues; a stage that is faster than the
+ * next one is blocked until there is space again. The writer puts the batches
+ * of each zip back into their original order, so the rows of a zip are
+ * written in the same order as in a sequential run. {@link StageStats} show
+ * for each stage how long it waited and how full its output queue is, which
+ * tells the bottleneck.
+ */
+public class IngestPipeline {
+
+	private static final EventBatch END = new EventBatch(null, -1);
+
+	private final GettingStarted ingest;
+	private final IngestMetrics metrics;
+	private final String eventsDir;
+	private final int readers;
+	private final int decoders;
+	private final BlockingQueue<EventBatch> toDecode;
+	private final BlockingQueue<EventBatch> toWrite;
+	private final StageStats readStats = new StageStats("read");
+	private final StageStats decodeStats = new StageStats("decode");
+	private final StageStats writeStats = new StageStats("write");
+
+	public IngestPipeline(GettingStarted ingest, String eventsDir, IngestOptions options) {
+		this.ingest = ingest;
+		this.metrics = ingest.getMetrics();
+		this.eventsDir = eventsDir;
+		this.readers = Math.max(1, options.readers);
+		this.decoders = Math.max(1, options.decoders);
+		this.toDecode = new ArrayBlockingQueue<EventBatch>(options.queueCapacity);
+		this.toWrite = new ArrayBlockingQueue<EventBatch>(options.queueCapacity);
+	}
+
+	public List<StageStats> getStats() {
+		return Arrays.asList(readStats, decodeStats, writeStats);
+	}
+
+	public void run(Collection<String> userZips) {
+		final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<String>(userZips);
+		final AtomicInteger activeReaders = new AtomicInteger(readers);
+		ExecutorService threads = Executors.newFixedThreadPool(readers + decoders + 1);
+		// stages are waited for in the order they finish, so that a failed stage
+		// stops the others even if they are blocked on a queue
+		CompletionService<Void> stages = new ExecutorCompletionService<Void>(threads);
+		try {
+			for (int i = 0; i < readers; i++) {
+				stages.submit(new Runnable() {
+					@Override
+					public void run() {
+						read(pending, activeReaders);
+					}
+				}, null);
+			}
+			for (int i = 0; i < decoders; i++) {
+				stages.submit(new Runnable() {
+					@Override
+					public void run() {
+						decode();
+					}
+				}, null);
+			}
+			stages.submit(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			}, null);
+			for (int i = 0; i < readers + decoders + 1; i++) {
+				stages.take().get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			// one stage failed, the others are stopped
+			throw new RuntimeException("pipeline failed", e.getCause());
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	private void read(ConcurrentLinkedQueue<String> pending, AtomicInteger activeReaders) {
+		try {
+			String userZip;
+			while ((userZip = pending.poll()) != null) {
+				GettingStarted.all_files.add(userZip);
+				System.out.printf("\n#### processing user zip: %s #####\n", userZip);
+				if (ingest.reuseUnchanged(userZip)) {
+					continue;
+				}
+				readUserZip(userZip);
+			}
+			if (activeReaders.decrementAndGet() == 0) {
+				for (int i = 0; i < decoders; i++) {
+					put(toDecode, END, readStats);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void readUserZip(String userZip) throws InterruptedException {
+		ZipContext zip = ingest.startUserZip(userZip);
+		int seq = 0;
+		int numProcessedEvents = 0;
+		EventBatch batch = new EventBatch(zip, seq++);
+		try (IReadingArchive ra = new ReadingArchive(new File(eventsDir, userZip))) {
+			while (ra.hasNext() && (numProcessedEvents++ < GettingStarted.MAX_EVENTS_PER_ZIP)) {
+				long start = System.nanoTime();
+				String json = ra.getNextPlain();
+				metrics.unzipped(zip, json, System.nanoTime() - start);
+				batch.add(json);
+				readStats.items.increment();
+				if (batch.isFull()) {
+					put(toDecode, batch, readStats);
+					batch = new EventBatch(zip, seq++);
+				}
+			}
+		}
+		batch.last = true;
+		batch.numProcessedEvents = numProcessedEvents;
+		put(toDecode, batch, readStats);
+	}
+
+	private void decode() {
+		try {
+			while (true) {
+				EventBatch batch = take(toDecode, decodeStats);
+				if (batch == END) {
+					put(toWrite, END, decodeStats);
+					return;
+				}
+				batch.decode(ingest, metrics);
+				decodeStats.items.add(batch.size);
+				put(toWrite, batch, decodeStats);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write() {
+		// batches that arrived before their predecessors, per zip
+		Map<ZipContext, Map<Integer, EventBatch>> early = new HashMap<ZipContext, Map<Integer, EventBatch>>();
+		Map<ZipContext, Integer> nextSeq = new HashMap<ZipContext, Integer>();
+		int ends = 0;
+		try {
+			while (ends < decoders) {
+				EventBatch batch = take(toWrite, writeStats);
+				if (batch == END) {
+					ends++;
+					continue;
+				}
+				ZipContext zip = batch.zip;
+				Integer next = nextSeq.get(zip);
+				if (next == null) {
+					next = 0;
+				}
+				if (batch.seq != next) {
+					Map<Integer, EventBatch> waiting = early.get(zip);
+					if (waiting == null) {
+						waiting = new HashMap<Integer, EventBatch>();
+						early.put(zip, waiting);
+					}
+					waiting.put(batch.seq, batch);
+					continue;
+				}
+				// write this batch and all waiting successors
+				while (batch != null) {
+					write(batch);
+					next++;
+					if (batch.last) {
+						nextSeq.remove(zip);
+						early.remove(zip);
+						break;
+					}
+					nextSeq.put(zip, next);
+					Map<Integer, EventBatch> waiting = early.get(zip);
+					batch = waiting == null ? null : waiting.remove(next);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(EventBatch batch) {
+		batch.write(ingest, metrics);
+		writeStats.items.add(batch.size);
+		if (batch.last) {
+			ingest.finishUserZip(batch.zip, batch.numProcessedEvents);
+		}
+	}
+
+	private static void put(BlockingQueue<EventBatch> queue, EventBatch batch, StageStats stats)
+			throws InterruptedException {
+		if (!queue.offer(batch)) {
+			long start = System.nanoTime();
+			queue.put(batch);
+			stats.blockedOnOutputNanos.add(System.nanoTime() - start);
+		}
+		stats.queueDepth(queue.size());
+	}
+
+	private static EventBatch take(BlockingQueue<EventBatch> queue, StageStats stats)
+			throws InterruptedException {
+		EventBatch batch = queue.poll();
+		if (batch == null) {
+			long start = System.nanoTime();
+			batch = queue.take();
+			stats.waitForInputNanos.add(System.nanoTime() - start);
+		}
+		return batch;
+	}
+}
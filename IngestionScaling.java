@@ -0,0 +1,91 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Measures how the parallel ingestion scales. The same events folder is
+ * processed with 1, 2, 4, 8 and N (= all cores) workers, each run writes into
+ * its own temporary folder. Besides the timings, the outputs of every run are
+ * compared to the sequential run (ignoring the row order).
+ * 
+ * usage: IngestionScaling <eventsDir>
+ */
+public class IngestionScaling {
+
+	private static final String[] COMPARED_OUTPUTS = { "events.csv", "CompletionEvents.csv", "events_per_user.csv",
+			"userswithmorethan2000events.csv", "ids_and_zips.csv" };
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.out.println("usage: IngestionScaling <eventsDir>");
+			return;
+		}
+		String eventsDir = args[0];
+
+		TreeSet<Integer> threadCounts = new TreeSet<Integer>();
+		Collections.addAll(threadCounts, 1, 2, 4, 8, IngestOptions.allCores());
+
+		File sequentialDir = null;
+		long sequentialMillis = 0;
+		List<String> report = new ArrayList<String>();
+		for (int threads : threadCounts) {
+			IngestOptions options = new IngestOptions();
+			options.workers = threads;
+			options.outputDir = Files.createTempDirectory("scaling-" + threads + "-").toString();
+
+			GettingStarted.resetState();
+			long start = System.nanoTime();
+			new GettingStarted(eventsDir, options).run();
+			long millis = (System.nanoTime() - start) / 1000000;
+
+			File outDir = new File(options.outputDir);
+			boolean sameOutput = true;
+			if (sequentialDir == null) {
+				sequentialDir = outDir;
+				sequentialMillis = millis;
+			} else {
+				for (String name : COMPARED_OUTPUTS) {
+					sameOutput &= sortedLines(new File(sequentialDir, name)).equals(sortedLines(new File(outDir, name)));
+				}
+			}
+			report.add(String.format("%2d threads: %8d ms, speedup %5.2f, same output as sequential: %s", threads,
+					millis, sequentialMillis / (double) Math.max(millis, 1), sameOutput));
+		}
+
+		System.out.println("\n#### scaling ####");
+		for (String line : report) {
+			System.out.println(line);
+		}
+	}
+
+	private static List<String> sortedLines(File f) throws IOException {
+		if (!f.exists()) {
+			return Collections.emptyList();
+		}
+		List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+		Collections.sort(lines);
+		return lines;
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bidirectional index between the ProfileIds found in UserProfileEvents and
+ * the zips they were found in. Both directions are hash based, so adding a pair
+ * and all lookups take constant time, and the checks at the end of a run are
+ * linear in the number of zips. Insertion order is preserved in both
+ * directions.
+ */
+public class ProfileIndex {
+
+	private final Map<String, Set<String>> zipsByProfile = new LinkedHashMap<String, Set<String>>();
+	private final Map<String, Set<String>> profilesByZip = new LinkedHashMap<String, Set<String>>();
+
+	public synchronized void add(String profileId, String zip) {
+		Set<String> zips = zipsByProfile.get(profileId);
+		if (zips == null) {
+			zips = new LinkedHashSet<String>();
+			zipsByProfile.put(profileId, zips);
+		}
+		zips.add(zip);
+
+		Set<String> profiles = profilesByZip.get(zip);
+		if (profiles == null) {
+			profiles = new LinkedHashSet<String>();
+			profilesByZip.put(zip, profiles);
+		}
+		profiles.add(profileId);
+	}
+
+	/**
+	 * Forgets the profile ids of a zip, e.g., before a changed version of it is
+	 * read.
+	 */
+	public synchronized void removeZip(String zip) {
+		Set<String> profiles = profilesByZip.remove(zip);
+		if (profiles == null) {
+			return;
+		}
+		for (String profileId : profiles) {
+			Set<String> zips = zipsByProfile.get(profileId);
+			zips.remove(zip);
+			if (zips.isEmpty()) {
+				zipsByProfile.remove(profileId);
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return zipsByProfile.size();
+	}
+
+	public synchronized int zipCount() {
+		return profilesByZip.size();
+	}
+
+	public synchronized Set<String> profiles() {
+		return new LinkedHashSet<String>(zipsByProfile.keySet());
+	}
+
+	public synchronized Set<String> zips() {
+		return new LinkedHashSet<String>(profilesByZip.keySet());
+	}
+
+	public synchronized Set<String> zipsOf(String profileId) {
+		Set<String> zips = zipsByProfile.get(profileId);
+		return zips == null ? Collections.<String> emptySet() : new LinkedHashSet<String>(zips);
+	}
+
+	public synchronized Set<String> profilesOf(String zip) {
+		Set<String> profiles = profilesByZip.get(zip);
+		return profiles == null ? Collections.<String> emptySet() : new LinkedHashSet<String>(profiles);
+	}
+
+	public synchronized boolean containsZip(String zip) {
+		return profilesByZip.containsKey(zip);
+	}
+
+	/**
+	 * @return true if no zip contains more than one ProfileId
+	 */
+	public synchronized boolean eachZipMapsToOneProfile() {
+		for (Set<String> profiles : profilesByZip.values()) {
+			if (profiles.size() > 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return all zips of the given collection that do not contain any ProfileId
+	 */
+	public synchronized List<String> zipsWithoutProfile(Collection<String> allZips) {
+		List<String> missing = new ArrayList<String>();
+		for (String zip : allZips) {
+			if (!profilesByZip.containsKey(zip)) {
+				missing.add(zip);
+			}
+		}
+		return missing;
+	}
+
+	public synchronized void clear() {
+		zipsByProfile.clear();
+		profilesByZip.clear();
+	}
+}
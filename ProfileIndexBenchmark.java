@@ -0,0 +1,79 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Shows that the profile bookkeeping at the end of a run scales linearly with
+ * the number of zips. For 1k to 100k synthetic zips, it measures indexing
+ * several UserProfileEvents per zip plus the same end-of-run checks that
+ * {@link GettingStarted} does, and prints the time per zip, which should stay
+ * roughly constant.
+ */
+public class ProfileIndexBenchmark {
+
+	private static final int PROFILE_EVENTS_PER_ZIP = 5;
+
+	public static void main(String[] args) {
+		int[] sizes = { 1000, 10000, 25000, 50000, 100000 };
+		// warm up
+		measure(sizes[sizes.length - 1]);
+
+		for (int zips : sizes) {
+			long nanos = measure(zips);
+			System.out.printf("%7d zips: %6d ms, %6d ns per zip\n", zips, nanos / 1000000, nanos / zips);
+		}
+	}
+
+	private static long measure(int numZips) {
+		Random rnd = new Random(42);
+		List<String> allZips = new ArrayList<String>(numZips);
+		for (int i = 0; i < numZips; i++) {
+			allZips.add(String.format("2016-%02d-%02d/%d.zip", 1 + i % 12, 1 + i % 28, i));
+		}
+
+		long start = System.nanoTime();
+		ProfileIndex index = new ProfileIndex();
+		for (String zip : allZips) {
+			// most users have a single profile, a few zips have none
+			if (rnd.nextInt(10) == 0) {
+				continue;
+			}
+			String profile = "profile-" + rnd.nextInt(numZips);
+			for (int i = 0; i < PROFILE_EVENTS_PER_ZIP; i++) {
+				index.add(profile, zip);
+			}
+		}
+		int rows = 0;
+		for (String profile : index.profiles()) {
+			rows += index.zipsOf(profile).size();
+		}
+		for (String zip : index.zips()) {
+			rows += index.profilesOf(zip).size();
+		}
+		boolean oneProfileEach = index.eachZipMapsToOneProfile();
+		int missing = index.zipsWithoutProfile(allZips).size();
+		long nanos = System.nanoTime() - start;
+
+		if (rows < 0 || (oneProfileEach && missing < 0)) {
+			System.out.println(); // keeps the results alive
+		}
+		return nanos;
+	}
+}
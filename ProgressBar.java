@@ -0,0 +1,76 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prints the progress of a run, weighted by the estimated cost of the zips
+ * that are done (see {@link ZipPlan}), and the remaining time extrapolated from
+ * the rate so far. A line is printed at most once per interval.
+ */
+public class ProgressBar {
+
+	private static final int WIDTH = 30;
+
+	private final ZipPlan plan;
+	private final long intervalNanos;
+	private final long startNanos = System.nanoTime();
+	private final AtomicLong doneCost = new AtomicLong();
+	private final AtomicInteger doneZips = new AtomicInteger();
+	private final AtomicLong lastPrint = new AtomicLong(startNanos);
+
+	public ProgressBar(ZipPlan plan, long intervalMs) {
+		this.plan = plan;
+		this.intervalNanos = intervalMs * 1000000L;
+	}
+
+	public void done(String userZip) {
+		ZipPlan.Item item = plan.get(userZip);
+		long cost = doneCost.addAndGet(item == null ? 0 : item.cost);
+		int zips = doneZips.incrementAndGet();
+		long now = System.nanoTime();
+		long last = lastPrint.get();
+		boolean finished = zips == plan.size();
+		if ((finished || now - last >= intervalNanos) && lastPrint.compareAndSet(last, now)) {
+			System.out.println(render(zips, cost, now));
+		}
+	}
+
+	String render(int zips, long cost, long now) {
+		double total = Math.max(1, plan.getTotalCost());
+		double fraction = Math.min(1, cost / total);
+		int filled = (int) (fraction * WIDTH);
+		StringBuilder sb = new StringBuilder("[progress] [");
+		for (int i = 0; i < WIDTH; i++) {
+			sb.append(i < filled ? '#' : '-');
+		}
+		sb.append(String.format("] %5.1f%%, %d/%d zips", fraction * 100, zips, plan.size()));
+		long elapsed = now - startNanos;
+		if (fraction > 0 && fraction < 1) {
+			long remaining = (long) (elapsed * (1 - fraction) / fraction);
+			sb.append(", ETA ").append(formatNanos(remaining));
+		}
+		sb.append(", elapsed ").append(formatNanos(elapsed));
+		return sb.toString();
+	}
+
+	private static String formatNanos(long nanos) {
+		long seconds = nanos / 1000000000L;
+		return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the events that could not be decoded or processed. Each one is
+ * written unchanged, with its zip, its index in the zip and the cause, to
+ * errors.csv, so it can be inspected or processed again later; the Json is
+ * the last column, so that it may contain commas. The rows are collected by
+ * the sink and written in large batches.
+ * 
+ * The causes (stage and root exception) are counted, and so are the events
+ * that could still be recovered, e.g., with a lenient timestamp.
+ */
+public class Quarantine {
+
+	public static final String HEADER = "file,entry,cause,JSON\n";
+
+	private final CsvSink sink;
+	private final ConcurrentMap<String, LongAdder> causes = new ConcurrentHashMap<String, LongAdder>();
+	private final LongAdder recovered = new LongAdder();
+
+	public Quarantine(CsvSink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Moves an errors file with another header (e.g., written by an earlier
+	 * version) aside, so that all rows appended to errors.csv have the same
+	 * columns.
+	 * 
+	 * @return the file it was moved to, null if it was kept
+	 */
+	public static File moveAsideIfOtherHeader(File errors) throws IOException {
+		if (errors.length() == 0) {
+			return null;
+		}
+		String first;
+		try (BufferedReader in = Files.newBufferedReader(errors.toPath(), StandardCharsets.UTF_8)) {
+			first = in.readLine();
+		}
+		if (HEADER.equals(first + "\n")) {
+			return null;
+		}
+		File moved = new File(errors.getAbsoluteFile().getParentFile(), "errors-" + errors.lastModified() + ".csv");
+		Files.move(errors.toPath(), moved.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return moved;
+	}
+
+	/**
+	 * @param entry
+	 *            index of the event in the zip, starting at 0
+	 * @param stage
+	 *            where the event failed, e.g., "decode"
+	 */
+	public void add(ZipContext zip, int entry, String json, String stage, Throwable failure) {
+		String cause = stage + ":" + rootCause(failure).getClass().getSimpleName();
+		count(cause);
+		StringBuilder sb = new StringBuilder(zip.userZip.length() + cause.length() + json.length() + 16);
+		sb.append(zip.userZip).append(',').append(entry).append(',').append(cause).append(',').append(json)
+				.append('\n');
+		zip.sink(sink).write(sb.toString());
+	}
+
+	public void recovered() {
+		recovered.increment();
+	}
+
+	public long getRecovered() {
+		return recovered.sum();
+	}
+
+	/**
+	 * number of quarantined events per cause, the most frequent cause first
+	 */
+	public Map<String, Long> getCauses() {
+		List<Map.Entry<String, LongAdder>> entries = new ArrayList<Map.Entry<String, LongAdder>>(causes.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, LongAdder>>() {
+			@Override
+			public int compare(Map.Entry<String, LongAdder> a, Map.Entry<String, LongAdder> b) {
+				return Long.compare(b.getValue().sum(), a.getValue().sum());
+			}
+		});
+		Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : entries) {
+			sorted.put(e.getKey(), e.getValue().sum());
+		}
+		return sorted;
+	}
+
+	static Throwable rootCause(Throwable t) {
+		while (t.getCause() != null && t.getCause() != t) {
+			t = t.getCause();
+		}
+		return t;
+	}
+
+	/**
+	 * true if the failure was caused by a timestamp or duration that could not be
+	 * parsed
+	 */
+	static boolean isTimestampFailure(Throwable t) {
+		for (Throwable c = t; c != null; c = c.getCause() == c ? null : c.getCause()) {
+			if (c instanceof DateTimeException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void count(String cause) {
+		count(cause, 1);
+	}
+
+	/*
+	 * also used for the counts of the shards that are merged
+	 */
+	void count(String cause, long n) {
+		LongAdder count = causes.get(cause);
+		if (count == null) {
+			LongAdder created = new LongAdder();
+			count = causes.putIfAbsent(cause, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.add(n);
+	}
+}
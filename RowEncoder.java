@@ -0,0 +1,276 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.nio.ByteBuffer;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Encodes CSV rows as UTF-8 directly into a reusable direct buffer, which is
+ * drained into a {@link CsvSink} whenever it runs full. Only complete rows are
+ * handed to the sink, so rows of several workers never interleave. Encoding
+ * strings, numbers and timestamps does not allocate.
+ * 
+ * An encoder is used by one thread at a time; encoders are pooled, so that
+ * their buffers can be reused for the next zip.
+ */
+public class RowEncoder {
+
+	static final int DEFAULT_CAPACITY = 256 * 1024;
+	private static final int LOW_WATER = 8 * 1024;
+	private static final ConcurrentLinkedQueue<RowEncoder> POOL = new ConcurrentLinkedQueue<RowEncoder>();
+
+	private ByteBuffer buf;
+	private int rowStart;
+	private CsvSink sink;
+
+	// date, hour and minute of the last timestamp, already encoded
+	private final byte[] minutePrefix = new byte[16];
+	private int cachedYear = -1;
+	private int cachedMonth;
+	private int cachedDay;
+	private int cachedHour;
+	private int cachedMinute;
+
+	private RowEncoder(int capacity) {
+		buf = ByteBuffer.allocateDirect(capacity);
+	}
+
+	public static RowEncoder acquire(CsvSink sink) {
+		RowEncoder encoder = POOL.poll();
+		if (encoder == null) {
+			encoder = new RowEncoder(DEFAULT_CAPACITY);
+		}
+		encoder.sink = sink;
+		return encoder;
+	}
+
+	/**
+	 * Writes all complete rows and returns the encoder to the pool.
+	 */
+	public void release() {
+		buf.position(rowStart);
+		drain();
+		sink = null;
+		POOL.offer(this);
+	}
+
+	/**
+	 * Starts a new row and discards the rest of a row that was not ended, e.g.,
+	 * because encoding it failed.
+	 */
+	public RowEncoder beginRow() {
+		buf.position(rowStart);
+		return this;
+	}
+
+	public void endRow() {
+		rowStart = buf.position();
+		if (buf.remaining() < LOW_WATER) {
+			drain();
+		}
+	}
+
+	/**
+	 * Hands all complete rows to the sink.
+	 */
+	public void drain() {
+		if (rowStart == 0) {
+			return;
+		}
+		int end = buf.position();
+		buf.position(0);
+		buf.limit(rowStart);
+		sink.write(buf);
+		buf.limit(end);
+		buf.position(rowStart);
+		buf.compact();
+		rowStart = 0;
+	}
+
+	public RowEncoder put(byte[] bytes) {
+		ensure(bytes.length);
+		buf.put(bytes);
+		return this;
+	}
+
+	/**
+	 * for ASCII characters only
+	 */
+	public RowEncoder put(char c) {
+		ensure(1);
+		buf.put((byte) c);
+		return this;
+	}
+
+	/**
+	 * Encodes the string as UTF-8, null is written as "null".
+	 */
+	public RowEncoder put(CharSequence s) {
+		if (s == null) {
+			return put("null");
+		}
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				ensure(1);
+				buf.put((byte) c);
+			} else if (c < 0x800) {
+				ensure(2);
+				buf.put((byte) (0xC0 | (c >> 6)));
+				buf.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				ensure(4);
+				buf.put((byte) (0xF0 | (cp >> 18)));
+				buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buf.put((byte) (0x80 | (cp & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				ensure(1);
+				buf.put((byte) '?');
+			} else {
+				ensure(3);
+				buf.put((byte) (0xE0 | (c >> 12)));
+				buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buf.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+		return this;
+	}
+
+	public RowEncoder put(long v) {
+		if (v == Long.MIN_VALUE) {
+			return put("-9223372036854775808");
+		}
+		if (v < 0) {
+			put('-');
+			v = -v;
+		}
+		int digits = 1;
+		for (long rest = v / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		putDigits(v, digits);
+		return this;
+	}
+
+	/**
+	 * Writes the same text as {@link ZonedDateTime#toString()}.
+	 */
+	public RowEncoder put(ZonedDateTime t) {
+		if (t == null) {
+			return put("null");
+		}
+		int year = t.getYear();
+		if (year < 0 || year > 9999) {
+			return put(t.toString());
+		}
+		int month = t.getMonthValue();
+		int day = t.getDayOfMonth();
+		int hour = t.getHour();
+		int minute = t.getMinute();
+		if (year != cachedYear || month != cachedMonth || day != cachedDay || hour != cachedHour
+				|| minute != cachedMinute) {
+			encodeMinutePrefix(year, month, day, hour, minute);
+		}
+		put(minutePrefix);
+
+		// LocalTime.toString omits zero seconds and uses 3, 6 or 9 digits for nanos
+		int second = t.getSecond();
+		int nano = t.getNano();
+		if (second > 0 || nano > 0) {
+			put(':');
+			putDigits(second, 2);
+			if (nano > 0) {
+				put('.');
+				if (nano % 1000000 == 0) {
+					putDigits(nano / 1000000, 3);
+				} else if (nano % 1000 == 0) {
+					putDigits(nano / 1000, 6);
+				} else {
+					putDigits(nano, 9);
+				}
+			}
+		}
+		ZoneOffset offset = t.getOffset();
+		put(offset.getId());
+		ZoneId zone = t.getZone();
+		if (zone != offset) {
+			put('[').put(zone.getId()).put(']');
+		}
+		return this;
+	}
+
+	private void encodeMinutePrefix(int year, int month, int day, int hour, int minute) {
+		cachedYear = year;
+		cachedMonth = month;
+		cachedDay = day;
+		cachedHour = hour;
+		cachedMinute = minute;
+		byte[] p = minutePrefix;
+		p[0] = digit(year / 1000);
+		p[1] = digit(year / 100 % 10);
+		p[2] = digit(year / 10 % 10);
+		p[3] = digit(year % 10);
+		p[4] = '-';
+		p[5] = digit(month / 10);
+		p[6] = digit(month % 10);
+		p[7] = '-';
+		p[8] = digit(day / 10);
+		p[9] = digit(day % 10);
+		p[10] = 'T';
+		p[11] = digit(hour / 10);
+		p[12] = digit(hour % 10);
+		p[13] = ':';
+		p[14] = digit(minute / 10);
+		p[15] = digit(minute % 10);
+	}
+
+	private static byte digit(int d) {
+		return (byte) ('0' + d);
+	}
+
+	private void putDigits(long v, int digits) {
+		ensure(digits);
+		int pos = buf.position();
+		for (int i = digits - 1; i >= 0; i--) {
+			buf.put(pos + i, digit((int) (v % 10)));
+			v /= 10;
+		}
+		buf.position(pos + digits);
+	}
+
+	private void ensure(int n) {
+		if (buf.remaining() >= n) {
+			return;
+		}
+		// make room by writing the complete rows...
+		drain();
+		if (buf.remaining() >= n) {
+			return;
+		}
+		// ... or, for a single huge row, by growing the buffer
+		ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(buf.capacity() * 2, buf.position() + n));
+		buf.flip();
+		bigger.put(buf);
+		buf = bigger;
+	}
+}
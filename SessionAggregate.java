@@ -0,0 +1,159 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+/**
+ * Everything counted for one IDE session, possibly only for a part of its
+ * events. Two parts of the same session can be merged, so a session can be
+ * built from events of several zips and from several spilled runs.
+ */
+public class SessionAggregate {
+
+	public final String session;
+	/**
+	 * the smallest ProfileId of the zips with events of the session, or null
+	 */
+	public String profile;
+	public int zips;
+	public long events;
+
+	// epoch millis and zone offset (in seconds) of the first and last event
+	public long start = Long.MAX_VALUE;
+	public int startOffset;
+	public long end = Long.MIN_VALUE;
+	public int endOffset;
+
+	// summed durations in millis
+	public long activeMillis;
+	public long buildMillis;
+	public long testMillis;
+	public long editMillis;
+	public int builds;
+	public int testRuns;
+
+	public SessionAggregate(String session) {
+		this.session = session;
+	}
+
+	public void add(EventRecord r) {
+		events++;
+		long duration = r.Duration == null ? 0 : r.Duration.toMillis();
+		if (r.TriggeredAt != null) {
+			long t = r.TriggeredAt.toInstant().toEpochMilli();
+			int offset = r.TriggeredAt.getOffset().getTotalSeconds();
+			if (t < start) {
+				start = t;
+				startOffset = offset;
+			}
+			if (t + duration > end) {
+				end = t + duration;
+				endOffset = offset;
+			}
+		}
+		switch (r.type) {
+		case ACTIVITY:
+			activeMillis += duration;
+			break;
+		case BUILD:
+			buildMillis += duration;
+			builds++;
+			break;
+		case TEST_RUN:
+			testMillis += duration;
+			testRuns++;
+			break;
+		case EDIT:
+			editMillis += duration;
+			break;
+		default:
+			break;
+		}
+	}
+
+	public void add(SessionAggregate other) {
+		if (other.profile != null && (profile == null || other.profile.compareTo(profile) < 0)) {
+			profile = other.profile;
+		}
+		zips += other.zips;
+		events += other.events;
+		if (other.start < start) {
+			start = other.start;
+			startOffset = other.startOffset;
+		}
+		if (other.end > end) {
+			end = other.end;
+			endOffset = other.endOffset;
+		}
+		activeMillis += other.activeMillis;
+		buildMillis += other.buildMillis;
+		testMillis += other.testMillis;
+		editMillis += other.editMillis;
+		builds += other.builds;
+		testRuns += other.testRuns;
+	}
+
+	public ZonedDateTime getStart() {
+		return start == Long.MAX_VALUE ? null
+				: Instant.ofEpochMilli(start).atZone(ZoneOffset.ofTotalSeconds(startOffset));
+	}
+
+	public ZonedDateTime getEnd() {
+		return end == Long.MIN_VALUE ? null : Instant.ofEpochMilli(end).atZone(ZoneOffset.ofTotalSeconds(endOffset));
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeUTF(session);
+		out.writeUTF(profile == null ? "" : profile);
+		out.writeInt(zips);
+		out.writeLong(events);
+		out.writeLong(start);
+		out.writeInt(startOffset);
+		out.writeLong(end);
+		out.writeInt(endOffset);
+		out.writeLong(activeMillis);
+		out.writeLong(buildMillis);
+		out.writeLong(testMillis);
+		out.writeLong(editMillis);
+		out.writeInt(builds);
+		out.writeInt(testRuns);
+	}
+
+	static SessionAggregate readFrom(DataInput in) throws IOException {
+		SessionAggregate s = new SessionAggregate(in.readUTF());
+		String profile = in.readUTF();
+		s.profile = profile.isEmpty() ? null : profile;
+		s.zips = in.readInt();
+		s.events = in.readLong();
+		s.start = in.readLong();
+		s.startOffset = in.readInt();
+		s.end = in.readLong();
+		s.endOffset = in.readInt();
+		s.activeMillis = in.readLong();
+		s.buildMillis = in.readLong();
+		s.testMillis = in.readLong();
+		s.editMillis = in.readLong();
+		s.builds = in.readInt();
+		s.testRuns = in.readInt();
+		return s;
+	}
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Builds IDE sessions (keyed by IDESessionUUID) while the events stream
+ * through: start and end, number of events, active time (the summed Duration
+ * of the ActivityEvents) and the time spent in builds, test runs and edits.
+ * 
+ * Each zip collects the parts of its sessions in its {@link ZipContext}; when
+ * the zip is done, they are merged into one map of all sessions. If the map
+ * grows beyond a limit, it is written sorted by session to a run file on disk
+ * and cleared, so the memory stays bounded regardless of the number of
+ * sessions. At the end, all runs are merged (a k-way merge over the sorted
+ * runs) and each session is written once to the output.
+ * 
+ * A zip with more sessions than the limit hands its sessions over early; its
+ * sessions that continue afterwards are then counted twice in "zips".
+ * 
+ * An incremental run that skips zips cannot write sessions.
+ */
+public class Sessionizer implements EventHandler {
+
+	public static final String HEADER = "session,profile,zips,start,end,duration,events,"
+			+ "active,build,test,edit,builds,test runs\n";
+
+	private static final Comparator<SessionAggregate> BY_SESSION = new Comparator<SessionAggregate>() {
+		@Override
+		public int compare(SessionAggregate a, SessionAggregate b) {
+			return a.session.compareTo(b.session);
+		}
+	};
+
+	private final File runDir;
+	private final int maxSessionsInMemory;
+	private final Map<String, SessionAggregate> sessions = new HashMap<String, SessionAggregate>();
+	private final List<File> runs = new ArrayList<File>();
+
+	/**
+	 * @param runDir
+	 *            directory for the spilled runs, created if needed
+	 */
+	public Sessionizer(File runDir, int maxSessionsInMemory) {
+		this.runDir = runDir;
+		this.maxSessionsInMemory = maxSessionsInMemory;
+	}
+
+	@Override
+	public boolean needsEvent(EventType type) {
+		return false;
+	}
+
+	@Override
+	public void handle(EventRecord record, ZipContext zip) {
+		if (record.IDESessionUUID == null) {
+			return;
+		}
+		Map<String, SessionAggregate> local = zip.sessions;
+		if (local == null) {
+			local = zip.sessions = new HashMap<String, SessionAggregate>();
+		}
+		SessionAggregate s = local.get(record.IDESessionUUID);
+		if (s == null) {
+			s = new SessionAggregate(record.IDESessionUUID);
+			s.zips = 1;
+			local.put(record.IDESessionUUID, s);
+		}
+		s.add(record);
+		if (local.size() >= maxSessionsInMemory) {
+			// a zip with very many sessions, the profile is added by the later parts
+			zip.sessions = null;
+			merge(local, null);
+		}
+	}
+
+	/**
+	 * Adds the sessions of a zip that is done.
+	 */
+	public void finishZip(ZipContext zip) {
+		Map<String, SessionAggregate> local = zip.sessions;
+		zip.sessions = null;
+		if (local == null) {
+			return;
+		}
+		String profile = zip.aggregate.profileIds.isEmpty() ? null : zip.aggregate.profileIds.iterator().next();
+		merge(local, profile);
+	}
+
+	private synchronized void merge(Map<String, SessionAggregate> local, String profile) {
+		for (SessionAggregate s : local.values()) {
+			s.profile = profile;
+			SessionAggregate all = sessions.get(s.session);
+			if (all == null) {
+				sessions.put(s.session, s);
+			} else {
+				all.add(s);
+			}
+		}
+		if (sessions.size() >= maxSessionsInMemory) {
+			spill();
+		}
+	}
+
+	public synchronized int getSpilledRuns() {
+		return runs.size();
+	}
+
+	private void spill() {
+		try {
+			Files.createDirectories(runDir.toPath());
+			File run = new File(runDir, "run-" + runs.size() + ".bin");
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+				for (SessionAggregate s : sorted()) {
+					s.writeTo(out);
+				}
+			}
+			runs.add(run);
+			sessions.clear();
+		} catch (IOException e) {
+			throw new RuntimeException("cannot spill sessions to " + runDir, e);
+		}
+	}
+
+	private List<SessionAggregate> sorted() {
+		List<SessionAggregate> list = new ArrayList<SessionAggregate>(sessions.values());
+		Collections.sort(list, BY_SESSION);
+		return list;
+	}
+
+	/**
+	 * Merges all sessions and writes them, sorted by session, to the output.
+	 * Deletes the spilled runs.
+	 * 
+	 * @return the number of sessions
+	 */
+	public synchronized int finish(CsvSink output) {
+		output.writeHeader(HEADER);
+		List<RunReader> readers = new ArrayList<RunReader>();
+		try {
+			PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, runs.size() + 1),
+					new Comparator<RunReader>() {
+						@Override
+						public int compare(RunReader a, RunReader b) {
+							return BY_SESSION.compare(a.current, b.current);
+						}
+					});
+			for (File run : runs) {
+				RunReader r = new RunReader(run);
+				readers.add(r);
+				if (r.advance()) {
+					queue.add(r);
+				}
+			}
+			RunReader inMemory = new RunReader(sorted());
+			if (inMemory.advance()) {
+				queue.add(inMemory);
+			}
+			sessions.clear();
+
+			int count = 0;
+			while (!queue.isEmpty()) {
+				RunReader first = queue.poll();
+				SessionAggregate session = first.current;
+				if (first.advance()) {
+					queue.add(first);
+				}
+				while (!queue.isEmpty() && queue.peek().current.session.equals(session.session)) {
+					RunReader same = queue.poll();
+					session.add(same.current);
+					if (same.advance()) {
+						queue.add(same);
+					}
+				}
+				output.write(toRow(session));
+				count++;
+			}
+			return count;
+		} catch (IOException e) {
+			throw new RuntimeException("cannot merge the spilled sessions in " + runDir, e);
+		} finally {
+			for (RunReader r : readers) {
+				r.close();
+			}
+			discard();
+		}
+	}
+
+	/**
+	 * Deletes the spilled runs, e.g., after a failed run.
+	 */
+	public synchronized void discard() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		runDir.delete();
+	}
+
+	private static String toRow(SessionAggregate s) {
+		StringBuilder sb = new StringBuilder(200);
+		sb.append(s.session).append(',');
+		sb.append(s.profile == null ? "N/A" : s.profile).append(',');
+		sb.append(s.zips).append(',');
+		sb.append(s.getStart()).append(',');
+		sb.append(s.getEnd()).append(',');
+		sb.append(s.getStart() == null ? 0 : (s.end - s.start) / 1000).append(',');
+		sb.append(s.events).append(',');
+		sb.append(s.activeMillis / 1000).append(',');
+		sb.append(s.buildMillis / 1000).append(',');
+		sb.append(s.testMillis / 1000).append(',');
+		sb.append(s.editMillis / 1000).append(',');
+		sb.append(s.builds).append(',');
+		sb.append(s.testRuns).append('\n');
+		return sb.toString();
+	}
+
+	/*
+	 * the sessions of a run file (or of the sessions still in memory) in order
+	 */
+	private static class RunReader {
+		private final DataInputStream in;
+		private final List<SessionAggregate> list;
+		private int next;
+		SessionAggregate current;
+
+		RunReader(File run) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			this.list = null;
+		}
+
+		RunReader(List<SessionAggregate> list) {
+			this.in = null;
+			this.list = list;
+		}
+
+		boolean advance() throws IOException {
+			if (list != null) {
+				current = next < list.size() ? list.get(next++) : null;
+				return current != null;
+			}
+			try {
+				current = SessionAggregate.readFrom(in);
+				return true;
+			} catch (EOFException e) {
+				current = null;
+				return false;
+			}
+		}
+
+		void close() {
+			if (in == null) {
+				return;
+			}
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,466 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Processes the zips in several worker JVMs on the same machine, so that the
+ * heap and the garbage collector of a single JVM are not the limit. The
+ * coordinator splits the zips into shards of about the same cost (see
+ * {@link ZipPlan}), starts one worker process per shard and waits for all of
+ * them. Each worker is a normal run with the options of the coordinator, its
+ * own output folder (shard-N in the output folder, with the list of its zips,
+ * its options and its log) and its share of the cores; it writes the counts
+ * and profile ids of each of its zips to {@link IngestOptions#aggregatesFile}.
+ * 
+ * When all workers are done, the shards are merged: the CSV files, the SST
+ * features and the files of the partitions are concatenated (with one
+ * header), and the totals, the profile ids and ids_and_zips.csv are computed
+ * from the aggregates and printed like at the end of a single run. Sketches
+ * and rollups are merged. Only the order of the rows differs from a single
+ * run; {@link ShardedIngestCheck} compares the two.
+ * 
+ * The outputs that cannot be merged (sessions, the columnar file, the event
+ * store, the completions file, duplicates and metrics) stay in the shard
+ * folders. A sharded run always reads all zips, so it cannot be incremental
+ * or watch the events folder. As a worker only finds the duplicates within
+ * its shard, duplicates can be listed, but not dropped.
+ */
+public class ShardedIngest {
+
+	/*
+	 * the merged outputs, and whether each of them starts with a header line
+	 */
+	private static final String[] OUTPUTS = { "events.csv", "CompletionEvents.csv", "errors.csv",
+			"events_per_user.csv", "userswithmorethan2000events.csv" };
+	private static final boolean[] HAS_HEADER = { true, true, true, true, false };
+
+	private static final String WORKER = "--worker";
+	private static final String AGGREGATES = "aggregates.tsv";
+	private static final String OPTIONS = "options.properties";
+
+	private final String eventsDir;
+	private final IngestOptions options;
+	private final int shards;
+	private final String workerHeap;
+
+	/**
+	 * @param options
+	 *            the options of the workers; the threads of each worker are
+	 *            limited to its share of the cores
+	 * @param workerHeap
+	 *            maximum heap of a worker, e.g., "4g", null for the default
+	 */
+	public ShardedIngest(String eventsDir, IngestOptions options, int shards, String workerHeap) {
+		if (options.incremental || options.watch) {
+			throw new IllegalArgumentException("a sharded run reads all zips, it cannot be incremental or watch");
+		}
+		if (options.zipList != null) {
+			throw new IllegalArgumentException("a sharded run reads all zips in the events folder, not a zip list");
+		}
+		if (options.duplicates == DuplicateFilter.Mode.DROP) {
+			throw new IllegalArgumentException("the shards do not see each other's events, so a sharded run"
+					+ " cannot drop duplicates");
+		}
+		this.eventsDir = eventsDir;
+		this.options = options;
+		this.shards = shards;
+		this.workerHeap = workerHeap;
+	}
+
+	public void run() throws IOException, InterruptedException {
+		File cache = options.listingCache == null ? null : new File(options.outputDir, options.listingCache);
+		Set<String> userZips = new ZipDiscovery(eventsDir, cache, options.discoveryThreads).findAll();
+		ZipPlan plan = ZipPlan.create(eventsDir, userZips);
+		List<List<String>> parts = partition(plan, shards);
+
+		List<File> shardDirs = new ArrayList<File>();
+		List<Process> workers = new ArrayList<Process>();
+		for (int i = 0; i < parts.size(); i++) {
+			File dir = new File(options.outputDir, "shard-" + i);
+			deleteRecursively(dir);
+			Files.createDirectories(dir.toPath());
+			Files.write(new File(dir, "zips.txt").toPath(), parts.get(i), StandardCharsets.UTF_8);
+			saveOptions(workerOptions(dir, parts.size()), new File(dir, OPTIONS));
+			shardDirs.add(dir);
+			workers.add(startWorker(dir));
+			System.out.printf("shard %d: %d zips\n", i, parts.get(i).size());
+		}
+		boolean failed = false;
+		for (int i = 0; i < workers.size(); i++) {
+			int exit = workers.get(i).waitFor();
+			if (exit != 0) {
+				System.err.printf("worker of shard %d failed (exit code %d), see %s\n", i, exit,
+						new File(shardDirs.get(i), "log.txt"));
+				failed = true;
+			}
+		}
+		if (failed) {
+			throw new IOException("not all shards were processed, nothing was merged");
+		}
+		merge(shardDirs, userZips.size());
+	}
+
+	/*
+	 * the largest zips first, each into the shard with the lowest cost so far
+	 */
+	static List<List<String>> partition(ZipPlan plan, int shards) {
+		int n = Math.max(1, Math.min(shards, plan.size()));
+		List<List<String>> parts = new ArrayList<List<String>>();
+		long[] costs = new long[n];
+		for (int i = 0; i < n; i++) {
+			parts.add(new ArrayList<String>());
+		}
+		for (String userZip : plan.largestFirst()) {
+			int min = 0;
+			for (int i = 1; i < n; i++) {
+				if (costs[i] < costs[min]) {
+					min = i;
+				}
+			}
+			parts.get(min).add(userZip);
+			costs[min] += plan.get(userZip).cost;
+		}
+		return parts;
+	}
+
+	private Process startWorker(File shardDir) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		if (workerHeap != null) {
+			command.add("-Xmx" + workerHeap);
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ShardedIngest.class.getName());
+		command.add(WORKER);
+		command.add(eventsDir);
+		command.add(new File(shardDir, OPTIONS).getPath());
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(new File(shardDir, "log.txt"));
+		return pb.start();
+	}
+
+	/*
+	 * the options of the coordinator, for the zips of a shard and with its
+	 * share of the cores
+	 */
+	private IngestOptions workerOptions(File shardDir, int shardCount) {
+		IngestOptions worker = copy(options);
+		worker.outputDir = shardDir.getPath();
+		worker.zipList = new File(shardDir, "zips.txt").getPath();
+		worker.listingCache = null;
+		// the counts and profile ids of every zip for the merge
+		worker.aggregatesFile = AGGREGATES;
+		int cores = Math.max(1, IngestOptions.allCores() / shardCount);
+		worker.splitThreads = Math.min(options.splitThreads, cores);
+		worker.sstThreads = Math.min(options.sstThreads, cores);
+		worker.decoders = Math.min(options.decoders, cores);
+		worker.discoveryThreads = Math.min(options.discoveryThreads, cores);
+		return worker;
+	}
+
+	/*
+	 * All public fields of the options are written as properties, so a worker
+	 * gets every option of the coordinator, also ones added later.
+	 */
+	static void saveOptions(IngestOptions options, File file) throws IOException {
+		Properties p = new Properties();
+		try {
+			for (Field f : optionFields()) {
+				Object value = f.get(options);
+				if (value != null) {
+					p.setProperty(f.getName(), value.toString());
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		try (OutputStream out = new FileOutputStream(file)) {
+			p.store(out, "options of a ShardedIngest worker");
+		}
+	}
+
+	static IngestOptions loadOptions(File file) throws IOException {
+		Properties p = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			p.load(in);
+		}
+		IngestOptions options = new IngestOptions();
+		try {
+			for (Field f : optionFields()) {
+				String value = p.getProperty(f.getName());
+				// a missing number or flag keeps its default
+				if (value != null || !f.getType().isPrimitive()) {
+					f.set(options, parse(f.getType(), value));
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		return options;
+	}
+
+	private static IngestOptions copy(IngestOptions options) {
+		IngestOptions copy = new IngestOptions();
+		try {
+			for (Field f : optionFields()) {
+				f.set(copy, f.get(options));
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		return copy;
+	}
+
+	private static List<Field> optionFields() {
+		List<Field> fields = new ArrayList<Field>();
+		for (Field f : IngestOptions.class.getFields()) {
+			if (!Modifier.isStatic(f.getModifiers()) && !Modifier.isFinal(f.getModifiers())) {
+				fields.add(f);
+			}
+		}
+		return fields;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object parse(Class<?> type, String value) {
+		if (type == int.class) {
+			return Integer.parseInt(value);
+		} else if (type == long.class) {
+			return Long.parseLong(value);
+		} else if (type == boolean.class) {
+			return Boolean.parseBoolean(value);
+		} else if (value == null) {
+			return null;
+		} else if (type == String.class) {
+			return value;
+		} else if (type.isEnum()) {
+			return Enum.valueOf((Class<? extends Enum>) type, value);
+		}
+		throw new IllegalArgumentException("option of an unsupported type: " + type);
+	}
+
+	private static void runWorker(String eventsDir, File optionsFile) throws IOException {
+		new GettingStarted(eventsDir, loadOptions(optionsFile)).run();
+	}
+
+	private void merge(List<File> shardDirs, int totalFiles) throws IOException {
+		File outputDir = new File(options.outputDir);
+		for (int i = 0; i < OUTPUTS.length; i++) {
+			List<File> parts = new ArrayList<File>();
+			for (File dir : shardDirs) {
+				parts.add(new File(dir, OUTPUTS[i]));
+			}
+			concatenate(parts, new File(outputDir, OUTPUTS[i]), HAS_HEADER[i]);
+		}
+		if (options.sstFeaturesFile != null) {
+			concatenate(inShards(shardDirs, options.sstFeaturesFile), new File(outputDir, options.sstFeaturesFile),
+					true);
+		}
+		if (options.partitionDir != null) {
+			mergePartitions(shardDirs);
+		}
+
+		// the totals as if all zips had been processed by this JVM
+		GettingStarted.resetState();
+		Map<String, Long> causes = new HashMap<String, Long>();
+		for (File aggregates : inShards(shardDirs, AGGREGATES)) {
+			for (String line : Files.readAllLines(aggregates.toPath(), StandardCharsets.UTF_8)) {
+				String[] fields = line.split("\t", -1);
+				if (fields[0].equals(GettingStarted.CAUSES)) {
+					Long count = causes.get(fields[1]);
+					causes.put(fields[1], (count == null ? 0 : count) + Long.parseLong(fields[2]));
+					continue;
+				}
+				ZipAggregate aggregate = ZipAggregate.fromFields(fields[0], fields, 1);
+				GettingStarted.all_files.add(aggregate.zip);
+				GettingStarted.mergeIntoTotals(aggregate);
+			}
+		}
+		IngestOptions merged = new IngestOptions();
+		merged.outputDir = options.outputDir;
+		merged.incremental = false;
+		GettingStarted ingest = new GettingStarted(eventsDir, merged);
+		new File(outputDir, "ids_and_zips.csv").delete();
+		ingest.openSinks();
+		try {
+			for (Map.Entry<String, Long> cause : causes.entrySet()) {
+				GettingStarted.quarantine.count(cause.getKey(), cause.getValue());
+			}
+			ingest.printSummary(totalFiles);
+		} finally {
+			GettingStarted.closeSinks();
+		}
+		if (options.sketchFile != null) {
+			mergeSketches(shardDirs);
+		}
+		if (options.rollupFile != null) {
+			mergeRollups(shardDirs);
+		}
+	}
+
+	private static List<File> inShards(List<File> shardDirs, String fileName) {
+		List<File> files = new ArrayList<File>();
+		for (File dir : shardDirs) {
+			files.add(new File(dir, fileName));
+		}
+		return files;
+	}
+
+	/*
+	 * each type that appears in any shard
+	 */
+	private void mergePartitions(List<File> shardDirs) throws IOException {
+		Set<String> types = new TreeSet<String>();
+		for (File dir : shardDirs) {
+			String[] names = new File(dir, options.partitionDir).list();
+			if (names != null) {
+				types.addAll(Arrays.asList(names));
+			}
+		}
+		File merged = new File(options.outputDir, options.partitionDir);
+		Files.createDirectories(merged.toPath());
+		for (String type : types) {
+			concatenate(inShards(shardDirs, options.partitionDir + File.separator + type), new File(merged, type),
+					true);
+		}
+	}
+
+	private void mergeRollups(List<File> shardDirs) throws IOException {
+		TimeRollups all = null;
+		for (File part : inShards(shardDirs, options.rollupFile + ".bin")) {
+			TimeRollups r = TimeRollups.load(part);
+			if (all == null) {
+				all = r;
+			} else {
+				all.merge(r);
+			}
+		}
+		File outputDir = new File(options.outputDir);
+		all.save(new File(outputDir, options.rollupFile + ".bin"));
+		try (CsvSink out = new CsvSink(new File(outputDir, options.rollupFile), CsvSink.DEFAULT_BUFFER_SIZE,
+				CsvSink.DEFAULT_FLUSH_INTERVAL_MS, false)) {
+			System.out.println("rollups: " + all.write(out) + " rows");
+		}
+	}
+
+	private void mergeSketches(List<File> shardDirs) throws IOException {
+		SketchAggregator.Sketches all = null;
+		List<File> users = new ArrayList<File>();
+		for (File dir : shardDirs) {
+			SketchAggregator.Sketches s = SketchAggregator.Sketches.load(new File(dir, options.sketchFile));
+			if (all == null) {
+				all = s;
+			} else {
+				all.merge(s);
+			}
+			users.add(new File(dir, options.sketchFile + ".users.csv"));
+		}
+		File outputDir = new File(options.outputDir);
+		all.save(new File(outputDir, options.sketchFile));
+		concatenate(users, new File(outputDir, options.sketchFile + ".users.csv"), true);
+		File top = new File(outputDir, options.sketchFile + ".top.csv");
+		try (CsvSink sink = new CsvSink(top, CsvSink.DEFAULT_BUFFER_SIZE, CsvSink.DEFAULT_FLUSH_INTERVAL_MS, false)) {
+			SketchAggregator.writeTop(all, sink, options.sketchTopK);
+		}
+		SketchAggregator.printSummary(all, Math.min(10, options.sketchTopK));
+	}
+
+	/*
+	 * Replaces the target with the content of the parts; if they start with a
+	 * header, only the header of the first part is kept.
+	 */
+	static void concatenate(List<File> parts, File target, boolean header) throws IOException {
+		try (FileChannel out = new FileOutputStream(target, false).getChannel()) {
+			boolean first = true;
+			for (File part : parts) {
+				if (!part.exists()) {
+					continue;
+				}
+				try (FileInputStream in = new FileInputStream(part)) {
+					long skip = header && !first ? headerLength(part) : 0;
+					FileChannel channel = in.getChannel();
+					long position = skip;
+					long size = channel.size();
+					while (position < size) {
+						position += channel.transferTo(position, size - position, out);
+					}
+				}
+				first = false;
+			}
+		}
+	}
+
+	private static long headerLength(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			long length = 0;
+			int b;
+			while ((b = in.read()) >= 0) {
+				length++;
+				if (b == '\n') {
+					break;
+				}
+			}
+			return length;
+		}
+	}
+
+	private static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		f.delete();
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length == 3 && WORKER.equals(args[0])) {
+			runWorker(args[1], new File(args[2]));
+			return;
+		}
+		if (args.length < 3) {
+			System.out.println("usage: ShardedIngest <eventsDir> <outputDir> <shards> [<workers per shard>] [<heap>]");
+			return;
+		}
+		IngestOptions options = new IngestOptions();
+		options.outputDir = args[1];
+		options.workers = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		new ShardedIngest(args[0], options, Integer.parseInt(args[2]), args.length > 4 ? args[4] : null).run();
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that a {@link ShardedIngest} writes the same outputs as a single run:
+ * it processes the events folder once in this JVM and once in shards, and
+ * compares the merged files line by line (in sorted order, as the order of
+ * the rows differs), the totals and the causes of the quarantined events. It
+ * also checks that a sharded run refuses to drop duplicates. Exits with an
+ * exception at the first difference.
+ */
+public class ShardedIngestCheck {
+
+	private static final String[] COMPARED = { "events.csv", "CompletionEvents.csv", "errors.csv",
+			"events_per_user.csv", "userswithmorethan2000events.csv", "ids_and_zips.csv", "rollups.csv" };
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.out.println("usage: ShardedIngestCheck <eventsDir> <empty output folder> [<shards>]");
+			return;
+		}
+		File single = new File(args[1], "single");
+		File sharded = new File(args[1], "sharded");
+		Files.createDirectories(single.toPath());
+		Files.createDirectories(sharded.toPath());
+
+		new GettingStarted(args[0], options(single)).run();
+		long[] counts = GettingStarted.eventCounts.clone();
+		long exceptions = GettingStarted.exceptions.sum();
+		Map<String, Long> causes = GettingStarted.quarantine.getCauses();
+		GettingStarted.resetState();
+
+		int shards = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		new ShardedIngest(args[0], options(sharded), shards, null).run();
+		if (!Arrays.equals(counts, GettingStarted.eventCounts) || exceptions != GettingStarted.exceptions.sum()) {
+			throw new IllegalStateException("the totals differ: " + Arrays.toString(counts) + " " + exceptions
+					+ " in a single run, " + Arrays.toString(GettingStarted.eventCounts) + " "
+					+ GettingStarted.exceptions.sum() + " in shards");
+		}
+		if (!causes.equals(GettingStarted.quarantine.getCauses())) {
+			throw new IllegalStateException("the causes differ: " + causes + " in a single run, "
+					+ GettingStarted.quarantine.getCauses() + " in shards");
+		}
+
+		List<String> compared = new ArrayList<String>(Arrays.asList(COMPARED));
+		String[] partitions = new File(single, "partitions").list();
+		if (partitions != null) {
+			for (String type : partitions) {
+				compared.add("partitions" + File.separator + type);
+			}
+		}
+		long lines = 0;
+		for (String name : compared) {
+			lines += compare(new File(single, name), new File(sharded, name));
+		}
+
+		IngestOptions dropping = options(sharded);
+		dropping.duplicates = DuplicateFilter.Mode.DROP;
+		try {
+			new ShardedIngest(args[0], dropping, shards, null);
+			throw new IllegalStateException("a sharded run accepted to drop duplicates");
+		} catch (IllegalArgumentException e) {
+			// expected, the shards cannot see each other's events
+		}
+		System.out.println("sharded ingest: " + compared.size() + " files with " + lines
+				+ " lines are the same as in a single run");
+	}
+
+	private static IngestOptions options(File outputDir) {
+		IngestOptions options = new IngestOptions();
+		options.outputDir = outputDir.getPath();
+		options.partitionDir = "partitions";
+		options.rollupFile = "rollups.csv";
+		return options;
+	}
+
+	private static int compare(File expected, File actual) throws IOException {
+		List<String> a = readSorted(expected);
+		List<String> b = readSorted(actual);
+		if (!a.equals(b)) {
+			b.removeAll(a);
+			throw new IllegalStateException(actual + ": " + b.size() + " lines differ from " + expected
+					+ (b.isEmpty() ? "" : ", e.g., " + b.get(0)));
+		}
+		return a.size();
+	}
+
+	private static List<String> readSorted(File file) throws IOException {
+		if (!file.exists()) {
+			return Collections.emptyList();
+		}
+		List<String> lines = new ArrayList<String>(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+		Collections.sort(lines);
+		return lines;
+	}
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import cc.kave.commons.model.events.CommandEvent;
+
+/**
+ * Approximate aggregates for dashboards, in a fixed amount of memory per zip:
+ * the number of distinct sessions (per user and overall) and of distinct
+ * profiles, estimated with {@link HyperLogLog}s, and the most frequent
+ * CommandIds and event types, found with {@link SpaceSaving} and estimated
+ * with a {@link CountMinSketch}.
+ * 
+ * Each zip fills its own {@link Sketches} in its {@link ZipContext}; when the
+ * zip is done, they are merged into the sketches of all zips. The merged
+ * sketches can be saved, and the saved sketches of several runs (e.g., of
+ * different parts of the data) merged with {@link #main(String[])}.
+ * 
+ * Command events have to be deserialized to get their CommandId. An
+ * incremental run that skips zips cannot write sketches.
+ */
+public class SketchAggregator implements EventHandler {
+
+	public static final String USERS_HEADER = "file,sessions,relative error\n";
+	public static final String TOP_HEADER = "sketch,key,count,lower bound,count-min estimate\n";
+
+	private static final int VERSION = 1;
+
+	/**
+	 * The mergeable sketches of one zip or of several.
+	 */
+	public static class Sketches {
+		public final HyperLogLog sessions;
+		public final HyperLogLog profiles;
+		public final SpaceSaving commands;
+		public final CountMinSketch commandCounts;
+		public final SpaceSaving types;
+
+		Sketches(int precision, int capacity) {
+			this(new HyperLogLog(precision), new HyperLogLog(precision), new SpaceSaving(capacity),
+					new CountMinSketch(), new SpaceSaving(capacity));
+		}
+
+		private Sketches(HyperLogLog sessions, HyperLogLog profiles, SpaceSaving commands,
+				CountMinSketch commandCounts, SpaceSaving types) {
+			this.sessions = sessions;
+			this.profiles = profiles;
+			this.commands = commands;
+			this.commandCounts = commandCounts;
+			this.types = types;
+		}
+
+		public void merge(Sketches other) {
+			sessions.merge(other.sessions);
+			profiles.merge(other.profiles);
+			commands.merge(other.commands);
+			commandCounts.merge(other.commandCounts);
+			types.merge(other.types);
+		}
+
+		void writeTo(DataOutput out) throws IOException {
+			out.writeInt(VERSION);
+			sessions.writeTo(out);
+			profiles.writeTo(out);
+			commands.writeTo(out);
+			commandCounts.writeTo(out);
+			types.writeTo(out);
+		}
+
+		static Sketches readFrom(DataInput in) throws IOException {
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("unsupported version of the sketches: " + version);
+			}
+			return new Sketches(HyperLogLog.readFrom(in), HyperLogLog.readFrom(in), SpaceSaving.readFrom(in),
+					CountMinSketch.readFrom(in), SpaceSaving.readFrom(in));
+		}
+
+		public void save(File file) throws IOException {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+				writeTo(out);
+			}
+		}
+
+		public static Sketches load(File file) throws IOException {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+				return readFrom(in);
+			}
+		}
+	}
+
+	private final int precision;
+	private final int capacity;
+	private final Sketches all;
+	private final List<String> users = new ArrayList<String>();
+
+	public SketchAggregator(int precision, int capacity) {
+		this.precision = precision;
+		this.capacity = capacity;
+		this.all = new Sketches(precision, capacity);
+	}
+
+	@Override
+	public boolean needsEvent(EventType type) {
+		return type == EventType.COMMAND;
+	}
+
+	@Override
+	public void handle(EventRecord record, ZipContext zip) {
+		Sketches s = zip.sketches;
+		if (s == null) {
+			s = zip.sketches = new Sketches(precision, capacity);
+		}
+		if (record.IDESessionUUID != null) {
+			s.sessions.add(record.IDESessionUUID);
+		}
+		s.types.add(record.typeName);
+		if (record.type == EventType.COMMAND) {
+			String commandId = ((CommandEvent) record.event).CommandId;
+			if (commandId != null) {
+				s.commands.add(commandId);
+				s.commandCounts.add(commandId, 1);
+			}
+		}
+	}
+
+	/**
+	 * Adds the sketches of a zip that is done.
+	 */
+	public void finishZip(ZipContext zip) {
+		Sketches s = zip.sketches;
+		zip.sketches = null;
+		if (s == null) {
+			return;
+		}
+		for (String profileId : zip.aggregate.profileIds) {
+			s.profiles.add(profileId);
+		}
+		String row = CsvSink.field(zip.path) + "," + s.sessions.estimate() + ","
+				+ String.format("%.4f", s.sessions.getRelativeError()) + "\n";
+		synchronized (this) {
+			all.merge(s);
+			users.add(row);
+		}
+	}
+
+	public synchronized Sketches getSketches() {
+		return all;
+	}
+
+	/**
+	 * Writes the estimated sessions of each user (zip).
+	 */
+	public synchronized void writeUsers(CsvSink output) {
+		output.writeHeader(USERS_HEADER);
+		for (String row : users) {
+			output.write(row);
+		}
+	}
+
+	public synchronized void writeTop(CsvSink output, int k) {
+		writeTop(all, output, k);
+	}
+
+	static void writeTop(Sketches s, CsvSink output, int k) {
+		output.writeHeader(TOP_HEADER);
+		for (SpaceSaving.Counter c : s.commands.top(k)) {
+			long estimate = Math.min(c.count, s.commandCounts.estimate(c.key));
+			output.write("command," + CsvSink.field(c.key) + "," + c.count + "," + c.getLowerBound() + ","
+					+ estimate + "\n");
+		}
+		for (SpaceSaving.Counter c : s.types.top(k)) {
+			output.write("type," + CsvSink.field(c.key) + "," + c.count + "," + c.getLowerBound() + ",\n");
+		}
+	}
+
+	static void printSummary(Sketches s, int k) {
+		System.out.printf("distinct sessions: ~%d (relative standard error %.2f%%)\n", s.sessions.estimate(),
+				100 * s.sessions.getRelativeError());
+		System.out.printf("distinct profiles: ~%d (relative standard error %.2f%%)\n", s.profiles.estimate(),
+				100 * s.profiles.getRelativeError());
+		System.out.printf("top %d commands of %d (counts too large by at most %d; count-min: at most %d with "
+				+ "probability %.3f):\n", k, s.commands.getTotal(), s.commands.getErrorBound(),
+				s.commandCounts.getErrorBound(), s.commandCounts.getConfidence());
+		for (SpaceSaving.Counter c : s.commands.top(k)) {
+			System.out.printf("  %s: %d..%d\n", c.key, c.getLowerBound(), c.count);
+		}
+		System.out.printf("top %d event types of %d (counts too large by at most %d):\n", k, s.types.getTotal(),
+				s.types.getErrorBound());
+		for (SpaceSaving.Counter c : s.types.top(k)) {
+			System.out.printf("  %s: %d..%d\n", c.key, c.getLowerBound(), c.count);
+		}
+	}
+
+	/**
+	 * Merges the saved sketches in the given files and prints the estimates.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: SketchAggregator <sketch file>...");
+			return;
+		}
+		Sketches merged = Sketches.load(new File(args[0]));
+		for (int i = 1; i < args.length; i++) {
+			merged.merge(Sketches.load(new File(args[i])));
+		}
+		printSummary(merged, 20);
+	}
+}
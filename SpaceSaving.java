@@ -0,0 +1,245 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the most frequent strings with a fixed number of counters
+ * (Space-Saving by Metwally et al.). When all counters are taken, a new string
+ * replaces the one with the smallest count and inherits that count as its
+ * error. The count of a string is therefore never too small and too large by
+ * at most its error, which is at most total / capacity. Every string that was
+ * added more often than total / capacity times has a counter.
+ * 
+ * Two summaries are merged by adding the counts of the same strings; a string
+ * that is missing in one of them may have been added up to the smallest count
+ * of that one, which is added to its count and error. Then the largest
+ * counters are kept (Agarwal et al., "Mergeable Summaries").
+ * 
+ * The counters are also kept in a binary min-heap by count, so the counter
+ * to replace is found in constant time and a string is added in O(log
+ * capacity), also when the counts are weighted.
+ */
+public class SpaceSaving {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final Comparator<Counter> BY_COUNT = new Comparator<Counter>() {
+		@Override
+		public int compare(Counter a, Counter b) {
+			int c = Long.compare(b.count, a.count);
+			return c != 0 ? c : a.key.compareTo(b.key);
+		}
+	};
+
+	public static class Counter {
+		public final String key;
+		/**
+		 * an upper bound of the number of times the key was added
+		 */
+		public long count;
+		/**
+		 * how much the count is too large at most
+		 */
+		public long error;
+		/*
+		 * the position in the heap
+		 */
+		int index;
+
+		Counter(String key, long count, long error) {
+			this.key = key;
+			this.count = count;
+			this.error = error;
+		}
+
+		/**
+		 * the number of times the key was added at least
+		 */
+		public long getLowerBound() {
+			return count - error;
+		}
+	}
+
+	private final int capacity;
+	private final Map<String, Counter> counters = new HashMap<String, Counter>();
+	private final Counter[] heap;
+	private long total;
+
+	public SpaceSaving() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public SpaceSaving(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		this.capacity = capacity;
+		this.heap = new Counter[capacity];
+	}
+
+	public void add(String key) {
+		add(key, 1);
+	}
+
+	public void add(String key, long count) {
+		total += count;
+		Counter c = counters.get(key);
+		if (c != null) {
+			c.count += count;
+			siftDown(c.index);
+		} else if (counters.size() < capacity) {
+			insert(new Counter(key, count, 0));
+		} else {
+			Counter min = heap[0];
+			counters.remove(min.key);
+			c = new Counter(key, min.count + count, min.count);
+			counters.put(key, c);
+			heap[0] = c;
+			siftDown(0);
+		}
+	}
+
+	private void insert(Counter c) {
+		counters.put(c.key, c);
+		int i = counters.size() - 1;
+		heap[i] = c;
+		c.index = i;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (heap[parent].count <= c.count) {
+				break;
+			}
+			move(heap[parent], i);
+			i = parent;
+		}
+		move(c, i);
+	}
+
+	private void siftDown(int i) {
+		Counter c = heap[i];
+		int size = counters.size();
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+				child++;
+			}
+			if (c.count <= heap[child].count) {
+				break;
+			}
+			move(heap[child], i);
+			i = child;
+		}
+		move(c, i);
+	}
+
+	private void move(Counter c, int i) {
+		heap[i] = c;
+		c.index = i;
+	}
+
+	/**
+	 * the count that any string without a counter may have at most
+	 */
+	private long missingCount() {
+		return counters.size() < capacity ? 0 : heap[0].count;
+	}
+
+	public void merge(SpaceSaving other) {
+		long missing = missingCount();
+		long otherMissing = other.missingCount();
+		Map<String, Counter> merged = new HashMap<String, Counter>();
+		for (Counter c : counters.values()) {
+			Counter o = other.counters.get(c.key);
+			if (o != null) {
+				merged.put(c.key, new Counter(c.key, c.count + o.count, c.error + o.error));
+			} else {
+				merged.put(c.key, new Counter(c.key, c.count + otherMissing, c.error + otherMissing));
+			}
+		}
+		for (Counter o : other.counters.values()) {
+			if (!merged.containsKey(o.key)) {
+				merged.put(o.key, new Counter(o.key, o.count + missing, o.error + missing));
+			}
+		}
+		List<Counter> sorted = new ArrayList<Counter>(merged.values());
+		Collections.sort(sorted, BY_COUNT);
+		counters.clear();
+		// largest first, so each counter is inserted at the bottom of the heap
+		for (Counter c : sorted.subList(0, Math.min(capacity, sorted.size()))) {
+			insert(c);
+		}
+		total += other.total;
+	}
+
+	/**
+	 * the k counters with the largest counts, the largest first
+	 */
+	public List<Counter> top(int k) {
+		List<Counter> sorted = new ArrayList<Counter>(counters.values());
+		Collections.sort(sorted, BY_COUNT);
+		return sorted.subList(0, Math.min(k, sorted.size()));
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * the largest error of any count, at most total / capacity
+	 */
+	public long getErrorBound() {
+		long max = 0;
+		for (Counter c : counters.values()) {
+			max = Math.max(max, c.error);
+		}
+		return Math.max(max, missingCount());
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(capacity);
+		out.writeLong(total);
+		out.writeInt(counters.size());
+		for (Counter c : counters.values()) {
+			out.writeUTF(c.key);
+			out.writeLong(c.count);
+			out.writeLong(c.error);
+		}
+	}
+
+	static SpaceSaving readFrom(DataInput in) throws IOException {
+		SpaceSaving s = new SpaceSaving(in.readInt());
+		s.total = in.readLong();
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			String key = in.readUTF();
+			s.insert(new Counter(key, in.readLong(), in.readLong()));
+		}
+		return s;
+	}
+}
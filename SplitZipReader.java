@@ -0,0 +1,186 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads a single large user zip on several threads. The entries are listed
+ * from the central directory of the zip and split into {@link EventBatch}es;
+ * each batch is inflated and decoded on a thread of the pool, and the batches
+ * are then written in entry order by the calling thread. At most a few
+ * batches per thread are in flight, so memory stays bounded also for zips
+ * with millions of entries.
+ * 
+ * Zips with fewer entries than the threshold are left to the sequential
+ * reader, for them the setup costs more than it gains.
+ */
+public class SplitZipReader {
+
+	private static final int BATCHES_PER_THREAD = 4;
+
+	private final GettingStarted ingest;
+	private final IngestMetrics metrics;
+	private final String eventsDir;
+	private final int minEntries;
+	private final int threads;
+	private final ExecutorService pool;
+
+	public SplitZipReader(GettingStarted ingest, String eventsDir, IngestOptions options) {
+		this.ingest = ingest;
+		this.metrics = ingest.getMetrics();
+		this.eventsDir = eventsDir;
+		this.minEntries = options.splitZipEntries;
+		this.threads = options.splitThreads;
+		this.pool = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Processes the zip if it is large enough to be split.
+	 * 
+	 * @param entries
+	 *            the entries of the zip if they are known (e.g., from the
+	 *            {@link ZipPlan}), -1 to count them
+	 * @return false if the zip is small and was not touched
+	 */
+	public boolean processIfLarge(String userZip, int entries) {
+		if (entries >= 0 && entries < minEntries) {
+			return false;
+		}
+		try (ZipFile zipFile = new ZipFile(new File(eventsDir, userZip))) {
+			if (zipFile.size() < minEntries) {
+				return false;
+			}
+			System.out.printf("(reading %d entries on %d threads)\n", zipFile.size(), threads);
+			ZipContext zip = ingest.startUserZip(userZip);
+			try {
+				int numProcessedEvents = process(zip, zipFile);
+				ingest.finishUserZip(zip, numProcessedEvents);
+			} finally {
+				zip.releaseRows();
+				zip.discardStaged();
+			}
+			return true;
+		} catch (IOException e) {
+			throw new RuntimeException("cannot read " + userZip, e);
+		}
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	private int process(final ZipContext zip, final ZipFile zipFile) {
+		final List<ZipEntry> entries = listEntries(zipFile);
+		// the same limit as in the sequential reader
+		int numProcessedEvents = entries.size() > GettingStarted.MAX_EVENTS_PER_ZIP
+				? GettingStarted.MAX_EVENTS_PER_ZIP + 1 : entries.size();
+		final int numEntries = Math.min(entries.size(), GettingStarted.MAX_EVENTS_PER_ZIP);
+		int numBatches = (numEntries + EventBatch.SIZE - 1) / EventBatch.SIZE;
+
+		ArrayDeque<Future<EventBatch>> inFlight = new ArrayDeque<Future<EventBatch>>();
+		int submitted = 0;
+		try {
+			while (submitted < numBatches && inFlight.size() < threads * BATCHES_PER_THREAD) {
+				inFlight.add(submit(zip, zipFile, entries, numEntries, submitted++));
+			}
+			while (!inFlight.isEmpty()) {
+				EventBatch batch = inFlight.poll().get();
+				if (submitted < numBatches) {
+					inFlight.add(submit(zip, zipFile, entries, numEntries, submitted++));
+				}
+				batch.write(ingest, metrics);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("cannot read " + zip.userZip, e.getCause());
+		} finally {
+			for (Future<EventBatch> f : inFlight) {
+				f.cancel(true);
+			}
+		}
+		return numProcessedEvents;
+	}
+
+	private Future<EventBatch> submit(final ZipContext zip, final ZipFile zipFile, final List<ZipEntry> entries,
+			final int numEntries, final int seq) {
+		return pool.submit(new Callable<EventBatch>() {
+			@Override
+			public EventBatch call() throws IOException {
+				EventBatch batch = new EventBatch(zip, seq);
+				int end = Math.min(numEntries, (seq + 1) * EventBatch.SIZE);
+				long start = System.nanoTime();
+				long jsonBytes = 0;
+				for (int i = seq * EventBatch.SIZE; i < end; i++) {
+					String json = read(zipFile, entries.get(i));
+					jsonBytes += json.length();
+					batch.add(json);
+				}
+				batch.unzipNanos = System.nanoTime() - start;
+				batch.jsonBytes = jsonBytes;
+				batch.decode(ingest, metrics);
+				return batch;
+			}
+		});
+	}
+
+	/*
+	 * the entries in the order of the central directory, which is the order in
+	 * which the zip is read sequentially
+	 */
+	private static List<ZipEntry> listEntries(ZipFile zipFile) {
+		List<ZipEntry> entries = new ArrayList<ZipEntry>(zipFile.size());
+		Enumeration<? extends ZipEntry> all = zipFile.entries();
+		while (all.hasMoreElements()) {
+			ZipEntry e = all.nextElement();
+			if (!e.isDirectory()) {
+				entries.add(e);
+			}
+		}
+		return entries;
+	}
+
+	private static String read(ZipFile zipFile, ZipEntry entry) throws IOException {
+		long size = entry.getSize();
+		int initialSize = size > 0 && size < Integer.MAX_VALUE ? (int) size : 4096;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(initialSize);
+		byte[] buf = new byte[8192];
+		try (InputStream in = zipFile.getInputStream(entry)) {
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				bytes.write(buf, 0, n);
+			}
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the features of the SSTs that were seen last, by the structural
+ * hash of the SST. The memory is capped: when the features in the cache take
+ * more than the given bytes, those that were not used for the longest time
+ * are dropped. The keys are partitioned by their lowest bits, so threads only
+ * wait for each other if they look up keys of the same partition; each
+ * partition has an equal share of the memory.
+ */
+public class SstFeatureCache {
+
+	private static final int PARTITION_BITS = 4;
+
+	/*
+	 * a map in access order, so the first entry is the least recently used
+	 */
+	private static class Partition {
+		final LinkedHashMap<Long, SstFeatures> entries = new LinkedHashMap<Long, SstFeatures>(64, 0.75f, true);
+		long bytes;
+	}
+
+	private final Partition[] partitions = new Partition[1 << PARTITION_BITS];
+	private final long maxBytesPerPartition;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public SstFeatureCache(long maxBytes) {
+		this.maxBytesPerPartition = Math.max(1, maxBytes / partitions.length);
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i] = new Partition();
+		}
+	}
+
+	/**
+	 * the features of the SST, null if they are not cached
+	 */
+	public SstFeatures get(long key) {
+		Partition p = partitions[(int) key & (partitions.length - 1)];
+		SstFeatures features;
+		synchronized (p) {
+			features = p.entries.get(key);
+		}
+		if (features == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return features;
+	}
+
+	public void put(long key, SstFeatures features) {
+		Partition p = partitions[(int) key & (partitions.length - 1)];
+		synchronized (p) {
+			SstFeatures old = p.entries.put(key, features);
+			p.bytes += features.estimatedBytes() - (old == null ? 0 : old.estimatedBytes());
+			while (p.bytes > maxBytesPerPartition && p.entries.size() > 1) {
+				Map.Entry<Long, SstFeatures> eldest = p.entries.entrySet().iterator().next();
+				p.bytes -= eldest.getValue().estimatedBytes();
+				p.entries.remove(eldest.getKey());
+				evictions.increment();
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public String getSummary() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		int size = 0;
+		long bytes = 0;
+		for (Partition p : partitions) {
+			synchronized (p) {
+				size += p.entries.size();
+				bytes += p.bytes;
+			}
+		}
+		return String.format("SST cache: %d of %d lookups hit (%.1f%%), %d SSTs (%d KB) cached, %d evicted", h,
+				total, total == 0 ? 0.0 : 100.0 * h / total, size, bytes / 1024, evictions.sum());
+	}
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import cc.kave.commons.model.events.completionevents.CompletionEvent;
+import cc.kave.commons.model.ssts.ISST;
+
+/**
+ * Writes the features of the SST of every CompletionEvent (see
+ * {@link SstFeatures}), one row per event. The SSTs are walked on a pool of
+ * threads, so the zips are not read slower. Many completions happen in the
+ * same snapshot of their enclosing type, so the features are cached by a
+ * structural hash of the SST: the hash of the SST in the Json of the event,
+ * which is the same for equal trees. When the queue of the pool is full, the
+ * thread that reads the zip walks the SST itself.
+ * 
+ * The rows of a zip are all written before the zip is finished, so in
+ * incremental runs they are on disk when the zip is recorded.
+ */
+public class SstFeatureExtractor implements EventHandler {
+
+	public static final String HEADER = "file,TriggeredAt,sst," + SstFeatures.HEADER + "\n";
+
+	private static final String SST_KEY = "\"SST\":";
+
+	/**
+	 * the rows of a zip that are not written yet
+	 */
+	static final class Pending {
+		private int count;
+
+		synchronized void add() {
+			count++;
+		}
+
+		synchronized void done() {
+			if (--count == 0) {
+				notifyAll();
+			}
+		}
+
+		synchronized void await() throws InterruptedException {
+			while (count > 0) {
+				wait();
+			}
+		}
+	}
+
+	private final CsvSink output;
+	private final SstFeatureCache cache;
+	private final ThreadPoolExecutor pool;
+	private final LongAdder extracted = new LongAdder();
+	private final LongAdder withoutSst = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	/**
+	 * @param cacheBytes
+	 *            memory for the cached features
+	 */
+	public SstFeatureExtractor(CsvSink output, int threads, long cacheBytes) {
+		this.output = output;
+		this.cache = new SstFeatureCache(cacheBytes);
+		this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * 64), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "sst-features");
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	@Override
+	public boolean needsEvent(EventType type) {
+		return type == EventType.COMPLETION;
+	}
+
+	@Override
+	public void handle(EventRecord r, ZipContext zip) {
+		CompletionEvent ce = (CompletionEvent) r.event;
+		final ISST sst = ce.context == null ? null : ce.context.getSST();
+		if (sst == null) {
+			withoutSst.increment();
+			return;
+		}
+		final String json = r.json;
+		// an event without a time gets an empty field
+		final String prefix = CsvSink.field(zip.path) + "," + (r.TriggeredAt == null ? "" : r.TriggeredAt) + ",";
+		Pending pending = zip.sstFeatures;
+		if (pending == null) {
+			pending = zip.sstFeatures = new Pending();
+		}
+		final Pending ofZip = pending;
+		final CsvSink out = zip.sink(output);
+		ofZip.add();
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(out, prefix, sst, json);
+				} catch (RuntimeException e) {
+					failed.increment();
+					System.err.printf("cannot extract the SST features of an event in %s: %s\n", prefix, e);
+				} finally {
+					ofZip.done();
+				}
+			}
+		});
+	}
+
+	private void write(CsvSink out, String prefix, ISST sst, String json) {
+		long key = structuralHash(sst, json);
+		SstFeatures features = cache.get(key);
+		if (features == null) {
+			// another thread may walk the same SST at the same time, which is rare
+			features = SstFeatures.extract(sst);
+			cache.put(key, features);
+			extracted.increment();
+		}
+		StringBuilder sb = new StringBuilder(256).append(prefix).append(Long.toHexString(key)).append(',');
+		features.appendTo(sb);
+		out.write(sb.append('\n').toString());
+	}
+
+	/**
+	 * The hash of the "SST" object in the Json of the event, or of the SST
+	 * itself (whose hashCode covers the whole tree) if there is no Json.
+	 */
+	static long structuralHash(ISST sst, String json) {
+		int start = json == null ? -1 : json.indexOf(SST_KEY);
+		if (start >= 0) {
+			int end = endOfValue(json, start + SST_KEY.length());
+			if (end > 0) {
+				return Hashing.hash64(json, start, end);
+			}
+		}
+		return Hashing.mix(sst.hashCode());
+	}
+
+	/*
+	 * the end of the Json object that starts at the position (after blanks), -1
+	 * if there is no complete object
+	 */
+	private static int endOfValue(String json, int from) {
+		while (from < json.length() && Character.isWhitespace(json.charAt(from))) {
+			from++;
+		}
+		if (from == json.length() || json.charAt(from) != '{') {
+			return -1;
+		}
+		int depth = 0;
+		boolean inString = false;
+		for (int i = from; i < json.length(); i++) {
+			char c = json.charAt(i);
+			if (inString) {
+				if (c == '\\') {
+					i++;
+				} else if (c == '"') {
+					inString = false;
+				}
+			} else if (c == '"') {
+				inString = true;
+			} else if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				if (--depth == 0) {
+					return i + 1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Waits until the rows of the zip are written.
+	 */
+	public void finishZip(ZipContext zip) {
+		Pending pending = zip.sstFeatures;
+		zip.sstFeatures = null;
+		if (pending == null) {
+			return;
+		}
+		try {
+			pending.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public String getSummary() {
+		return String.format("SST features: %d SSTs walked, %d events without SST, %d failed; %s", extracted.sum(),
+				withoutSst.sum(), failed.sum(), cache.getSummary());
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import cc.kave.commons.model.naming.codeelements.IMethodName;
+import cc.kave.commons.model.naming.types.ITypeName;
+import cc.kave.commons.model.ssts.ISST;
+import cc.kave.commons.model.ssts.declarations.IMethodDeclaration;
+import cc.kave.commons.model.ssts.expressions.assignable.IInvocationExpression;
+import cc.kave.commons.model.ssts.impl.visitor.AbstractTraversingNodeVisitor;
+
+/**
+ * The type, method and invocation features of the SST of a completion
+ * context. Immutable, so one instance can be shared by all events with the
+ * same SST.
+ */
+public class SstFeatures {
+
+	public static final String HEADER = "enclosingType,methods,entryPoints,fields,invocations,invokedMethods,"
+			+ "invokedTypes";
+
+	public final String enclosingType;
+	public final int methods;
+	public final int entryPoints;
+	public final int fields;
+	public final int invocations;
+	public final int invokedMethods;
+
+	/**
+	 * the declaring types of the invoked methods, sorted and separated by ';'
+	 */
+	public final String invokedTypes;
+
+	private SstFeatures(String enclosingType, int methods, int entryPoints, int fields, int invocations,
+			int invokedMethods, String invokedTypes) {
+		this.enclosingType = enclosingType;
+		this.methods = methods;
+		this.entryPoints = entryPoints;
+		this.fields = fields;
+		this.invocations = invocations;
+		this.invokedMethods = invokedMethods;
+		this.invokedTypes = invokedTypes;
+	}
+
+	/*
+	 * what the visitor collects while it walks the tree
+	 */
+	private static class Walk {
+		int methods;
+		int entryPoints;
+		int invocations;
+		final Set<String> invokedMethods = new TreeSet<String>();
+		final Set<String> invokedTypes = new TreeSet<String>();
+	}
+
+	/*
+	 * has no state of its own, so one instance is shared by all threads
+	 */
+	private static class FeatureVisitor extends AbstractTraversingNodeVisitor<Walk, Void> {
+		@Override
+		public Void visit(IMethodDeclaration decl, Walk walk) {
+			walk.methods++;
+			if (decl.isEntryPoint()) {
+				walk.entryPoints++;
+			}
+			return super.visit(decl, walk);
+		}
+
+		@Override
+		public Void visit(IInvocationExpression expr, Walk walk) {
+			walk.invocations++;
+			IMethodName method = expr.getMethodName();
+			if (method != null) {
+				walk.invokedMethods.add(method.getIdentifier());
+				ITypeName type = method.getDeclaringType();
+				if (type != null) {
+					walk.invokedTypes.add(type.getFullName());
+				}
+			}
+			return super.visit(expr, walk);
+		}
+	}
+
+	private static final FeatureVisitor VISITOR = new FeatureVisitor();
+
+	/**
+	 * Walks the whole tree, which is expensive for large types.
+	 */
+	public static SstFeatures extract(ISST sst) {
+		Walk walk = new Walk();
+		sst.accept(VISITOR, walk);
+		StringBuilder types = new StringBuilder();
+		for (String type : walk.invokedTypes) {
+			if (types.length() > 0) {
+				types.append(';');
+			}
+			types.append(type);
+		}
+		ITypeName enclosing = sst.getEnclosingType();
+		return new SstFeatures(enclosing == null ? null : enclosing.getFullName(), walk.methods, walk.entryPoints,
+				sst.getFields() == null ? 0 : sst.getFields().size(), walk.invocations, walk.invokedMethods.size(),
+				types.toString());
+	}
+
+	/**
+	 * about the memory the features take
+	 */
+	long estimatedBytes() {
+		return 64 + 2L * ((enclosingType == null ? 0 : enclosingType.length()) + invokedTypes.length());
+	}
+
+	/**
+	 * Appends the features as CSV fields, in the order of {@link #HEADER}.
+	 */
+	void appendTo(StringBuilder sb) {
+		sb.append(CsvSink.field(enclosingType)).append(',').append(methods).append(',').append(entryPoints)
+				.append(',').append(fields).append(',').append(invocations).append(',').append(invokedMethods)
+				.append(',').append(CsvSink.field(invokedTypes));
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one stage of the {@link IngestPipeline}: how many items it
+ * passed on, how long it waited for input (starved) and how long it was
+ * blocked because the next stage was full (backpressure), plus the current and
+ * the highest depth of its output queue.
+ */
+public class StageStats {
+
+	public final String name;
+	final LongAdder items = new LongAdder();
+	final LongAdder waitForInputNanos = new LongAdder();
+	final LongAdder blockedOnOutputNanos = new LongAdder();
+	final AtomicInteger maxQueueDepth = new AtomicInteger();
+	volatile int queueDepth;
+
+	public StageStats(String name) {
+		this.name = name;
+	}
+
+	void queueDepth(int depth) {
+		queueDepth = depth;
+		int max = maxQueueDepth.get();
+		while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+			max = maxQueueDepth.get();
+		}
+	}
+
+	public long getItems() {
+		return items.sum();
+	}
+
+	public long getWaitForInputMillis() {
+		return waitForInputNanos.sum() / 1000000;
+	}
+
+	public long getBlockedOnOutputMillis() {
+		return blockedOnOutputNanos.sum() / 1000000;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%-8s items: %10d, waiting for input: %8d ms, blocked on output: %8d ms, queue: %4d (max %d)",
+				name, getItems(), getWaitForInputMillis(), getBlockedOnOutputMillis(), getQueueDepth(),
+				getMaxQueueDepth());
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Event counts per type and summed durations of the timed types (activity,
+ * test runs, builds and edits) per time bucket, for one user. The values are
+ * kept in flat primitive arrays with one row per bucket, so a bucket takes
+ * about 120 bytes regardless of the number of events in it. Buckets are
+ * numbered from the epoch in the local time of the developer.
+ * 
+ * Rollups of the same bucket width are merged by adding their rows.
+ */
+public class TimeRollup {
+
+	/**
+	 * the types whose durations are summed, in the order of the columns
+	 */
+	static final EventType[] TIMED = { EventType.ACTIVITY, EventType.BUILD, EventType.TEST_RUN, EventType.EDIT };
+
+	private static final int[] TIMED_INDEX = new int[EventType.COUNT];
+	static {
+		Arrays.fill(TIMED_INDEX, -1);
+		for (int i = 0; i < TIMED.length; i++) {
+			TIMED_INDEX[TIMED[i].ordinal()] = i;
+		}
+	}
+
+	private static final int NO_ROW = -1;
+
+	private int rows;
+	private int[] buckets = new int[16];
+	private int[] counts = new int[16 * EventType.COUNT];
+	private long[] millis = new long[16 * TIMED.length];
+
+	/*
+	 * open addressing from bucket to row, the table is at most half full
+	 */
+	private int[] slots = newSlots(32);
+	private int lastBucket = Integer.MIN_VALUE;
+	private int lastRow = NO_ROW;
+
+	public int getBuckets() {
+		return rows;
+	}
+
+	public void add(int bucket, EventType type, long durationMillis) {
+		int row = row(bucket);
+		counts[row * EventType.COUNT + type.ordinal()]++;
+		int timed = TIMED_INDEX[type.ordinal()];
+		if (timed >= 0) {
+			millis[row * TIMED.length + timed] += durationMillis;
+		}
+	}
+
+	public void merge(TimeRollup other) {
+		for (int r = 0; r < other.rows; r++) {
+			int row = row(other.buckets[r]);
+			for (int t = 0; t < EventType.COUNT; t++) {
+				counts[row * EventType.COUNT + t] += other.counts[r * EventType.COUNT + t];
+			}
+			for (int t = 0; t < TIMED.length; t++) {
+				millis[row * TIMED.length + t] += other.millis[r * TIMED.length + t];
+			}
+		}
+	}
+
+	/**
+	 * the rows ordered by bucket
+	 */
+	int[] sortedRows() {
+		Integer[] order = new Integer[rows];
+		for (int i = 0; i < rows; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(buckets[a], buckets[b]);
+			}
+		});
+		int[] sorted = new int[rows];
+		for (int i = 0; i < rows; i++) {
+			sorted[i] = order[i];
+		}
+		return sorted;
+	}
+
+	int bucketOf(int row) {
+		return buckets[row];
+	}
+
+	int count(int row, EventType type) {
+		return counts[row * EventType.COUNT + type.ordinal()];
+	}
+
+	/**
+	 * @param timed
+	 *            index in {@link #TIMED}
+	 */
+	long millis(int row, int timed) {
+		return millis[row * TIMED.length + timed];
+	}
+
+	private int row(int bucket) {
+		// the events of a zip mostly arrive in time order
+		if (bucket == lastBucket) {
+			return lastRow;
+		}
+		int mask = slots.length - 1;
+		int i = mix(bucket) & mask;
+		while (slots[i] != NO_ROW) {
+			if (buckets[slots[i]] == bucket) {
+				lastBucket = bucket;
+				lastRow = slots[i];
+				return lastRow;
+			}
+			i = (i + 1) & mask;
+		}
+		int row = rows++;
+		if (row == buckets.length) {
+			buckets = Arrays.copyOf(buckets, row * 2);
+			counts = Arrays.copyOf(counts, row * 2 * EventType.COUNT);
+			millis = Arrays.copyOf(millis, row * 2 * TIMED.length);
+		}
+		buckets[row] = bucket;
+		slots[i] = row;
+		if (rows * 2 > slots.length) {
+			rehash();
+		}
+		lastBucket = bucket;
+		lastRow = row;
+		return row;
+	}
+
+	private void rehash() {
+		slots = newSlots(slots.length * 2);
+		int mask = slots.length - 1;
+		for (int row = 0; row < rows; row++) {
+			int i = mix(buckets[row]) & mask;
+			while (slots[i] != NO_ROW) {
+				i = (i + 1) & mask;
+			}
+			slots[i] = row;
+		}
+	}
+
+	private static int[] newSlots(int size) {
+		int[] s = new int[size];
+		Arrays.fill(s, NO_ROW);
+		return s;
+	}
+
+	private static int mix(int bucket) {
+		return (int) Hashing.mix(bucket);
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(rows);
+		for (int r = 0; r < rows; r++) {
+			out.writeInt(buckets[r]);
+			for (int t = 0; t < EventType.COUNT; t++) {
+				out.writeInt(counts[r * EventType.COUNT + t]);
+			}
+			for (int t = 0; t < TIMED.length; t++) {
+				out.writeLong(millis[r * TIMED.length + t]);
+			}
+		}
+	}
+
+	static TimeRollup readFrom(DataInput in) throws IOException {
+		TimeRollup rollup = new TimeRollup();
+		int n = in.readInt();
+		for (int r = 0; r < n; r++) {
+			int row = rollup.row(in.readInt());
+			for (int t = 0; t < EventType.COUNT; t++) {
+				rollup.counts[row * EventType.COUNT + t] += in.readInt();
+			}
+			for (int t = 0; t < TIMED.length; t++) {
+				rollup.millis[row * TIMED.length + t] += in.readLong();
+			}
+		}
+		return rollup;
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers "per user and day (or hour): how many events of each type, and how
+ * much active, build, test and edit time" while the events stream through.
+ * Each zip fills a {@link TimeRollup} from TriggeredAt (in the local time of
+ * the developer) and Duration; when the zip is done, it is merged into the
+ * rollup of its user, which is the zip or its first profile id.
+ * 
+ * The rollups are written as CSV at the end of a run, and also in a binary
+ * form that can be merged with the rollups of other runs (e.g., of shards)
+ * with {@link #main(String[])}. An incremental run that skips zips cannot
+ * write rollups.
+ */
+public class TimeRollups implements EventHandler {
+
+	private static final int VERSION = 1;
+
+	private final int bucketHours;
+	private final boolean byProfile;
+	private final Map<String, TimeRollup> byUser = new TreeMap<String, TimeRollup>();
+	private final LongAdder untimed = new LongAdder();
+
+	/**
+	 * @param bucketHours
+	 *            width of a bucket, 24 for days
+	 * @param byProfile
+	 *            true to roll up by the profile id of a zip instead of the zip
+	 */
+	public TimeRollups(int bucketHours, boolean byProfile) {
+		if (bucketHours < 1) {
+			throw new IllegalArgumentException("invalid bucket width: " + bucketHours);
+		}
+		this.bucketHours = bucketHours;
+		this.byProfile = byProfile;
+	}
+
+	@Override
+	public boolean needsEvent(EventType type) {
+		return false;
+	}
+
+	@Override
+	public void handle(EventRecord r, ZipContext zip) {
+		if (r.TriggeredAt == null) {
+			untimed.increment();
+			return;
+		}
+		TimeRollup rollup = zip.rollup;
+		if (rollup == null) {
+			rollup = zip.rollup = new TimeRollup();
+		}
+		rollup.add(bucket(r.TriggeredAt), r.type, r.Duration == null ? 0 : r.Duration.toMillis());
+	}
+
+	int bucket(ZonedDateTime t) {
+		long local = t.toEpochSecond() + t.getOffset().getTotalSeconds();
+		return (int) Math.floorDiv(local, bucketHours * 3600L);
+	}
+
+	/**
+	 * Adds the rollup of a zip that is done.
+	 */
+	public void finishZip(ZipContext zip) {
+		TimeRollup rollup = zip.rollup;
+		zip.rollup = null;
+		if (rollup == null) {
+			return;
+		}
+		String user = zip.path;
+		if (byProfile && !zip.aggregate.profileIds.isEmpty()) {
+			user = zip.aggregate.profileIds.iterator().next();
+		}
+		add(user, rollup);
+	}
+
+	private synchronized void add(String user, TimeRollup rollup) {
+		TimeRollup all = byUser.get(user);
+		if (all == null) {
+			byUser.put(user, rollup);
+		} else {
+			all.merge(rollup);
+		}
+	}
+
+	public synchronized void merge(TimeRollups other) {
+		if (other.bucketHours != bucketHours) {
+			throw new IllegalArgumentException(
+					"cannot merge buckets of " + bucketHours + " and " + other.bucketHours + " hours");
+		}
+		for (Map.Entry<String, TimeRollup> e : other.byUser.entrySet()) {
+			add(e.getKey(), e.getValue());
+		}
+		untimed.add(other.untimed.sum());
+	}
+
+	/**
+	 * events without a TriggeredAt, they are not in any bucket
+	 */
+	public long getUntimed() {
+		return untimed.sum();
+	}
+
+	/**
+	 * the rollup of a zip (or profile id), null if it has no events
+	 */
+	public synchronized TimeRollup get(String user) {
+		return byUser.get(user);
+	}
+
+	/**
+	 * Writes one row per user and bucket, ordered by user and time.
+	 * 
+	 * @return the number of rows
+	 */
+	public synchronized int write(CsvSink output) {
+		StringBuilder header = new StringBuilder(byProfile ? "profile" : "file").append(",bucket");
+		for (EventType type : EventType.values()) {
+			header.append(',').append(type.typeName);
+		}
+		header.append(",active,build,test,edit\n");
+		output.writeHeader(header.toString());
+		int count = 0;
+		StringBuilder sb = new StringBuilder(512);
+		for (Map.Entry<String, TimeRollup> e : byUser.entrySet()) {
+			TimeRollup rollup = e.getValue();
+			for (int row : rollup.sortedRows()) {
+				sb.setLength(0);
+				sb.append(CsvSink.field(e.getKey())).append(',').append(label(rollup.bucketOf(row)));
+				for (EventType type : EventType.values()) {
+					sb.append(',').append(rollup.count(row, type));
+				}
+				for (int t = 0; t < TimeRollup.TIMED.length; t++) {
+					sb.append(',').append(rollup.millis(row, t) / 1000);
+				}
+				output.write(sb.append('\n').toString());
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * the start of the bucket, e.g., "2016-09-26" for days or
+	 * "2016-09-26T14:00" for hours
+	 */
+	private String label(int bucket) {
+		LocalDateTime start = LocalDateTime.ofEpochSecond(bucket * bucketHours * 3600L, 0, ZoneOffset.UTC);
+		return bucketHours % 24 == 0 ? start.toLocalDate().toString() : start.toString();
+	}
+
+	public synchronized void save(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(VERSION);
+			out.writeInt(EventType.COUNT);
+			out.writeInt(bucketHours);
+			out.writeBoolean(byProfile);
+			out.writeLong(untimed.sum());
+			out.writeInt(byUser.size());
+			for (Map.Entry<String, TimeRollup> e : byUser.entrySet()) {
+				out.writeUTF(e.getKey());
+				e.getValue().writeTo(out);
+			}
+		}
+	}
+
+	public static TimeRollups load(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			int version = in.readInt();
+			int types = in.readInt();
+			if (version != VERSION || types != EventType.COUNT) {
+				throw new IOException("unsupported rollup file: " + file);
+			}
+			TimeRollups rollups = new TimeRollups(in.readInt(), in.readBoolean());
+			rollups.untimed.add(in.readLong());
+			int users = in.readInt();
+			for (int i = 0; i < users; i++) {
+				String user = in.readUTF();
+				rollups.add(user, TimeRollup.readFrom(in));
+			}
+			return rollups;
+		}
+	}
+
+	/**
+	 * Merges the binary rollups in the given files and writes them as CSV.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("usage: TimeRollups <output csv> <rollup file>...");
+			return;
+		}
+		TimeRollups merged = load(new File(args[1]));
+		for (int i = 2; i < args.length; i++) {
+			merged.merge(load(new File(args[i])));
+		}
+		try (CsvSink out = new CsvSink(new File(args[0]), CsvSink.DEFAULT_BUFFER_SIZE,
+				CsvSink.DEFAULT_FLUSH_INTERVAL_MS, false)) {
+			System.out.println(merged.write(out) + " rows");
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Everything a run has counted for a single user zip, so the totals of an
+ * unchanged zip can be restored in later runs without reading it again.
+ */
+public class ZipAggregate {
+
+	public final String zip;
+	public int numProcessedEvents;
+	public long exceptions;
+	/**
+	 * number of events per type, indexed by {@link EventType#ordinal()}
+	 */
+	public final long[] counts = new long[EventType.COUNT];
+	public final Set<String> profileIds = new TreeSet<String>();
+
+	public ZipAggregate(String zip) {
+		this.zip = zip;
+	}
+
+	public void add(ZipAggregate other) {
+		numProcessedEvents += other.numProcessedEvents;
+		exceptions += other.exceptions;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		profileIds.addAll(other.profileIds);
+	}
+
+	/*
+	 * tab separated: events, exceptions, type=count;..., profile;...
+	 */
+	String toFields() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(numProcessedEvents).append('\t').append(exceptions).append('\t');
+		String sep = "";
+		for (EventType type : EventType.values()) {
+			if (counts[type.ordinal()] > 0) {
+				sb.append(sep).append(type.typeName).append('=').append(counts[type.ordinal()]);
+				sep = ";";
+			}
+		}
+		sb.append('\t');
+		sep = "";
+		for (String id : profileIds) {
+			sb.append(sep).append(id);
+			sep = ";";
+		}
+		return sb.toString();
+	}
+
+	static ZipAggregate fromFields(String zip, String[] fields, int offset) {
+		ZipAggregate agg = new ZipAggregate(zip);
+		agg.numProcessedEvents = Integer.parseInt(fields[offset]);
+		agg.exceptions = Long.parseLong(fields[offset + 1]);
+		if (fields.length > offset + 2) {
+			for (String pair : fields[offset + 2].split(";")) {
+				int eq = pair.lastIndexOf('=');
+				if (eq > 0) {
+					EventType type = EventType.forName(pair.substring(0, eq));
+					if (type == null) {
+						// simple class name of an OTHER event, written by older runs
+						type = EventType.OTHER;
+					}
+					agg.counts[type.ordinal()] += Long.parseLong(pair.substring(eq + 1));
+				}
+			}
+		}
+		if (fields.length > offset + 3) {
+			for (String id : fields[offset + 3].split(";")) {
+				if (!id.isEmpty()) {
+					agg.profileIds.add(id);
+				}
+			}
+		}
+		return agg;
+	}
+}
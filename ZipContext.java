@@ -0,0 +1,176 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of the user zip that is currently processed by one worker. Handlers
+ * can use it to access per-zip data without any synchronization.
+ */
+public class ZipContext {
+
+	private static final AtomicLong STAGED = new AtomicLong();
+
+	/**
+	 * the zip relative to the events folder, as returned by IoHelper.findAllZips
+	 */
+	public final String userZip;
+
+	/**
+	 * the zip as it appears in the "file" column of the outputs
+	 */
+	public final String path;
+
+	/**
+	 * the path as UTF-8, followed by the column separator
+	 */
+	public final byte[] pathPrefix;
+
+	public final ZipAggregate aggregate;
+
+	final EventRecord record = new EventRecord();
+
+	/**
+	 * rows for events.csv, only set while the zip is read
+	 */
+	RowEncoder eventRows;
+
+	/**
+	 * rows per event type for the partitioned outputs (see
+	 * {@link EventPartitions}), only set while the zip is read
+	 */
+	RowEncoder[] partitionRows;
+
+	/**
+	 * rows for the columnar output, only set while the zip is read
+	 */
+	ColumnarEventWriter.ZipRows columnarRows;
+
+	/**
+	 * the encoded completions of this zip, see {@link CompletionExtractor}
+	 */
+	CompletionExtractor.ZipBlock completions;
+
+	/**
+	 * the SST features of this zip that are not written yet, see
+	 * {@link SstFeatureExtractor}
+	 */
+	SstFeatureExtractor.Pending sstFeatures;
+
+	/**
+	 * the parts of the sessions in this zip, see {@link Sessionizer}
+	 */
+	Map<String, SessionAggregate> sessions;
+
+	/**
+	 * true once the first event of the zip was added to the {@link EventStore}
+	 */
+	boolean inStore;
+
+	/**
+	 * the counts per time bucket of this zip, see {@link TimeRollups}
+	 */
+	TimeRollup rollup;
+
+	/**
+	 * the sketches of this zip, see {@link SketchAggregator}
+	 */
+	SketchAggregator.Sketches sketches;
+
+	/**
+	 * the rows of this zip per output, kept until the zip is committed (see
+	 * {@link #sink(CsvSink)}), null if they go to the outputs directly
+	 */
+	Map<CsvSink, CsvSink> staged;
+	private File stagingDir;
+
+	/*
+	 * progress for the metrics, only written by the thread that reads the zip
+	 */
+	final long startNanos = System.nanoTime();
+	volatile long eventsRead;
+	volatile long jsonBytes;
+	IngestFlightEvents.ZipIngested flightEvent;
+
+	/**
+	 * Writes the remaining rows of the zip and returns the encoders.
+	 */
+	void releaseRows() {
+		if (eventRows != null) {
+			eventRows.release();
+			eventRows = null;
+		}
+		if (partitionRows != null) {
+			for (RowEncoder rows : partitionRows) {
+				if (rows != null) {
+					rows.release();
+				}
+			}
+			partitionRows = null;
+		}
+	}
+
+	/**
+	 * Keeps the rows of this zip in staging sinks in the folder until they are
+	 * appended to the outputs.
+	 */
+	void stageIn(File dir) {
+		stagingDir = dir;
+		staged = new IdentityHashMap<CsvSink, CsvSink>();
+	}
+
+	/**
+	 * The sink for the rows of this zip that belong to the output: the output
+	 * itself, or the staging sink of this zip for it.
+	 */
+	CsvSink sink(CsvSink output) {
+		if (staged == null) {
+			return output;
+		}
+		CsvSink sink = staged.get(output);
+		if (sink == null) {
+			sink = CsvSink.staging(new File(stagingDir, STAGED.incrementAndGet() + ".csv"));
+			staged.put(output, sink);
+		}
+		return sink;
+	}
+
+	/**
+	 * Drops the rows that were not appended to the outputs, e.g., because
+	 * reading the zip failed.
+	 */
+	void discardStaged() {
+		if (staged == null) {
+			return;
+		}
+		for (CsvSink sink : staged.values()) {
+			sink.discard();
+		}
+		staged.clear();
+	}
+
+	public ZipContext(String userZip) {
+		this.userZip = userZip;
+		this.path = GettingStarted.zipPath(userZip);
+		this.pathPrefix = (path + ",").getBytes(StandardCharsets.UTF_8);
+		this.aggregate = new ZipAggregate(userZip);
+	}
+}
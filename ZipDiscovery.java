@@ -0,0 +1,255 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the zips below the events folder like IoHelper.findAllZips, but lists
+ * the folders in parallel and reports each zip as soon as it is found.
+ * 
+ * The listing of each folder can be kept in a cache file. A folder whose
+ * modification time is unchanged since it was cached has the same entries,
+ * so it is not listed again, only its subfolders are checked. A restart on an
+ * unchanged tree therefore reads one modification time per folder. Folders
+ * that changed less than two seconds before they were listed are not taken
+ * from the cache next time, as a change within the resolution of the
+ * modification time would go unnoticed.
+ */
+public class ZipDiscovery {
+
+	/**
+	 * Is called for every zip found, from several threads at once.
+	 */
+	public interface Listener {
+		void found(String userZip);
+	}
+
+	private static final long RACY_MILLIS = 2000;
+
+	/*
+	 * the entries of a folder at the time it was modified last
+	 */
+	private static class Listing {
+		final long lastModified;
+		final List<String> dirs;
+		final List<String> zips;
+
+		Listing(long lastModified, List<String> dirs, List<String> zips) {
+			this.lastModified = lastModified;
+			this.dirs = dirs;
+			this.zips = zips;
+		}
+	}
+
+	private final Path eventsDir;
+	private final File cacheFile;
+	private final int threads;
+	private final Map<String, Listing> cached = new ConcurrentHashMap<String, Listing>();
+	private final Map<String, Listing> current = new ConcurrentHashMap<String, Listing>();
+	private final long startMillis = System.currentTimeMillis();
+	private final AtomicInteger listed = new AtomicInteger();
+
+	/**
+	 * @param cacheFile
+	 *            the listing cache, null for none
+	 */
+	public ZipDiscovery(String eventsDir, File cacheFile, int threads) {
+		this.eventsDir = new File(eventsDir).toPath();
+		this.cacheFile = cacheFile;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * all zips, sorted
+	 */
+	public Set<String> findAll() throws IOException {
+		final Set<String> zips = Collections.synchronizedSet(new TreeSet<String>());
+		find(new Listener() {
+			@Override
+			public void found(String userZip) {
+				zips.add(userZip);
+			}
+		});
+		return zips;
+	}
+
+	/**
+	 * Calls the listener for each zip and returns when all folders are done.
+	 * The cache is updated afterwards.
+	 */
+	public void find(Listener listener) throws IOException {
+		loadCache();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new Walk("", listener));
+		} catch (UncheckedListingException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+		saveCache();
+	}
+
+	/**
+	 * folders that had to be listed (not taken from the cache) in the last call
+	 */
+	public int getListedFolders() {
+		return listed.get();
+	}
+
+	private class Walk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final String dir;
+		private final Listener listener;
+
+		Walk(String dir, Listener listener) {
+			this.dir = dir;
+			this.listener = listener;
+		}
+
+		@Override
+		protected void compute() {
+			Listing listing;
+			try {
+				listing = listing(dir);
+			} catch (IOException e) {
+				throw new UncheckedListingException(e);
+			}
+			for (String zip : listing.zips) {
+				listener.found(child(zip));
+			}
+			List<Walk> subfolders = new ArrayList<Walk>(listing.dirs.size());
+			for (String sub : listing.dirs) {
+				subfolders.add(new Walk(child(sub), listener));
+			}
+			invokeAll(subfolders);
+		}
+
+		private String child(String name) {
+			return dir.isEmpty() ? name : dir + "/" + name;
+		}
+	}
+
+	private static class UncheckedListingException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		UncheckedListingException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+
+	private Listing listing(String dir) throws IOException {
+		Path path = dir.isEmpty() ? eventsDir : eventsDir.resolve(dir);
+		long lastModified = Files.getLastModifiedTime(path).toMillis();
+		Listing listing = cached.get(dir);
+		if (listing == null || listing.lastModified != lastModified) {
+			List<String> dirs = new ArrayList<String>();
+			List<String> zips = new ArrayList<String>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				for (Path child : stream) {
+					String name = child.getFileName().toString();
+					if (Files.isDirectory(child)) {
+						dirs.add(name);
+					} else if (name.endsWith(".zip")) {
+						zips.add(name);
+					}
+				}
+			}
+			Collections.sort(dirs);
+			Collections.sort(zips);
+			// a change in the same tick as the listing could not be detected later
+			long stamp = startMillis - lastModified < RACY_MILLIS ? -1 : lastModified;
+			listing = new Listing(stamp, dirs, zips);
+			listed.incrementAndGet();
+		}
+		current.put(dir, listing);
+		return listing;
+	}
+
+	/*
+	 * one line per folder: path, modification time, subfolders and zips (both
+	 * separated by '/'), tab separated
+	 */
+	private void loadCache() throws IOException {
+		cached.clear();
+		current.clear();
+		listed.set(0);
+		if (cacheFile == null || !cacheFile.exists()) {
+			return;
+		}
+		for (String line : Files.readAllLines(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 4) {
+				continue;
+			}
+			cached.put(fields[0], new Listing(Long.parseLong(fields[1]), split(fields[2]), split(fields[3])));
+		}
+	}
+
+	private static List<String> split(String names) {
+		return names.isEmpty() ? Collections.<String> emptyList() : Arrays.asList(names.split("/"));
+	}
+
+	private void saveCache() throws IOException {
+		if (cacheFile == null) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Listing> e : current.entrySet()) {
+			Listing l = e.getValue();
+			sb.append(e.getKey()).append('\t').append(l.lastModified).append('\t');
+			join(sb, l.dirs).append('\t');
+			join(sb, l.zips).append('\n');
+		}
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static StringBuilder join(StringBuilder sb, List<String> names) {
+		String sep = "";
+		for (String name : names) {
+			sb.append(sep).append(name);
+			sep = "/";
+		}
+		return sb;
+	}
+}
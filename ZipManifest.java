@@ -0,0 +1,346 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which user zips have been processed completely, identified by
+ * path, size, modification time and a SHA-256 of the content, together with
+ * the {@link ZipAggregate} of each zip.
+ * 
+ * The manifest is an append-only text file with one tab separated line per
+ * processed zip; when a zip appears several times, the last line wins. A line
+ * is only appended after the zip has been processed and its rows were
+ * written, so a crashed run simply misses the lines of the unfinished zips.
+ * 
+ * The rows of a zip are appended to each CSV output in one piece when the zip
+ * is committed, and the line of the zip has the offset and the length of
+ * that block per output. So the rows that a crashed run wrote after the last
+ * recorded zip can be cut off (see {@link #getCommittedEnd(String)}), and the
+ * rows of an earlier version of a changed zip can be removed: the removal is
+ * noted with a line "#removing" and finished by rewriting the manifest
+ * without the zip and with the blocks after the removed ones moved.
+ * 
+ * As a zip is skipped for all outputs at once, the manifest also remembers the
+ * outputs that its zips were written to (a line "#outputs", the last wins).
+ */
+public class ZipManifest {
+
+	private static final String OUTPUTS = "#outputs";
+	private static final String REMOVING = "#removing";
+
+	public static class Entry {
+		public String path;
+		public long size;
+		public long lastModified;
+		public String hash;
+		public ZipAggregate aggregate;
+
+		/**
+		 * offset and length of the rows of the zip per output (relative to the
+		 * output folder), null if the zip was recorded by an older version
+		 */
+		public Map<String, long[]> blocks;
+	}
+
+	private final File file;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private String outputs;
+	private String removing;
+
+	/*
+	 * the length of the complete lines, a line after them was torn by a crash
+	 * and is cut off before the next line is appended
+	 */
+	private long validLength;
+
+	private ZipManifest(File file) {
+		this.file = file;
+	}
+
+	public static ZipManifest load(File file) throws IOException {
+		ZipManifest manifest = new ZipManifest(file);
+		if (!file.exists()) {
+			return manifest;
+		}
+		byte[] content = Files.readAllBytes(file.toPath());
+		int start = 0;
+		for (int end; (end = indexOf(content, '\n', start)) >= 0; start = end + 1) {
+			String line = new String(content, start, end - start, StandardCharsets.UTF_8);
+			String[] fields = line.split("\t", -1);
+			if (fields[0].equals(OUTPUTS) && fields.length == 2) {
+				manifest.outputs = fields[1];
+				continue;
+			}
+			if (fields[0].equals(REMOVING) && fields.length == 2) {
+				manifest.removing = fields[1];
+				continue;
+			}
+			if (fields.length < 6) {
+				continue; // not the line of a zip
+			}
+			Entry e = new Entry();
+			e.path = fields[0];
+			e.size = Long.parseLong(fields[1]);
+			e.lastModified = Long.parseLong(fields[2]);
+			e.hash = fields[3];
+			e.aggregate = ZipAggregate.fromFields(e.path, fields, 4);
+			if (fields.length > 8) {
+				e.blocks = parseBlocks(fields[8]);
+			}
+			manifest.entries.put(e.path, e);
+		}
+		manifest.validLength = start;
+		return manifest;
+	}
+
+	private static int indexOf(byte[] content, char c, int from) {
+		for (int i = from; i < content.length; i++) {
+			if (content[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * output:offset:length, separated by semicolons
+	 */
+	private static Map<String, long[]> parseBlocks(String field) {
+		Map<String, long[]> blocks = new HashMap<String, long[]>();
+		for (String block : field.split(";")) {
+			int lengthAt = block.lastIndexOf(':');
+			int offsetAt = block.lastIndexOf(':', lengthAt - 1);
+			if (offsetAt > 0) {
+				blocks.put(block.substring(0, offsetAt), new long[] {
+						Long.parseLong(block.substring(offsetAt + 1, lengthAt)),
+						Long.parseLong(block.substring(lengthAt + 1)) });
+			}
+		}
+		return blocks;
+	}
+
+	public Collection<Entry> getEntries() {
+		return entries.values();
+	}
+
+	/**
+	 * @return the outputs the zips were written to, null if not known
+	 */
+	public String getOutputs() {
+		return outputs;
+	}
+
+	public synchronized void setOutputs(String outputs) throws IOException {
+		if (outputs.equals(this.outputs)) {
+			return;
+		}
+		append(OUTPUTS + '\t' + outputs + '\n');
+		this.outputs = outputs;
+	}
+
+	/**
+	 * @return the aggregate of the version of the zip that was recorded last,
+	 *         null if it is not in the manifest
+	 */
+	public ZipAggregate getAggregate(String path) {
+		Entry e = entries.get(path);
+		return e == null ? null : e.aggregate;
+	}
+
+	public Entry getEntry(String path) {
+		return entries.get(path);
+	}
+
+	/**
+	 * @return the end of the last block of the output, -1 if no zip in the
+	 *         manifest has a block in it
+	 */
+	public synchronized long getCommittedEnd(String output) {
+		long end = -1;
+		for (Entry e : entries.values()) {
+			long[] block = e.blocks == null ? null : e.blocks.get(output);
+			if (block != null) {
+				end = Math.max(end, block[0] + block[1]);
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * @return the zip whose rows were being removed when the last run stopped,
+	 *         null if none
+	 */
+	public String getUnfinishedRemoval() {
+		return removing;
+	}
+
+	/**
+	 * Notes that the rows of the zip are about to be removed from the outputs.
+	 */
+	public synchronized void startRemoving(String path) throws IOException {
+		if (!path.equals(removing)) {
+			append(REMOVING + '\t' + path + '\n');
+			removing = path;
+		}
+	}
+
+	/**
+	 * Forgets the zip once its rows were removed from the outputs: the blocks
+	 * after its blocks move to the front, and the manifest is rewritten
+	 * without the zip (and without the note of the removal).
+	 */
+	public synchronized void removed(String path) throws IOException {
+		Entry removed = entries.remove(path);
+		if (removed != null && removed.blocks != null) {
+			for (Map.Entry<String, long[]> cut : removed.blocks.entrySet()) {
+				long[] gap = cut.getValue();
+				for (Entry e : entries.values()) {
+					long[] block = e.blocks == null ? null : e.blocks.get(cut.getKey());
+					if (block != null && block[0] >= gap[0] + gap[1]) {
+						block[0] -= gap[1];
+					}
+				}
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		if (outputs != null) {
+			sb.append(OUTPUTS).append('\t').append(outputs).append('\n');
+		}
+		for (Entry e : entries.values()) {
+			appendLine(sb, e);
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		validLength = file.length();
+		removing = null;
+	}
+
+	/**
+	 * @return the aggregate of the last run if the zip has not changed since,
+	 *         null if it is new or has changed
+	 */
+	public ZipAggregate findUnchanged(String path, File zip) throws IOException {
+		Entry e = entries.get(path);
+		if (e == null || e.size != zip.length()) {
+			return null;
+		}
+		if (e.lastModified == zip.lastModified()) {
+			return e.aggregate;
+		}
+		// touched, but maybe not changed
+		if (e.hash.equals(hash(zip))) {
+			record(path, zip, e.aggregate, e.hash, e.blocks);
+			return e.aggregate;
+		}
+		return null;
+	}
+
+	/**
+	 * @param blocks
+	 *            offset and length of the rows of the zip per output
+	 */
+	public void record(String path, File zip, ZipAggregate aggregate, Map<String, long[]> blocks)
+			throws IOException {
+		record(path, zip, aggregate, hash(zip), blocks);
+	}
+
+	private synchronized void record(String path, File zip, ZipAggregate aggregate, String hash,
+			Map<String, long[]> blocks) throws IOException {
+		Entry e = new Entry();
+		e.path = path;
+		e.size = zip.length();
+		e.lastModified = zip.lastModified();
+		e.hash = hash;
+		e.aggregate = aggregate;
+		e.blocks = blocks;
+
+		StringBuilder sb = new StringBuilder();
+		appendLine(sb, e);
+		append(sb.toString());
+		entries.put(path, e);
+	}
+
+	private static void appendLine(StringBuilder sb, Entry e) {
+		sb.append(e.path).append('\t').append(e.size).append('\t').append(e.lastModified).append('\t')
+				.append(e.hash).append('\t').append(e.aggregate.toFields());
+		if (e.blocks != null) {
+			sb.append('\t');
+			String sep = "";
+			for (Map.Entry<String, long[]> block : e.blocks.entrySet()) {
+				sb.append(sep).append(block.getKey()).append(':').append(block.getValue()[0]).append(':')
+						.append(block.getValue()[1]);
+				sep = ";";
+			}
+		}
+		sb.append('\n');
+	}
+
+	private void append(String lines) throws IOException {
+		if (file.length() > validLength) {
+			try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				ch.truncate(validLength);
+			}
+		}
+		byte[] bytes = lines.getBytes(StandardCharsets.UTF_8);
+		try (FileOutputStream out = new FileOutputStream(file, true /* append = true */)) {
+			out.write(bytes);
+			out.getFD().sync();
+		}
+		validLength += bytes.length;
+	}
+
+	static String hash(File f) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = new FileInputStream(f)) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The work of a run, planned from the central directories of the user zips
+ * before any event is read. The cost of a zip is estimated from its number of
+ * entries and their uncompressed size, which is what reading and parsing
+ * mostly depend on.
+ * 
+ * Handing out the most expensive zips first keeps a few large zips from being
+ * started last and running alone at the end of a parallel run.
+ */
+public class ZipPlan {
+
+	/*
+	 * fixed costs per entry (opening, sniffing, writing a row), in bytes of Json
+	 */
+	private static final long COST_PER_ENTRY = 512;
+
+	public static class Item {
+		public final String userZip;
+		public final int entries;
+		public final long uncompressedBytes;
+		public final long cost;
+
+		Item(String userZip, int entries, long uncompressedBytes) {
+			this.userZip = userZip;
+			this.entries = entries;
+			this.uncompressedBytes = uncompressedBytes;
+			this.cost = uncompressedBytes + entries * COST_PER_ENTRY;
+		}
+	}
+
+	private final List<Item> items = new ArrayList<Item>();
+	private final Map<String, Item> byZip = new HashMap<String, Item>();
+	private long totalCost;
+
+	/**
+	 * Reads the central directory of each zip. A zip that cannot be read is
+	 * estimated from its file size, it fails later when it is processed.
+	 */
+	public static ZipPlan create(String eventsDir, Collection<String> userZips) {
+		ZipPlan plan = new ZipPlan();
+		for (String userZip : userZips) {
+			File file = new File(eventsDir, userZip);
+			int entries = 0;
+			long bytes = 0;
+			try (ZipFile zipFile = new ZipFile(file)) {
+				Enumeration<? extends ZipEntry> all = zipFile.entries();
+				while (all.hasMoreElements()) {
+					ZipEntry e = all.nextElement();
+					if (e.isDirectory()) {
+						continue;
+					}
+					entries++;
+					// the size is unknown (-1) if the zip was streamed without it
+					bytes += e.getSize() >= 0 ? e.getSize() : Math.max(0, e.getCompressedSize());
+				}
+			} catch (IOException e) {
+				bytes = file.length();
+			}
+			plan.add(new Item(userZip, entries, bytes));
+		}
+		return plan;
+	}
+
+	private void add(Item item) {
+		items.add(item);
+		byZip.put(item.userZip, item);
+		totalCost += item.cost;
+	}
+
+	public int size() {
+		return items.size();
+	}
+
+	public long getTotalCost() {
+		return totalCost;
+	}
+
+	public Item get(String userZip) {
+		return byZip.get(userZip);
+	}
+
+	/**
+	 * the zips in the order in which they were found
+	 */
+	public List<String> inOrder() {
+		List<String> zips = new ArrayList<String>(items.size());
+		for (Item item : items) {
+			zips.add(item.userZip);
+		}
+		return zips;
+	}
+
+	/**
+	 * the zips by decreasing cost
+	 */
+	public List<String> largestFirst() {
+		List<Item> sorted = new ArrayList<Item>(items);
+		Collections.sort(sorted, new Comparator<Item>() {
+			@Override
+			public int compare(Item a, Item b) {
+				return Long.compare(b.cost, a.cost);
+			}
+		});
+		List<String> zips = new ArrayList<String>(sorted.size());
+		for (Item item : sorted) {
+			zips.add(item.userZip);
+		}
+		return zips;
+	}
+}
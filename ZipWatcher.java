@@ -0,0 +1,250 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+/**
+ * Waits for new or changed zips in the events folder (and the dated folders
+ * in it) and hands each one to the ingest once it is complete, without
+ * scanning the folders again. A zip is complete when its size and
+ * modification time did not change for a quiet period and it can be opened,
+ * i.e., its central directory has been written.
+ * 
+ * The folders are registered before the first pass over the events folder
+ * starts, so zips that arrive during that pass are not missed. Folders that
+ * are created later are registered (and their zips picked up) as they
+ * appear. If the watch service loses events, the registered folders are
+ * listed again.
+ */
+public class ZipWatcher {
+
+	private final GettingStarted ingest;
+	private final Path eventsDir;
+	private final long quietMillis;
+	private final WatchService service;
+	private final Map<WatchKey, Path> dirs = new LinkedHashMap<WatchKey, Path>();
+
+	/**
+	 * zips that changed recently, with their size and modification time when
+	 * they were last seen and since when they are unchanged
+	 */
+	private final Map<String, long[]> pending = new LinkedHashMap<String, long[]>();
+	private volatile boolean stopped;
+
+	public ZipWatcher(GettingStarted ingest, String eventsDir, long quietMillis) throws IOException {
+		this.ingest = ingest;
+		this.eventsDir = new File(eventsDir).toPath().toAbsolutePath();
+		this.quietMillis = quietMillis;
+		this.service = FileSystems.getDefault().newWatchService();
+		registerAll(this.eventsDir, false);
+	}
+
+	/**
+	 * Makes {@link #watch()} return after the zip that is processed (if any).
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Processes arriving zips until {@link #stop()} is called.
+	 */
+	public void watch() throws IOException {
+		System.out.printf("watching %s for new zips\n", eventsDir);
+		try {
+			while (!stopped) {
+				WatchKey key;
+				try {
+					key = service.poll(Math.max(10, quietMillis / 2), TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (key != null) {
+					handle(key);
+				}
+				processCompleted();
+			}
+		} finally {
+			service.close();
+		}
+	}
+
+	private void handle(WatchKey key) throws IOException {
+		Path dir = dirs.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				for (Path d : new ArrayList<Path>(dirs.values())) {
+					scan(d);
+				}
+				continue;
+			}
+			if (dir == null) {
+				continue;
+			}
+			Path child = dir.resolve((Path) event.context());
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+				registerAll(child, true);
+			} else if (isZip(child)) {
+				changed(child);
+			}
+		}
+		if (!key.reset()) {
+			dirs.remove(key);
+		}
+	}
+
+	/*
+	 * registers the folder and all folders below it; if the folder is new, its
+	 * zips may have been written before it was registered
+	 */
+	private void registerAll(Path dir, boolean scan) throws IOException {
+		dirs.put(dir.register(service, ENTRY_CREATE, ENTRY_MODIFY), dir);
+		List<Path> children = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path child : stream) {
+				children.add(child);
+			}
+		}
+		for (Path child : children) {
+			if (Files.isDirectory(child)) {
+				registerAll(child, scan);
+			} else if (scan && isZip(child)) {
+				changed(child);
+			}
+		}
+	}
+
+	private void scan(Path dir) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path child : stream) {
+				if (isZip(child)) {
+					changed(child);
+				}
+			}
+		}
+	}
+
+	private static boolean isZip(Path p) {
+		return p.getFileName().toString().endsWith(".zip") && Files.isRegularFile(p);
+	}
+
+	private void changed(Path zip) {
+		String userZip = eventsDir.relativize(zip).toString().replace(File.separatorChar, '/');
+		File f = zip.toFile();
+		long[] state = pending.get(userZip);
+		if (state == null || state[0] != f.length() || state[1] != f.lastModified()) {
+			pending.put(userZip, new long[] { f.length(), f.lastModified(), System.currentTimeMillis() });
+		}
+	}
+
+	/*
+	 * processes the zips that have not changed for the quiet period, in the
+	 * order in which they arrived
+	 */
+	private void processCompleted() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, long[]>> it = pending.entrySet().iterator();
+		while (it.hasNext() && !stopped) {
+			Map.Entry<String, long[]> e = it.next();
+			long[] state = e.getValue();
+			File f = eventsDir.resolve(e.getKey()).toFile();
+			if (!f.exists()) {
+				it.remove();
+			} else if (f.length() != state[0] || f.lastModified() != state[1]) {
+				state[0] = f.length();
+				state[1] = f.lastModified();
+				state[2] = now;
+			} else if (now - state[2] >= quietMillis && isReadable(f)) {
+				it.remove();
+				ingest.processArrivedZip(e.getKey());
+			}
+		}
+	}
+
+	private static boolean isReadable(File zip) {
+		try {
+			new ZipFile(zip).close();
+			return true;
+		} catch (IOException e) {
+			// still being written
+			return false;
+		}
+	}
+
+	/**
+	 * the options of {@link #main(String[])}: an incremental run that keeps
+	 * watching the events folder
+	 */
+	static IngestOptions options(String outputDir) {
+		IngestOptions options = new IngestOptions();
+		options.outputDir = outputDir;
+		options.incremental = true;
+		options.watch = true;
+		return options;
+	}
+
+	/**
+	 * Processes the zips in the events folder and then keeps watching it until
+	 * the JVM is stopped (e.g., with Ctrl-C).
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length != 2) {
+			System.out.println("usage: ZipWatcher <eventsDir> <outputDir>");
+			return;
+		}
+		final GettingStarted ingest = new GettingStarted(args[0], options(args[1]));
+		final CountDownLatch done = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				ingest.stopWatching();
+				try {
+					// the outputs are closed when run() returns
+					done.await(60, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		try {
+			ingest.run();
+		} finally {
+			done.countDown();
+		}
+	}
+}
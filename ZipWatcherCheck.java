@@ -0,0 +1,134 @@
+/**
+ * Copyright 2016 University of Zurich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package examples;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks the watch mode with the options of {@link ZipWatcher#main}: it
+ * processes the zips that are in the events folder, then a zip that arrives
+ * while the folder is watched and one that is uploaded again, and compares
+ * events_per_user.csv, events.csv and the manifest with the zips. Exits with an exception at the first difference.
+ */
+public class ZipWatcherCheck {
+
+	private static final long TIMEOUT_MILLIS = 60000;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		File root = Files.createTempDirectory("watch").toFile();
+		File eventsDir = new File(root, "events");
+		File outputDir = new File(root, "out");
+		Files.createDirectories(outputDir.toPath());
+		writeZip(new File(eventsDir, "2016-01-01/a.zip"), 30);
+
+		IngestOptions options = ZipWatcher.options(outputDir.getPath());
+		options.watchQuietMillis = 200;
+		final GettingStarted ingest = new GettingStarted(eventsDir.getPath(), options);
+		final Throwable[] failure = new Throwable[1];
+		Thread run = new Thread("ingest") {
+			@Override
+			public void run() {
+				try {
+					ingest.run();
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+		};
+		run.start();
+		try {
+			awaitRecorded(outputDir, "2016-01-01/a.zip", 30, run);
+			writeZip(new File(eventsDir, "2016-01-02/b.zip"), 20);
+			awaitRecorded(outputDir, "2016-01-02/b.zip", 20, run);
+			// uploaded again, with other events
+			writeZip(new File(eventsDir, "2016-01-01/a.zip"), 12);
+			awaitRecorded(outputDir, "2016-01-01/a.zip", 12, run);
+		} finally {
+			ingest.stopWatching();
+			run.join();
+		}
+		if (failure[0] != null) {
+			throw new IllegalStateException("the run failed", failure[0]);
+		}
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("2016-01-01/a.zip,12");
+		expected.add("2016-01-02/b.zip,20");
+		expected.add("user,number of events");
+		List<String> actual = new ArrayList<String>(
+				Files.readAllLines(new File(outputDir, "events_per_user.csv").toPath(), StandardCharsets.UTF_8));
+		Collections.sort(actual);
+		if (!actual.equals(expected)) {
+			throw new IllegalStateException("events_per_user.csv is " + actual + ", not " + expected);
+		}
+		int rows = 0;
+		for (String line : Files.readAllLines(new File(outputDir, "events.csv").toPath(), StandardCharsets.UTF_8)) {
+			if (line.startsWith("2016-01-01/a.zip,")) {
+				rows++;
+			}
+		}
+		if (rows != 12) {
+			throw new IllegalStateException("events.csv has " + rows + " rows of a.zip, not those of its last version");
+		}
+		System.out.println("watching: " + (expected.size() - 1) + " zips processed and recorded, the rows of a"
+				+ " changed zip replaced");
+	}
+
+	/*
+	 * waits until the manifest has the zip with the given number of events
+	 */
+	private static void awaitRecorded(File outputDir, String userZip, int events, Thread run)
+			throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		File manifest = new File(outputDir, "manifest.csv");
+		while (true) {
+			ZipAggregate recorded = ZipManifest.load(manifest).getAggregate(userZip);
+			if (recorded != null && recorded.numProcessedEvents == events) {
+				return;
+			}
+			if (!run.isAlive() || System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException(userZip + " with " + events + " events was not recorded");
+			}
+			Thread.sleep(50);
+		}
+	}
+
+	/*
+	 * a zip with the given number of command events
+	 */
+	private static void writeZip(File zip, int events) throws IOException {
+		Files.createDirectories(zip.getParentFile().toPath());
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+			for (int i = 0; i < events; i++) {
+				out.putNextEntry(new ZipEntry(i + "-CommandEvent.json"));
+				String json = "{\"$type\":\"KaVE.Commons.Model.Events.CommandEvent, KaVE.Commons\","
+						+ "\"CommandId\":\"Edit.Copy\",\"TriggeredAt\":\"2016-01-01T10:00:" + (10 + i % 50)
+						+ "+01:00\",\"IDESessionUUID\":\"s" + i % 3 + "\"}";
+				out.write(json.getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+	}
+}